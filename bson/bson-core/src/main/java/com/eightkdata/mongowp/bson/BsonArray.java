@@ -18,7 +18,6 @@
 
 package com.eightkdata.mongowp.bson;
 
-import com.eightkdata.mongowp.bson.utils.IntBaseHasher;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.UnmodifiableIterator;
@@ -43,7 +42,10 @@ public interface BsonArray extends BsonValue<BsonArray>, Iterable<BsonValue<?>>
   int size();
 
   /**
-   * @return {@link IntBaseHasher#hash(int) IntBaseHasher.hash(this.size())}
+   * The hashCode of a BsonArray is calculated like {@link List#hashCode()} does, but 1 is
+   * returned if the result is 0.
+   *
+   * @return
    */
   @Override
   public int hashCode();
@@ -19,7 +19,6 @@
 package com.eightkdata.mongowp.bson;
 
 import com.eightkdata.mongowp.bson.BsonDocument.Entry;
-import com.eightkdata.mongowp.bson.utils.IntBaseHasher;
 import com.google.common.collect.UnmodifiableIterator;
 
 import java.io.Serializable;
@@ -80,8 +79,10 @@ public interface BsonDocument extends BsonValue<BsonDocument>, Iterable<Entry<?>
   public boolean equals(Object obj);
 
   /**
-   * The hashCode of a BsonDocument is calculated by calling {@linkplain IntBaseHasher#hash(int)
-   * IntBaseHasher.hash(this.size())}.
+   * The hashCode of a BsonDocument combines the hashCodes of the keys and values of its entries
+   * in iteration order, as {@code 31 * (31 * h + key.hashCode()) + value.hashCode()} starting
+   * with {@code h = 1}. If the result is 0, 1 is returned instead. Implementations can cache
+   * it, as documents are immutable.
    *
    * @return
    */
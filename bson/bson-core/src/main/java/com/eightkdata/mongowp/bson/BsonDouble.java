@@ -43,7 +43,8 @@ public interface BsonDouble extends BsonNumber<Double> {
   public boolean equals(Object obj);
 
   /**
-   * The hashCode of a BsonDouble is the hashCode of the value it contains.
+   * The hashCode of a BsonDouble is the hashCode of the value it contains, except for -0.0,
+   * whose hashCode is the same as the one of 0.0.
    *
    * @return
    * @see Double#hashCode()
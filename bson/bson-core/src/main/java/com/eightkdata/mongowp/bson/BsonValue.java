@@ -18,6 +18,8 @@
 
 package com.eightkdata.mongowp.bson;
 
+import com.eightkdata.mongowp.bson.utils.EncodedSizeCalculator;
+
 import java.io.Serializable;
 
 import javax.annotation.Nonnull;
@@ -70,6 +72,18 @@ public interface BsonValue<V> extends Serializable, Comparable<BsonValue<?>> {
   @Override
   int hashCode();
 
+  /**
+   * Returns the number of bytes this value takes once it is encoded as BSON. The type byte and
+   * the key that precede the value when it is stored on a document are not included.
+   *
+   * <p>Values whose encoding is already known return it in constant time and documents and
+   * arrays calculate it only once. By default it is calculated from the content of the value on
+   * each call.
+   */
+  default int encodedSize() {
+    return EncodedSizeCalculator.compute(this);
+  }
+
   boolean isNumber();
 
   boolean isDouble();
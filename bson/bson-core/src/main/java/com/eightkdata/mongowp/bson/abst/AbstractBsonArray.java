@@ -23,7 +23,6 @@ import com.eightkdata.mongowp.bson.BsonType;
 import com.eightkdata.mongowp.bson.BsonValue;
 import com.eightkdata.mongowp.bson.BsonValueVisitor;
 import com.eightkdata.mongowp.bson.utils.BsonTypeComparator;
-import com.eightkdata.mongowp.bson.utils.IntBaseHasher;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.UnmodifiableIterator;
 
@@ -111,9 +110,17 @@ public abstract class AbstractBsonArray extends CachedHashAbstractBsonValue<Bson
     return Iterators.elementsEqual(this.iterator(), other.iterator());
   }
 
+  /**
+   * Combines the hashes of the elements of this array in order, like
+   * {@link java.util.List#hashCode()} does.
+   */
   @Override
   final int calculateHash() {
-    return IntBaseHasher.hash(size());
+    int result = 1;
+    for (BsonValue<?> value : this) {
+      result = 31 * result + value.hashCode();
+    }
+    return result != 0 ? result : 1;
   }
 
   @Override
@@ -23,7 +23,6 @@ import com.eightkdata.mongowp.bson.BsonType;
 import com.eightkdata.mongowp.bson.BsonValue;
 import com.eightkdata.mongowp.bson.BsonValueVisitor;
 import com.eightkdata.mongowp.bson.utils.BsonTypeComparator;
-import com.eightkdata.mongowp.bson.utils.IntBaseHasher;
 import com.google.common.base.Function;
 import com.google.common.collect.Iterators;
 
@@ -122,9 +121,20 @@ public abstract class AbstractBsonDocument extends CachedHashAbstractBsonValue<B
         .iterator());
   }
 
+  /**
+   * Combines the hashes of the keys and values of this document in iteration order, so
+   * documents that are {@linkplain #equals(Object) equal} have the same hash whatever their
+   * representation is. Nested documents and arrays cache their own hash, so it is only
+   * calculated once per value.
+   */
   @Override
   int calculateHash() {
-    return IntBaseHasher.hash(size());
+    int result = 1;
+    for (Entry<?> entry : this) {
+      result = 31 * result + entry.getKey().hashCode();
+      result = 31 * result + entry.getValue().hashCode();
+    }
+    return result != 0 ? result : 1;
   }
 
   @Override
@@ -83,7 +83,12 @@ public abstract class AbstractBsonDouble extends AbstractBsonNumber<Double> impl
 
   @Override
   public final int hashCode() {
-    return Doubles.hashCode(doubleValue());
+    double value = doubleValue();
+    //0.0 and -0.0 are equal, so they must have the same hash
+    if (value == 0) {
+      return 0;
+    }
+    return Doubles.hashCode(value);
   }
 
   @Override
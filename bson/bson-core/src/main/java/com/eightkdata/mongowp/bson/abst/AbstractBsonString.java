@@ -75,7 +75,7 @@ public abstract class AbstractBsonString extends AbstractBsonValue<String> imple
   }
 
   @Override
-  public final int hashCode() {
+  public int hashCode() {
     return getValue().hashCode();
   }
 
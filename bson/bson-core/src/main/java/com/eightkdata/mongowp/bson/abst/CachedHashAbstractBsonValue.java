@@ -18,9 +18,12 @@
 
 package com.eightkdata.mongowp.bson.abst;
 
+import com.eightkdata.mongowp.bson.utils.EncodedSizeCalculator;
+
 abstract class CachedHashAbstractBsonValue<V> extends AbstractBsonValue<V> {
 
   int hash = 0;
+  int cachedEncodedSize = 0;
 
   /**
    * Calculates the hash of this object.
@@ -42,4 +45,16 @@ abstract class CachedHashAbstractBsonValue<V> extends AbstractBsonValue<V> {
     return hash;
   }
 
+  /**
+   * Returns the encoded size of this value, which is calculated on the first call. Encoded values
+   * take at least one byte, so 0 means it has not been calculated yet.
+   */
+  @Override
+  public int encodedSize() {
+    if (cachedEncodedSize == 0) {
+      cachedEncodedSize = EncodedSizeCalculator.compute(this);
+    }
+    return cachedEncodedSize;
+  }
+
 }
@@ -0,0 +1,194 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.bson.impl;
+
+import com.eightkdata.mongowp.bson.BsonValue;
+import com.eightkdata.mongowp.bson.abst.AbstractBsonDocument;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.UnmodifiableIterator;
+
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable document that stores its keys and values on two parallel arrays.
+ *
+ * <p>Documents with up to {@value #MAX_UNINDEXED_FIELDS} fields are looked up scanning their keys.
+ * Bigger ones also have an open addressing table of the positions of their keys. The entries are
+ * created once, when the document is created, so lookups and iterations do not allocate them.
+ * Code that only needs the keys and values can read them by position with {@link #getKey(int)}
+ * and {@link #getValue(int)}.
+ */
+public class ArrayBasedBsonDocument extends AbstractBsonDocument {
+
+  private static final long serialVersionUID = -4146283580113391407L;
+  static final int MAX_UNINDEXED_FIELDS = 8;
+
+  private final String[] keys;
+  private final BsonValue<?>[] values;
+  /**
+   * The positions of the keys plus one, indexed by their hash, or null if the document is small.
+   */
+  private final int[] index;
+  private final Entry<?>[] entries;
+
+  /**
+   * @param keys   the keys of the document, that must be different. The array is not copied, so
+   *               it must not be modified
+   * @param values the values of the document, on the same order than their keys. The array is not
+   *               copied, so it must not be modified
+   */
+  public ArrayBasedBsonDocument(String[] keys, BsonValue<?>[] values) {
+    Preconditions.checkArgument(keys.length == values.length,
+        "There must be as many keys as values");
+    this.keys = keys;
+    this.values = values;
+    if (keys.length > MAX_UNINDEXED_FIELDS) {
+      this.index = createIndex(keys);
+    } else {
+      checkUnique(keys);
+      this.index = null;
+    }
+    this.entries = new Entry<?>[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      entries[i] = new SimpleEntry<>(keys[i], values[i]);
+    }
+  }
+
+  public static ArrayBasedBsonDocument fromMap(Map<String, BsonValue<?>> map) {
+    String[] keys = new String[map.size()];
+    BsonValue<?>[] values = new BsonValue<?>[map.size()];
+    int i = 0;
+    for (Map.Entry<String, BsonValue<?>> entry : map.entrySet()) {
+      keys[i] = entry.getKey();
+      values[i] = entry.getValue();
+      i++;
+    }
+    return new ArrayBasedBsonDocument(keys, values);
+  }
+
+  private static void checkUnique(String[] keys) {
+    for (int i = 1; i < keys.length; i++) {
+      for (int j = 0; j < i; j++) {
+        Preconditions.checkArgument(!keys[j].equals(keys[i]), "Duplicated key %s", keys[i]);
+      }
+    }
+  }
+
+  private static int[] createIndex(String[] keys) {
+    int[] result = new int[Integer.highestOneBit(keys.length * 2 - 1) * 2];
+    int mask = result.length - 1;
+    for (int i = 0; i < keys.length; i++) {
+      int slot = hash(keys[i]) & mask;
+      while (result[slot] != 0) {
+        Preconditions.checkArgument(!keys[result[slot] - 1].equals(keys[i]),
+            "Duplicated key %s", keys[i]);
+        slot = (slot + 1) & mask;
+      }
+      result[slot] = i + 1;
+    }
+    return result;
+  }
+
+  private static int hash(String key) {
+    int hash = key.hashCode();
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * Returns the position of the given key or -1 if it is not contained on this document.
+   */
+  private int indexOf(String key) {
+    if (index == null) {
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i].equals(key)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+    int mask = index.length - 1;
+    for (int slot = hash(key) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+      int position = index[slot] - 1;
+      if (keys[position].equals(key)) {
+        return position;
+      }
+    }
+    return -1;
+  }
+
+  public String getKey(int position) {
+    return keys[position];
+  }
+
+  public BsonValue<?> getValue(int position) {
+    return values[position];
+  }
+
+  @Override
+  public BsonValue<?> get(String key) {
+    int position = indexOf(key);
+    return position < 0 ? null : values[position];
+  }
+
+  @Override
+  public boolean containsKey(String key) {
+    return indexOf(key) >= 0;
+  }
+
+  @Override
+  public int size() {
+    return keys.length;
+  }
+
+  @Override
+  public Entry<?> getEntry(String key) {
+    int position = indexOf(key);
+    return position < 0 ? null : entries[position];
+  }
+
+  @Override
+  public Entry<?> getFirstEntry() throws NoSuchElementException {
+    if (keys.length == 0) {
+      throw new NoSuchElementException();
+    }
+    return entries[0];
+  }
+
+  @Override
+  public UnmodifiableIterator<Entry<?>> iterator() {
+    return new UnmodifiableIterator<Entry<?>>() {
+      private int next = 0;
+
+      @Override
+      public boolean hasNext() {
+        return next < entries.length;
+      }
+
+      @Override
+      public Entry<?> next() {
+        if (next >= entries.length) {
+          throw new NoSuchElementException();
+        }
+        return entries[next++];
+      }
+    };
+  }
+
+}
@@ -34,6 +34,7 @@ import com.eightkdata.mongowp.bson.BsonTimestamp;
 import com.eightkdata.mongowp.bson.BsonUndefined;
 import com.eightkdata.mongowp.bson.BsonValue;
 import com.eightkdata.mongowp.bson.annotations.NotMutable;
+import com.eightkdata.mongowp.bson.impl.ArrayBasedBsonDocument;
 import com.eightkdata.mongowp.bson.impl.DefaultBsonTimestamp;
 import com.eightkdata.mongowp.bson.impl.EmptyBsonArray;
 import com.eightkdata.mongowp.bson.impl.EmptyBsonDocument;
@@ -42,7 +43,6 @@ import com.eightkdata.mongowp.bson.impl.InstantBsonDateTime;
 import com.eightkdata.mongowp.bson.impl.ListBasedBsonDocument;
 import com.eightkdata.mongowp.bson.impl.ListBsonArray;
 import com.eightkdata.mongowp.bson.impl.LongBsonDateTime;
-import com.eightkdata.mongowp.bson.impl.MapBasedBsonDocument;
 import com.eightkdata.mongowp.bson.impl.PrimitiveBsonDouble;
 import com.eightkdata.mongowp.bson.impl.PrimitiveBsonInt32;
 import com.eightkdata.mongowp.bson.impl.PrimitiveBsonInt64;
@@ -153,7 +153,7 @@ public class DefaultBsonValues {
         return new SingleEntryBsonDocument(entry.getKey(), entry.getValue());
       }
       default:
-        return new MapBasedBsonDocument(map);
+        return ArrayBasedBsonDocument.fromMap(map);
     }
   }
 
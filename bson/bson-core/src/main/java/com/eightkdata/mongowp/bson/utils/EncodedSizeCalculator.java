@@ -0,0 +1,220 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.bson.utils;
+
+import com.eightkdata.mongowp.bson.BsonArray;
+import com.eightkdata.mongowp.bson.BsonBinary;
+import com.eightkdata.mongowp.bson.BsonBoolean;
+import com.eightkdata.mongowp.bson.BsonDateTime;
+import com.eightkdata.mongowp.bson.BsonDbPointer;
+import com.eightkdata.mongowp.bson.BsonDeprecated;
+import com.eightkdata.mongowp.bson.BsonDocument;
+import com.eightkdata.mongowp.bson.BsonDocument.Entry;
+import com.eightkdata.mongowp.bson.BsonDouble;
+import com.eightkdata.mongowp.bson.BsonInt32;
+import com.eightkdata.mongowp.bson.BsonInt64;
+import com.eightkdata.mongowp.bson.BsonJavaScript;
+import com.eightkdata.mongowp.bson.BsonJavaScriptWithScope;
+import com.eightkdata.mongowp.bson.BsonMax;
+import com.eightkdata.mongowp.bson.BsonMin;
+import com.eightkdata.mongowp.bson.BsonNull;
+import com.eightkdata.mongowp.bson.BsonObjectId;
+import com.eightkdata.mongowp.bson.BsonRegex;
+import com.eightkdata.mongowp.bson.BsonString;
+import com.eightkdata.mongowp.bson.BsonTimestamp;
+import com.eightkdata.mongowp.bson.BsonUndefined;
+import com.eightkdata.mongowp.bson.BsonValue;
+import com.eightkdata.mongowp.bson.BsonValueVisitor;
+import com.eightkdata.mongowp.bson.impl.ArrayBasedBsonDocument;
+import com.google.common.base.Charsets;
+import com.google.common.base.Utf8;
+
+/**
+ * Calculates the number of bytes a {@link BsonValue} takes once it is encoded as BSON, without
+ * encoding it.
+ */
+public class EncodedSizeCalculator {
+
+  private static final SizeVisitor VISITOR = new SizeVisitor();
+
+  private EncodedSizeCalculator() {
+  }
+
+  /**
+   * Returns the length of the encoded value. The type byte and the key that precede the value
+   * when it is stored on a document are not included.
+   *
+   * @see BsonValue#encodedSize()
+   */
+  public static int calculate(BsonValue<?> value) {
+    return value.encodedSize();
+  }
+
+  /**
+   * Calculates the length of the encoded value from its content. It is meant to implement
+   * {@link BsonValue#encodedSize()}, so the children of documents and arrays are measured with
+   * that method and their cached sizes are reused.
+   */
+  public static int compute(BsonValue<?> value) {
+    return value.accept(VISITOR, null);
+  }
+
+  private static int cstringSize(String str) {
+    int length;
+    try {
+      length = Utf8.encodedLength(str);
+    } catch (IllegalArgumentException ex) {
+      //unpaired surrogates are replaced when the string is encoded
+      length = str.getBytes(Charsets.UTF_8).length;
+    }
+    return length + 1;
+  }
+
+  private static int stringSize(String str) {
+    return 4 + cstringSize(str);
+  }
+
+  private static int indexKeySize(int index) {
+    int digits = 1;
+    for (int i = index; i >= 10; i /= 10) {
+      digits++;
+    }
+    return digits + 1;
+  }
+
+  private static class SizeVisitor implements BsonValueVisitor<Integer, Void> {
+
+    @Override
+    public Integer visit(BsonArray value, Void arg) {
+      int size = 4 + 1;
+      int i = 0;
+      for (BsonValue<?> child : value) {
+        size += 1 + indexKeySize(i) + child.encodedSize();
+        i++;
+      }
+      return size;
+    }
+
+    @Override
+    public Integer visit(BsonBinary value, Void arg) {
+      return 4 + 1 + (int) value.getByteSource().size();
+    }
+
+    @Override
+    public Integer visit(BsonDbPointer value, Void arg) {
+      return stringSize(value.getNamespace()) + value.getId().encodedSize();
+    }
+
+    @Override
+    public Integer visit(BsonDateTime value, Void arg) {
+      return 8;
+    }
+
+    @Override
+    public Integer visit(BsonDocument value, Void arg) {
+      int size = 4 + 1;
+      if (value instanceof ArrayBasedBsonDocument) {
+        ArrayBasedBsonDocument arrayBased = (ArrayBasedBsonDocument) value;
+        for (int i = 0; i < arrayBased.size(); i++) {
+          size += 1 + cstringSize(arrayBased.getKey(i)) + arrayBased.getValue(i).encodedSize();
+        }
+        return size;
+      }
+      for (Entry<?> entry : value) {
+        size += 1 + cstringSize(entry.getKey()) + entry.getValue().encodedSize();
+      }
+      return size;
+    }
+
+    @Override
+    public Integer visit(BsonDouble value, Void arg) {
+      return 8;
+    }
+
+    @Override
+    public Integer visit(BsonInt32 value, Void arg) {
+      return 4;
+    }
+
+    @Override
+    public Integer visit(BsonInt64 value, Void arg) {
+      return 8;
+    }
+
+    @Override
+    public Integer visit(BsonBoolean value, Void arg) {
+      return 1;
+    }
+
+    @Override
+    public Integer visit(BsonJavaScript value, Void arg) {
+      return stringSize(value.getValue());
+    }
+
+    @Override
+    public Integer visit(BsonJavaScriptWithScope value, Void arg) {
+      return 4 + stringSize(value.getJavaScript()) + value.getScope().encodedSize();
+    }
+
+    @Override
+    public Integer visit(BsonMax value, Void arg) {
+      return 0;
+    }
+
+    @Override
+    public Integer visit(BsonMin value, Void arg) {
+      return 0;
+    }
+
+    @Override
+    public Integer visit(BsonNull value, Void arg) {
+      return 0;
+    }
+
+    @Override
+    public Integer visit(BsonObjectId value, Void arg) {
+      return 12;
+    }
+
+    @Override
+    public Integer visit(BsonRegex value, Void arg) {
+      return cstringSize(value.getPattern()) + cstringSize(value.getOptionsAsText());
+    }
+
+    @Override
+    public Integer visit(BsonString value, Void arg) {
+      return stringSize(value.getValue());
+    }
+
+    @Override
+    public Integer visit(BsonUndefined value, Void arg) {
+      return 0;
+    }
+
+    @Override
+    public Integer visit(BsonTimestamp value, Void arg) {
+      return 8;
+    }
+
+    @Override
+    public Integer visit(BsonDeprecated value, Void arg) {
+      return stringSize(value.getValue());
+    }
+  }
+}
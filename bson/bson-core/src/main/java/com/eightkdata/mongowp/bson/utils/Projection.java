@@ -0,0 +1,220 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.bson.utils;
+
+import com.eightkdata.mongowp.bson.BsonDocument;
+import com.eightkdata.mongowp.bson.BsonDocument.Entry;
+import com.eightkdata.mongowp.bson.BsonValue;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * A compiled set of include or exclude paths, used to read only some fields of a document.
+ *
+ * <p>Each projection is a node of a tree whose children are the fields named on the paths. A
+ * child without children is a leaf that selects (on inclusive projections) or discards (on
+ * exclusive ones) the whole value of its field. Children of non-leaf nodes are applied to the
+ * field value if it is a document and to each document of the field value if it is an array. On
+ * inclusive projections, other values of a field that has non-leaf children are discarded.
+ *
+ * <p>Fields are stored on arrays, so they can be looked up without allocating iterators.
+ */
+public final class Projection {
+
+  private static final String ID_FIELD = "_id";
+  private static final Splitter PATH_SPLITTER = Splitter.on('.');
+
+  private final boolean inclusive;
+  private final List<String> fieldNames = new ArrayList<>();
+  private final List<Projection> fieldProjections = new ArrayList<>();
+  private String[] fieldNamesArray = new String[0];
+  private Projection[] fieldProjectionsArray = new Projection[0];
+  private boolean wholeValue = false;
+
+  private Projection(boolean inclusive) {
+    this.inclusive = inclusive;
+  }
+
+  /**
+   * Creates a projection that selects the given paths. The paths use dots to separate the fields
+   * of nested documents.
+   */
+  public static Projection include(Collection<String> paths) {
+    return create(true, paths);
+  }
+
+  /**
+   * Creates a projection that selects all fields except the given paths. The paths use dots to
+   * separate the fields of nested documents.
+   */
+  public static Projection exclude(Collection<String> paths) {
+    return create(false, paths);
+  }
+
+  /**
+   * Compiles a MongoDB {@code returnFieldsSelector}.
+   *
+   * <p>As MongoDB does, {@code _id} is included on inclusive selectors unless it is explicitly
+   * excluded.
+   *
+   * @throws IllegalArgumentException if the selector mixes included and excluded fields (other
+   *                                  than {@code _id}) or uses projection operators, which must
+   *                                  be evaluated on the materialized document
+   */
+  public static Projection fromSelector(BsonDocument selector) {
+    List<String> included = new ArrayList<>();
+    List<String> excluded = new ArrayList<>();
+    boolean idExcluded = false;
+    for (Entry<?> entry : selector) {
+      String path = entry.getKey();
+      boolean include = isTrue(path, entry.getValue());
+      if (path.equals(ID_FIELD) && !include) {
+        idExcluded = true;
+      } else if (include) {
+        included.add(path);
+      } else {
+        excluded.add(path);
+      }
+    }
+    if (!included.isEmpty()) {
+      Preconditions.checkArgument(excluded.isEmpty(), "Projections cannot mix included and "
+          + "excluded fields");
+      if (!idExcluded && !included.contains(ID_FIELD)) {
+        included.add(ID_FIELD);
+      }
+      return include(included);
+    }
+    if (idExcluded) {
+      excluded.add(ID_FIELD);
+    }
+    return exclude(excluded);
+  }
+
+  private static boolean isTrue(String path, BsonValue<?> value) {
+    if (value.isNumber()) {
+      return value.asNumber().doubleValue() != 0;
+    }
+    if (value.isBoolean()) {
+      return value.asBoolean().getPrimitiveValue();
+    }
+    throw new IllegalArgumentException("Unsupported projection on field " + path + ": "
+        + value);
+  }
+
+  private static Projection create(boolean inclusive, Collection<String> paths) {
+    Projection root = new Projection(inclusive);
+    for (String path : paths) {
+      Projection node = root;
+      for (String field : PATH_SPLITTER.split(path)) {
+        Preconditions.checkArgument(!field.isEmpty(), "Invalid projection path '%s'", path);
+        node = node.getOrCreateChild(field);
+        if (node.wholeValue) {
+          //a prefix of this path has already been projected
+          break;
+        }
+      }
+      //the path projects the whole value, so longer paths that start with it are ignored
+      node.wholeValue = true;
+      node.fieldNames.clear();
+      node.fieldProjections.clear();
+    }
+    root.freeze();
+    return root;
+  }
+
+  private Projection getOrCreateChild(String field) {
+    int index = fieldNames.indexOf(field);
+    if (index >= 0) {
+      return fieldProjections.get(index);
+    }
+    Projection child = new Projection(inclusive);
+    fieldNames.add(field);
+    fieldProjections.add(child);
+    return child;
+  }
+
+  private void freeze() {
+    fieldNamesArray = fieldNames.toArray(new String[fieldNames.size()]);
+    fieldProjectionsArray = fieldProjections.toArray(new Projection[fieldProjections.size()]);
+    for (Projection child : fieldProjectionsArray) {
+      child.freeze();
+    }
+  }
+
+  /**
+   * Returns true iff this projection selects the fields named on it. Otherwise it selects all
+   * fields except the named ones.
+   */
+  public boolean isInclusive() {
+    return inclusive;
+  }
+
+  /**
+   * Returns true iff this projection applies to the whole value of its field.
+   */
+  public boolean isLeaf() {
+    return fieldNamesArray.length == 0;
+  }
+
+  public int getFieldCount() {
+    return fieldNamesArray.length;
+  }
+
+  public String getFieldName(int index) {
+    return fieldNamesArray[index];
+  }
+
+  public Projection getFieldProjection(int index) {
+    return fieldProjectionsArray[index];
+  }
+
+  /**
+   * Returns the projection of the given field or null if it is not named on this projection.
+   */
+  @Nullable
+  public Projection getFieldProjection(String fieldName) {
+    for (int i = 0; i < fieldNamesArray.length; i++) {
+      if (fieldNamesArray[i].equals(fieldName)) {
+        return fieldProjectionsArray[i];
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder(inclusive ? "include" : "exclude").append('{');
+    for (int i = 0; i < fieldNamesArray.length; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(fieldNamesArray[i]);
+      if (!fieldProjectionsArray[i].isLeaf()) {
+        sb.append('=').append(fieldProjectionsArray[i]);
+      }
+    }
+    return sb.append('}').toString();
+  }
+}
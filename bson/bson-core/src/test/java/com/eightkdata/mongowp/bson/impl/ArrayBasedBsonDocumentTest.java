@@ -0,0 +1,165 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.bson.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.eightkdata.mongowp.bson.BsonDocument;
+import com.eightkdata.mongowp.bson.BsonDocument.Entry;
+import com.eightkdata.mongowp.bson.BsonValue;
+import com.eightkdata.mongowp.bson.abst.AbstractBsonDocument.SimpleEntry;
+import com.eightkdata.mongowp.bson.utils.DefaultBsonValues;
+import com.google.common.collect.Iterators;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ArrayBasedBsonDocumentTest {
+
+  private static ArrayBasedBsonDocument newDocument(int fields) {
+    String[] keys = new String[fields];
+    BsonValue<?>[] values = new BsonValue<?>[fields];
+    for (int i = 0; i < fields; i++) {
+      keys[i] = "key" + i;
+      values[i] = DefaultBsonValues.newInt(i);
+    }
+    return new ArrayBasedBsonDocument(keys, values);
+  }
+
+  private static void checkLookups(ArrayBasedBsonDocument doc, int fields) {
+    assertEquals(fields, doc.size());
+    for (int i = 0; i < fields; i++) {
+      assertTrue(doc.containsKey("key" + i));
+      assertEquals(DefaultBsonValues.newInt(i), doc.get("key" + i));
+      Entry<?> entry = doc.getEntry("key" + i);
+      assertEquals("key" + i, entry.getKey());
+      assertEquals(DefaultBsonValues.newInt(i), entry.getValue());
+    }
+    assertFalse(doc.containsKey("key" + fields));
+    assertNull(doc.get("key" + fields));
+    assertNull(doc.getEntry("other"));
+  }
+
+  @Test
+  public void smallDocumentTest() {
+    int fields = ArrayBasedBsonDocument.MAX_UNINDEXED_FIELDS;
+    checkLookups(newDocument(fields), fields);
+  }
+
+  @Test
+  public void indexedDocumentTest() {
+    int fields = ArrayBasedBsonDocument.MAX_UNINDEXED_FIELDS + 1;
+    checkLookups(newDocument(fields), fields);
+    checkLookups(newDocument(100), 100);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void duplicatedKeyTest() {
+    new ArrayBasedBsonDocument(new String[] {"a", "b", "a"},
+        new BsonValue<?>[] {DefaultBsonValues.newInt(1), DefaultBsonValues.newInt(2),
+            DefaultBsonValues.newInt(3)});
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void duplicatedKeyOnIndexedDocumentTest() {
+    int fields = ArrayBasedBsonDocument.MAX_UNINDEXED_FIELDS + 1;
+    String[] keys = new String[fields];
+    BsonValue<?>[] values = new BsonValue<?>[fields];
+    for (int i = 0; i < fields; i++) {
+      keys[i] = "key" + i % (fields - 1);
+      values[i] = DefaultBsonValues.newInt(i);
+    }
+    new ArrayBasedBsonDocument(keys, values);
+  }
+
+  @Test
+  public void iterationTest() {
+    Map<String, BsonValue<?>> map = new LinkedHashMap<>();
+    List<Entry<?>> list = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      map.put("key" + i, DefaultBsonValues.newString("value" + i));
+      list.add(new SimpleEntry<>("key" + i, DefaultBsonValues.newString("value" + i)));
+    }
+    ArrayBasedBsonDocument doc = ArrayBasedBsonDocument.fromMap(map);
+
+    Iterator<Entry<?>> iterator = doc.iterator();
+    for (Map.Entry<String, BsonValue<?>> expected : map.entrySet()) {
+      Entry<?> entry = iterator.next();
+      assertEquals(expected.getKey(), entry.getKey());
+      assertEquals(expected.getValue(), entry.getValue());
+    }
+    assertFalse(iterator.hasNext());
+    assertEquals("key0", doc.getFirstEntry().getKey());
+    assertTrue(Iterators.elementsEqual(doc.iterator(), doc.iterator()));
+    //equal to other implementations of documents
+    BsonDocument listBased = DefaultBsonValues.newDocument(list);
+    assertEquals(listBased, doc);
+    assertEquals(doc, listBased);
+    assertEquals(listBased.hashCode(), doc.hashCode());
+  }
+
+  @Test
+  public void entriesAreReusedTest() {
+    checkReusedEntries(newDocument(5));
+    checkReusedEntries(newDocument(20));
+  }
+
+  private void checkReusedEntries(ArrayBasedBsonDocument doc) {
+    assertSame(doc.getEntry("key3"), doc.getEntry("key3"));
+    assertSame(doc.getFirstEntry(), doc.getEntry("key0"));
+    Iterator<Entry<?>> first = doc.iterator();
+    Iterator<Entry<?>> second = doc.iterator();
+    for (int i = 0; i < doc.size(); i++) {
+      Entry<?> entry = first.next();
+      assertSame(entry, second.next());
+      assertSame(entry, doc.getEntry("key" + i));
+    }
+  }
+
+  @Test
+  public void serializationTest() throws IOException, ClassNotFoundException {
+    ArrayBasedBsonDocument doc = newDocument(20);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(doc);
+    }
+    BsonDocument read;
+    try (ObjectInputStream in = new ObjectInputStream(
+        new ByteArrayInputStream(bytes.toByteArray()))) {
+      read = (BsonDocument) in.readObject();
+    }
+    assertEquals(doc, read);
+    checkLookups((ArrayBasedBsonDocument) read, 20);
+  }
+
+}
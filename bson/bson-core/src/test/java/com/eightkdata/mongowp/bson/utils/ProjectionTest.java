@@ -0,0 +1,63 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.bson.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.eightkdata.mongowp.bson.BsonValue;
+import org.junit.Test;
+
+public class ProjectionTest {
+
+  private static Projection fromSelector(BsonValue<?> value) {
+    return Projection.fromSelector(DefaultBsonValues.newDocument("a", value));
+  }
+
+  private static void assertIncluded(Projection projection) {
+    assertTrue(projection.isInclusive());
+    assertEquals(2, projection.getFieldCount());
+    assertNotNull(projection.getFieldProjection("a"));
+    assertNotNull(projection.getFieldProjection("_id"));
+  }
+
+  private static void assertExcluded(Projection projection) {
+    assertFalse(projection.isInclusive());
+    assertEquals(1, projection.getFieldCount());
+    assertNotNull(projection.getFieldProjection("a"));
+    assertNull(projection.getFieldProjection("_id"));
+  }
+
+  @Test
+  public void fromSelectorTest() {
+    assertIncluded(fromSelector(DefaultBsonValues.newInt(1)));
+    assertIncluded(fromSelector(DefaultBsonValues.newLong(-1)));
+    assertIncluded(fromSelector(DefaultBsonValues.TRUE));
+    //any non zero number is an inclusion, even if it is truncated to 0
+    assertIncluded(fromSelector(DefaultBsonValues.newDouble(0.5)));
+
+    assertExcluded(fromSelector(DefaultBsonValues.newInt(0)));
+    assertExcluded(fromSelector(DefaultBsonValues.newDouble(0)));
+    assertExcluded(fromSelector(DefaultBsonValues.newBoolean(false)));
+  }
+
+}
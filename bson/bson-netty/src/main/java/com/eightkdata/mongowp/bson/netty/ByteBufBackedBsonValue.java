@@ -0,0 +1,39 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.bson.netty;
+
+import com.eightkdata.mongowp.bson.BsonValue;
+import com.eightkdata.mongowp.bson.netty.annotations.Tight;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * A {@link BsonValue} whose BSON representation is stored on a {@link ByteBuf}.
+ *
+ * <p>{@link NettyBsonDocumentWriter} uses it to write these values without encoding them again.
+ */
+public interface ByteBufBackedBsonValue {
+
+  /**
+   * Returns a slice that contains the BSON representation of this value, as it would be written
+   * as the value of a document entry. The returned slice shares the content of the backing buffer,
+   * it is not {@linkplain ByteBuf#retain() retained} and its indexes can be freely modified.
+   */
+  @Tight
+  public ByteBuf getEncodedBytes();
+}
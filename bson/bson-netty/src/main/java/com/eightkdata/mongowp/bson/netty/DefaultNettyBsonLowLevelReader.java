@@ -49,7 +49,6 @@ import com.eightkdata.mongowp.bson.impl.DefaultBsonTimestamp;
 import com.eightkdata.mongowp.bson.impl.FalseBsonBoolean;
 import com.eightkdata.mongowp.bson.impl.ListBsonArray;
 import com.eightkdata.mongowp.bson.impl.LongBsonDateTime;
-import com.eightkdata.mongowp.bson.impl.MapBasedBsonDocument;
 import com.eightkdata.mongowp.bson.impl.PrimitiveBsonDouble;
 import com.eightkdata.mongowp.bson.impl.PrimitiveBsonInt32;
 import com.eightkdata.mongowp.bson.impl.PrimitiveBsonInt64;
@@ -62,6 +61,7 @@ import com.eightkdata.mongowp.bson.impl.StringBsonString;
 import com.eightkdata.mongowp.bson.impl.TrueBsonBoolean;
 import com.eightkdata.mongowp.bson.netty.annotations.Loose;
 import com.eightkdata.mongowp.bson.netty.annotations.ModifiesIndexes;
+import com.eightkdata.mongowp.bson.utils.DefaultBsonValues;
 import com.google.common.primitives.UnsignedBytes;
 import io.netty.buffer.ByteBuf;
 
@@ -147,7 +147,7 @@ public class DefaultNettyBsonLowLevelReader extends NettyBsonLowLevelReader {
       Entry<?> entry = readDocumentEntry(significantSlice);
       values.put(entry.getKey(), entry.getValue());
     }
-    return new MapBasedBsonDocument(values);
+    return DefaultBsonValues.newDocument(values);
   }
 
   @Override
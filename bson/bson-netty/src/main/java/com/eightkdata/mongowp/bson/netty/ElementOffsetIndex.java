@@ -0,0 +1,177 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.bson.netty;
+
+import com.eightkdata.mongowp.bson.netty.annotations.ConservesIndexes;
+import com.eightkdata.mongowp.bson.netty.annotations.Tight;
+import com.google.common.base.Charsets;
+import io.netty.buffer.ByteBuf;
+
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+/**
+ * The offsets of the elements of an encoded document or array, so they can be accessed without
+ * parsing the elements before them.
+ *
+ * <p>Offsets are stored on a primitive array. Document indexes also store the hash of each key
+ * and an open addressing table from hashes to positions, so keys are found without decoding
+ * them. The hash of a key is the {@link String#hashCode() hash code} of its UTF-8 bytes, which
+ * is the hash code of the key when it only contains ASCII characters.
+ */
+final class ElementOffsetIndex {
+
+  private static final int[] NO_INTS = new int[0];
+
+  private final int[] offsets;
+  private final int size;
+  @Nullable
+  private final int[] hashes;
+  @Nullable
+  private final int[] table;
+
+  private ElementOffsetIndex(int[] offsets, int size, @Nullable int[] hashes) {
+    this.offsets = offsets;
+    this.size = size;
+    this.hashes = hashes;
+    if (hashes == null) {
+      this.table = null;
+    } else {
+      this.table = new int[Integer.highestOneBit(Math.max(size, 1) * 2 - 1) * 2];
+      int mask = table.length - 1;
+      for (int i = 0; i < size; i++) {
+        int slot = spread(hashes[i]) & mask;
+        while (table[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        table[slot] = i + 1;
+      }
+    }
+  }
+
+  /**
+   * Indexes the elements of an array.
+   *
+   * @param elements the elements of the array, from the first one to the final 0x00
+   */
+  static ElementOffsetIndex forArray(@Tight @ConservesIndexes ByteBuf elements)
+      throws NettyBsonReaderException {
+    return build(elements, false);
+  }
+
+  /**
+   * Indexes the elements of a document.
+   *
+   * @param elements the elements of the document, from the first one to the final 0x00
+   */
+  static ElementOffsetIndex forDocument(@Tight @ConservesIndexes ByteBuf elements)
+      throws NettyBsonReaderException {
+    return build(elements, true);
+  }
+
+  private static ElementOffsetIndex build(ByteBuf elements, boolean hashKeys)
+      throws NettyBsonReaderException {
+    int[] offsets = NO_INTS;
+    int[] hashes = hashKeys ? NO_INTS : null;
+    int size = 0;
+    int index = elements.readerIndex();
+    byte typeByte = elements.getByte(index);
+    while (typeByte != 0x00) {
+      if (size == offsets.length) {
+        int newLength = Math.max(8, size * 2);
+        offsets = Arrays.copyOf(offsets, newLength);
+        if (hashes != null) {
+          hashes = Arrays.copyOf(hashes, newLength);
+        }
+      }
+      offsets[size] = index;
+      int keyEnd = ParsingTools.getCStringEnd(elements, index + 1);
+      if (hashes != null) {
+        hashes[size] = hash(elements, index + 1, keyEnd);
+      }
+      size++;
+      index = keyEnd + 1 + ParsingTools.getValueLength(elements, keyEnd + 1, typeByte);
+      typeByte = elements.getByte(index);
+    }
+    return new ElementOffsetIndex(offsets, size, hashes);
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the offset of the element at the given position.
+   *
+   * @throws IndexOutOfBoundsException if there is no element at that position
+   */
+  int getOffset(int position) {
+    if (position < 0 || position >= size) {
+      throw new IndexOutOfBoundsException("Index: " + position + ", Size: " + size);
+    }
+    return offsets[position];
+  }
+
+  /**
+   * Returns the offset of the first element with the given key or -1 if there is none.
+   *
+   * @param elements the buffer this index was built from
+   */
+  int find(@Tight @ConservesIndexes ByteBuf elements, String key) {
+    assert hashes != null && table != null : "Array indexes cannot be used to find keys";
+    byte[] utf8 = null;
+    int hash;
+    if (ParsingTools.isAscii(key)) {
+      hash = key.hashCode();
+    } else {
+      utf8 = key.getBytes(Charsets.UTF_8);
+      hash = hash(utf8);
+    }
+    int mask = table.length - 1;
+    for (int slot = spread(hash) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+      int position = table[slot] - 1;
+      if (hashes[position] == hash
+          && ParsingTools.cstringEquals(elements, offsets[position] + 1, key, utf8)) {
+        return offsets[position];
+      }
+    }
+    return -1;
+  }
+
+  private static int hash(ByteBuf byteBuf, int from, int to) {
+    int hash = 0;
+    for (int i = from; i < to; i++) {
+      hash = 31 * hash + (byteBuf.getByte(i) & 0xFF);
+    }
+    return hash;
+  }
+
+  private static int hash(byte[] bytes) {
+    int hash = 0;
+    for (byte b : bytes) {
+      hash = 31 * hash + (b & 0xFF);
+    }
+    return hash;
+  }
+
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+}
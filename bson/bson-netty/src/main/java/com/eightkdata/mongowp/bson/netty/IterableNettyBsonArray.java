@@ -21,8 +21,7 @@ package com.eightkdata.mongowp.bson.netty;
 import com.eightkdata.mongowp.bson.BsonValue;
 import com.eightkdata.mongowp.bson.abst.AbstractIterableBasedBsonArray;
 import com.eightkdata.mongowp.bson.impl.ListBsonArray;
-import com.eightkdata.mongowp.bson.netty.annotations.Loose;
-import com.eightkdata.mongowp.bson.netty.annotations.ModifiesIndexes;
+import com.eightkdata.mongowp.bson.netty.annotations.ConservesIndexes;
 import com.eightkdata.mongowp.bson.netty.annotations.Tight;
 import com.google.common.collect.Lists;
 import com.google.common.collect.UnmodifiableIterator;
@@ -33,22 +32,31 @@ import java.io.ObjectStreamException;
 import java.util.NoSuchElementException;
 
 /**
+ * An array that is parsed lazily from the buffer that contains it.
  *
+ * <p>Iterating the array parses its elements one by one. The first random access builds an
+ * {@link ElementOffsetIndex} of the array, so next accesses only parse the requested element.
  */
 @SuppressFBWarnings(value = {"SE_BAD_FIELD", "SE_NO_SERIALVERSIONID"},
     justification = "writeReplace is used")
-public class IterableNettyBsonArray extends AbstractIterableBasedBsonArray {
+public class IterableNettyBsonArray extends AbstractIterableBasedBsonArray
+    implements ByteBufBackedBsonValue {
 
-  @Loose
+  @Tight
   private final ByteBuf byteBuf;
   private final OffHeapNettyBsonLowLevelReader offHeapReader;
+  /**
+   * Built on the first random access. It is immutable, so it can be shared without
+   * synchronization at the cost of building it more than once.
+   */
+  private ElementOffsetIndex offsetIndex;
 
   /**
    *
-   * @param byteBuf       it must include the final 0x00
+   * @param byteBuf       the whole array, from its length to the final 0x00
    * @param offHeapReader
    */
-  public IterableNettyBsonArray(@Loose @ModifiesIndexes ByteBuf byteBuf,
+  public IterableNettyBsonArray(@Tight @ConservesIndexes ByteBuf byteBuf,
       OffHeapNettyBsonLowLevelReader offHeapReader) {
     this.byteBuf = byteBuf;
     this.offHeapReader = offHeapReader;
@@ -56,7 +64,75 @@ public class IterableNettyBsonArray extends AbstractIterableBasedBsonArray {
 
   @Override
   public UnmodifiableIterator<BsonValue<?>> iterator() {
-    return new MyIterator(byteBuf.slice(), offHeapReader);
+    return new MyIterator(getElements(), offHeapReader);
+  }
+
+  @Override
+  public BsonValue<?> get(int index) {
+    ByteBuf elements = getElements();
+    int offset = getOffsetIndex(elements).getOffset(index);
+    try {
+      return offHeapReader.readArrayEntry(elements.readerIndex(offset));
+    } catch (NettyBsonReaderException ex) {
+      throw new NettyBsonReaderRuntimeException(ex);
+    }
+  }
+
+  @Override
+  public int size() {
+    return getOffsetIndex(getElements()).size();
+  }
+
+  private ByteBuf getElements() {
+    return byteBuf.slice(byteBuf.readerIndex() + 4, byteBuf.readableBytes() - 4);
+  }
+
+  private ElementOffsetIndex getOffsetIndex(ByteBuf elements) {
+    ElementOffsetIndex index = offsetIndex;
+    if (index == null) {
+      try {
+        index = ElementOffsetIndex.forArray(elements);
+      } catch (NettyBsonReaderException ex) {
+        throw new NettyBsonReaderRuntimeException(ex);
+      }
+      offsetIndex = index;
+    }
+    return index;
+  }
+
+  /**
+   * Two lazily parsed arrays whose encodings are equal are equal, so they are compared without
+   * parsing them. Otherwise they are compared entry by entry.
+   */
+  @Override
+  public int compareTo(BsonValue<?> obj) {
+    if (hasSameEncoding(obj)) {
+      return 0;
+    }
+    return super.compareTo(obj);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (hasSameEncoding(obj)) {
+      return true;
+    }
+    return super.equals(obj);
+  }
+
+  private boolean hasSameEncoding(Object obj) {
+    return obj instanceof IterableNettyBsonArray
+        && byteBuf.equals(((IterableNettyBsonArray) obj).byteBuf);
+  }
+
+  @Override
+  public int encodedSize() {
+    return byteBuf.readableBytes();
+  }
+
+  @Override
+  public ByteBuf getEncodedBytes() {
+    return byteBuf.slice();
   }
 
   private Object writeReplace() throws ObjectStreamException {
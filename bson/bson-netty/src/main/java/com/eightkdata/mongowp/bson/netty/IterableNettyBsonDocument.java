@@ -19,10 +19,10 @@
 package com.eightkdata.mongowp.bson.netty;
 
 import com.eightkdata.mongowp.bson.BsonDocument;
+import com.eightkdata.mongowp.bson.BsonValue;
 import com.eightkdata.mongowp.bson.abst.AbstractIterableBasedBsonDocument;
 import com.eightkdata.mongowp.bson.impl.ListBasedBsonDocument;
-import com.eightkdata.mongowp.bson.netty.annotations.Loose;
-import com.eightkdata.mongowp.bson.netty.annotations.ModifiesIndexes;
+import com.eightkdata.mongowp.bson.netty.annotations.ConservesIndexes;
 import com.eightkdata.mongowp.bson.netty.annotations.Tight;
 import com.google.common.collect.Lists;
 import com.google.common.collect.UnmodifiableIterator;
@@ -33,22 +33,32 @@ import java.io.ObjectStreamException;
 import java.util.NoSuchElementException;
 
 /**
+ * A document that is parsed lazily from the buffer that contains it.
  *
+ * <p>Iterating the document parses its elements one by one. The first random access by key
+ * builds an {@link ElementOffsetIndex} of the document, so next accesses only parse the value
+ * that is looked up.
  */
 @SuppressFBWarnings(value = {"SE_BAD_FIELD", "SE_NO_SERIALVERSIONID"},
     justification = "writeReplace is used")
-public class IterableNettyBsonDocument extends AbstractIterableBasedBsonDocument {
+public class IterableNettyBsonDocument extends AbstractIterableBasedBsonDocument
+    implements ByteBufBackedBsonValue {
 
-  @Loose
+  @Tight
   private final ByteBuf byteBuf;
   private final OffHeapNettyBsonLowLevelReader offHeapReader;
+  /**
+   * Built on the first random access. It is immutable, so it can be shared without
+   * synchronization at the cost of building it more than once.
+   */
+  private ElementOffsetIndex offsetIndex;
 
   /**
    *
-   * @param byteBuf       it must include the final 0x00
+   * @param byteBuf       the whole document, from its length to the final 0x00
    * @param offHeapReader
    */
-  public IterableNettyBsonDocument(@Loose @ModifiesIndexes ByteBuf byteBuf,
+  public IterableNettyBsonDocument(@Tight @ConservesIndexes ByteBuf byteBuf,
       OffHeapNettyBsonLowLevelReader offHeapReader) {
     this.byteBuf = byteBuf;
     this.offHeapReader = offHeapReader;
@@ -56,7 +66,99 @@ public class IterableNettyBsonDocument extends AbstractIterableBasedBsonDocument
 
   @Override
   public UnmodifiableIterator<Entry<?>> iterator() {
-    return new MyIterator(byteBuf.slice(), offHeapReader);
+    return new MyIterator(getElements(), offHeapReader);
+  }
+
+  @Override
+  public BsonValue<?> get(String key) {
+    ByteBuf elements = getElements();
+    int offset = getOffsetIndex(elements).find(elements, key);
+    if (offset < 0) {
+      return null;
+    }
+    try {
+      //array entries are read skipping their keys, so the key is not decoded
+      return offHeapReader.readArrayEntry(elements.readerIndex(offset));
+    } catch (NettyBsonReaderException ex) {
+      throw new NettyBsonReaderRuntimeException(ex);
+    }
+  }
+
+  @Override
+  public boolean containsKey(String key) {
+    ByteBuf elements = getElements();
+    return getOffsetIndex(elements).find(elements, key) >= 0;
+  }
+
+  @Override
+  public Entry<?> getEntry(String key) {
+    ByteBuf elements = getElements();
+    int offset = getOffsetIndex(elements).find(elements, key);
+    if (offset < 0) {
+      return null;
+    }
+    try {
+      return offHeapReader.readDocumentEntry(elements.readerIndex(offset));
+    } catch (NettyBsonReaderException ex) {
+      throw new NettyBsonReaderRuntimeException(ex);
+    }
+  }
+
+  @Override
+  public int size() {
+    return getOffsetIndex(getElements()).size();
+  }
+
+  private ByteBuf getElements() {
+    return byteBuf.slice(byteBuf.readerIndex() + 4, byteBuf.readableBytes() - 4);
+  }
+
+  private ElementOffsetIndex getOffsetIndex(ByteBuf elements) {
+    ElementOffsetIndex index = offsetIndex;
+    if (index == null) {
+      try {
+        index = ElementOffsetIndex.forDocument(elements);
+      } catch (NettyBsonReaderException ex) {
+        throw new NettyBsonReaderRuntimeException(ex);
+      }
+      offsetIndex = index;
+    }
+    return index;
+  }
+
+  /**
+   * Two lazily parsed documents whose encodings are equal are equal, so they are compared without
+   * parsing them. Otherwise they are compared entry by entry.
+   */
+  @Override
+  public int compareTo(BsonValue<?> obj) {
+    if (hasSameEncoding(obj)) {
+      return 0;
+    }
+    return super.compareTo(obj);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (hasSameEncoding(obj)) {
+      return true;
+    }
+    return super.equals(obj);
+  }
+
+  private boolean hasSameEncoding(Object obj) {
+    return obj instanceof IterableNettyBsonDocument
+        && byteBuf.equals(((IterableNettyBsonDocument) obj).byteBuf);
+  }
+
+  @Override
+  public int encodedSize() {
+    return byteBuf.readableBytes();
+  }
+
+  @Override
+  public ByteBuf getEncodedBytes() {
+    return byteBuf.slice();
   }
 
   private Object writeReplace() throws ObjectStreamException {
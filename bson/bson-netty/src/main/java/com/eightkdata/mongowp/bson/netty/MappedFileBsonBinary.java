@@ -0,0 +1,76 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.bson.netty;
+
+import com.eightkdata.mongowp.bson.BinarySubtype;
+import com.google.common.base.Preconditions;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A binary whose content is a read only memory mapped region of a file.
+ *
+ * <p>The content is not loaded on the heap. When it is written on a
+ * {@link io.netty.buffer.CompositeByteBuf} by {@link NettyBsonDocumentWriter} the mapped region
+ * is appended as a component, so big binaries like file chunks are sent to the socket without
+ * copying them. The region is unmapped when the binary and the buffers that share it are garbage
+ * collected, so the file can be closed once the binary is created.
+ */
+public class MappedFileBsonBinary extends NettyBsonBsonBinary {
+
+  private static final long serialVersionUID = -2916624779547513604L;
+
+  private MappedFileBsonBinary(byte numericSubtype, BinarySubtype subtype, FileChannel channel,
+      long position, int length) throws IOException {
+    super(numericSubtype, subtype,
+        Unpooled.wrappedBuffer(channel.map(MapMode.READ_ONLY, position, length)));
+  }
+
+  /**
+   * Creates a binary whose content is the given region of the file.
+   *
+   * @param channel  a channel opened to read the file
+   * @param position the position of the region on the file
+   * @param length   the length in bytes of the region, that must be contained on the file
+   * @throws IOException if the region cannot be mapped
+   */
+  public static MappedFileBsonBinary map(FileChannel channel, long position, int length,
+      BinarySubtype subtype, byte numericSubtype) throws IOException {
+    Preconditions.checkArgument(position >= 0 && length >= 0,
+        "The position and the length must be non negative");
+    Preconditions.checkArgument(position + length <= channel.size(),
+        "The region ends after the end of the file");
+    return new MappedFileBsonBinary(numericSubtype, subtype, channel, position, length);
+  }
+
+  /**
+   * Creates a {@link BinarySubtype#GENERIC generic} binary whose content is the given region of
+   * the file.
+   *
+   * @see #map(FileChannel, long, int, BinarySubtype, byte)
+   */
+  public static MappedFileBsonBinary map(FileChannel channel, long position, int length)
+      throws IOException {
+    return map(channel, position, length, BinarySubtype.GENERIC, (byte) 0x00);
+  }
+
+}
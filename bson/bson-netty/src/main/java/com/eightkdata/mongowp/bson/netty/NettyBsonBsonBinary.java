@@ -19,15 +19,22 @@
 package com.eightkdata.mongowp.bson.netty;
 
 import com.eightkdata.mongowp.bson.BinarySubtype;
+import com.eightkdata.mongowp.bson.BsonValue;
 import com.eightkdata.mongowp.bson.abst.AbstractBsonBinary;
+import com.eightkdata.mongowp.bson.impl.ByteArrayBsonBinary;
 import com.eightkdata.mongowp.bson.netty.annotations.ModifiesIndexes;
 import com.eightkdata.mongowp.bson.netty.annotations.Tight;
 import com.eightkdata.mongowp.bson.utils.NonIoByteSource;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+import java.io.ObjectStreamException;
 
 /**
  *
  */
+@SuppressFBWarnings(value = "SE_BAD_FIELD", justification = "writeReplace is used")
 public class NettyBsonBsonBinary extends AbstractBsonBinary {
 
   private static final long serialVersionUID = 6766481057628149423L;
@@ -35,6 +42,8 @@ public class NettyBsonBsonBinary extends AbstractBsonBinary {
   private final byte numericSubtype;
   private final int length;
   private final BinarySubtype subtype;
+  @Tight
+  private final ByteBuf data;
   private final NonIoByteSource byteSource;
 
   public NettyBsonBsonBinary(byte numericSubtype, BinarySubtype subtype,
@@ -42,6 +51,7 @@ public class NettyBsonBsonBinary extends AbstractBsonBinary {
     this.numericSubtype = numericSubtype;
     this.subtype = subtype;
     length = data.readableBytes();
+    this.data = data;
     byteSource = new NonIoByteSource(new ByteBufByteSource(data));
   }
 
@@ -65,4 +75,50 @@ public class NettyBsonBsonBinary extends AbstractBsonBinary {
     return byteSource;
   }
 
+  /**
+   * Returns the buffer that contains the bytes of this binary.
+   */
+  @Tight
+  ByteBuf getData() {
+    return data;
+  }
+
+  /**
+   * Compares the bytes of both binaries without copying them if the other one is also a
+   * {@link NettyBsonBsonBinary}.
+   */
+  @Override
+  public int compareTo(BsonValue<?> obj) {
+    if (!(obj instanceof NettyBsonBsonBinary)) {
+      return super.compareTo(obj);
+    }
+    NettyBsonBsonBinary other = (NettyBsonBsonBinary) obj;
+    int diff = length - other.length;
+    if (diff != 0) {
+      return diff;
+    }
+    diff = numericSubtype - other.numericSubtype;
+    if (diff != 0) {
+      return diff;
+    }
+    return ByteBufUtil.compare(data, other.data);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj instanceof NettyBsonBsonBinary) {
+      NettyBsonBsonBinary other = (NettyBsonBsonBinary) obj;
+      return subtype == other.subtype && ByteBufUtil.equals(data, other.data);
+    }
+    return super.equals(obj);
+  }
+
+  /**
+   * Replaces this binary, and the ones of the subclasses, by a heap copy, as the buffer is not
+   * serializable.
+   */
+  protected Object writeReplace() throws ObjectStreamException {
+    return new ByteArrayBsonBinary(subtype, numericSubtype, byteSource.read());
+  }
+
 }
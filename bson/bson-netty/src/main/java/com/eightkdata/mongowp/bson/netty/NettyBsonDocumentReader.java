@@ -22,14 +22,24 @@ import static com.eightkdata.mongowp.bson.utils.BsonDocumentReader.AllocationTyp
 import static com.eightkdata.mongowp.bson.utils.BsonDocumentReader.AllocationType.OFFHEAP;
 import static com.eightkdata.mongowp.bson.utils.BsonDocumentReader.AllocationType.OFFHEAP_VALUES;
 
+import com.eightkdata.mongowp.bson.BsonArray;
 import com.eightkdata.mongowp.bson.BsonDocument;
+import com.eightkdata.mongowp.bson.BsonType;
+import com.eightkdata.mongowp.bson.BsonValue;
+import com.eightkdata.mongowp.bson.impl.ListBsonArray;
 import com.eightkdata.mongowp.bson.netty.annotations.Loose;
 import com.eightkdata.mongowp.bson.netty.annotations.ModifiesIndexes;
 import com.eightkdata.mongowp.bson.utils.BsonDocumentReader;
+import com.eightkdata.mongowp.bson.utils.DefaultBsonValues;
+import com.eightkdata.mongowp.bson.utils.Projection;
 import io.netty.buffer.ByteBuf;
 
+import java.util.ArrayList;
 import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 
 /**
@@ -52,18 +62,93 @@ public class NettyBsonDocumentReader implements BsonDocumentReader<ByteBuf> {
   @Override
   public BsonDocument readDocument(AllocationType heapAlgorithm,
       @Loose @ModifiesIndexes ByteBuf source) throws NettyBsonReaderException {
-    NettyBsonLowLevelReader reader = readerMap.get(heapAlgorithm);
+    return getReader(heapAlgorithm).readDocument(source);
+  }
+
+  /**
+   * Reads a document from the source, materializing only the fields selected by the given
+   * projection.
+   *
+   * <p>Fields that are not selected are skipped using their length prefixes, without parsing
+   * them. Selected values are read with the given allocation type, while the documents and
+   * arrays that contain them are created on the heap.
+   */
+  public BsonDocument readDocument(AllocationType heapAlgorithm,
+      @Loose @ModifiesIndexes ByteBuf source, Projection projection)
+      throws NettyBsonReaderException {
+    NettyBsonLowLevelReader reader = getReader(heapAlgorithm);
+    int length = source.getInt(source.readerIndex());
+    BsonDocument result = readProjectedDocument(new NettyBsonEventReader(source), reader,
+        projection);
+    source.skipBytes(length);
+    return result;
+  }
 
+  private NettyBsonLowLevelReader getReader(AllocationType heapAlgorithm) {
+    AllocationType algorithm = heapAlgorithm;
+    NettyBsonLowLevelReader reader = readerMap.get(algorithm);
+    while (reader == null && algorithm.getLessRestrictive() != null) {
+      algorithm = algorithm.getLessRestrictive();
+      reader = readerMap.get(algorithm);
+    }
     if (reader == null) {
-      AllocationType previousAlgorithm = heapAlgorithm.getLessRestrictive();
-      while (reader == null && previousAlgorithm != null) {
-        reader = readerMap.get(heapAlgorithm);
+      throw new AssertionError("There is no reader that support " + heapAlgorithm
+          + " or a less restrictive algorithm");
+    }
+    return reader;
+  }
+
+  private BsonDocument readProjectedDocument(NettyBsonEventReader events,
+      NettyBsonLowLevelReader reader, Projection projection) throws NettyBsonReaderException {
+    LinkedHashMap<String, BsonValue<?>> values = new LinkedHashMap<>();
+    for (BsonType type = events.next(); type != null; type = events.next()) {
+      Projection fieldProjection = getFieldProjection(events, projection);
+      if (fieldProjection == null || fieldProjection.isLeaf()) {
+        //leaves select the whole value on inclusive projections and discard it otherwise
+        if ((fieldProjection == null) != projection.isInclusive()) {
+          values.put(events.readKey(), events.readValue(reader));
+        }
+      } else if (type == BsonType.DOCUMENT || type == BsonType.ARRAY) {
+        String key = events.readKey();
+        events.enterDocument();
+        BsonValue<?> projected = type == BsonType.DOCUMENT
+            ? readProjectedDocument(events, reader, fieldProjection)
+            : readProjectedArray(events, reader, fieldProjection);
+        events.exitDocument();
+        values.put(key, projected);
+      } else if (!projection.isInclusive()) {
+        //paths that go through scalar values do not exclude them
+        values.put(events.readKey(), events.readValue(reader));
       }
-      if (reader == null) {
-        throw new AssertionError("There is no reader that support " + heapAlgorithm
-            + " or a less restrictive algorithm");
+    }
+    return DefaultBsonValues.newDocument(values);
+  }
+
+  private BsonArray readProjectedArray(NettyBsonEventReader events,
+      NettyBsonLowLevelReader reader, Projection projection) throws NettyBsonReaderException {
+    List<BsonValue<?>> values = new ArrayList<>();
+    for (BsonType type = events.next(); type != null; type = events.next()) {
+      if (type == BsonType.DOCUMENT || type == BsonType.ARRAY) {
+        events.enterDocument();
+        values.add(type == BsonType.DOCUMENT
+            ? readProjectedDocument(events, reader, projection)
+            : readProjectedArray(events, reader, projection));
+        events.exitDocument();
+      } else if (!projection.isInclusive()) {
+        values.add(events.readValue(reader));
+      }
+    }
+    return new ListBsonArray(values);
+  }
+
+  @Nullable
+  private static Projection getFieldProjection(NettyBsonEventReader events,
+      Projection projection) {
+    for (int i = 0; i < projection.getFieldCount(); i++) {
+      if (events.keyEquals(projection.getFieldName(i))) {
+        return projection.getFieldProjection(i);
       }
     }
-    return reader.readDocument(source);
+    return null;
   }
 }
@@ -38,61 +38,302 @@ import com.eightkdata.mongowp.bson.BsonObjectId;
 import com.eightkdata.mongowp.bson.BsonRegex;
 import com.eightkdata.mongowp.bson.BsonString;
 import com.eightkdata.mongowp.bson.BsonTimestamp;
+import com.eightkdata.mongowp.bson.BsonType;
 import com.eightkdata.mongowp.bson.BsonUndefined;
 import com.eightkdata.mongowp.bson.BsonValue;
 import com.eightkdata.mongowp.bson.BsonValueVisitor;
+import com.eightkdata.mongowp.bson.impl.ArrayBasedBsonDocument;
+import com.eightkdata.mongowp.bson.netty.annotations.Tight;
 import com.eightkdata.mongowp.bson.utils.NonIoByteSource;
 import com.google.common.base.Charsets;
 import com.google.common.primitives.UnsignedInteger;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.SwappedByteBuf;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.inject.Singleton;
 
 /**
+ * Writes {@link BsonDocument documents} into {@link ByteBuf byte buffers}.
  *
+ * <p>Documents and arrays that implement {@link ByteBufBackedBsonValue} are not encoded again:
+ * their bytes are copied or, if the target is a {@link CompositeByteBuf} and they are big enough,
+ * appended to it as a retained slice. The content of {@link NettyBsonBsonBinary binaries} is
+ * written the same way.
  */
 @Singleton
 public class NettyBsonDocumentWriter {
 
+  /**
+   * Encoded values smaller than this are copied even if the target is a composite buffer, as
+   * copying them is cheaper than managing a new component.
+   */
+  static final int MIN_ZERO_COPY_BYTES = 512;
   private static final WriterBsonValueVisitor VISITOR = new WriterBsonValueVisitor();
+  /**
+   * The keys of the first array elements, encoded as C-strings.
+   */
+  private static final byte[][] INDEX_KEYS = new byte[1024][];
+
+  static {
+    for (int i = 0; i < INDEX_KEYS.length; i++) {
+      INDEX_KEYS[i] = (Integer.toString(i) + '\0').getBytes(Charsets.US_ASCII);
+    }
+  }
 
+  /**
+   * Writes the given document on the given buffer.
+   *
+   * <p>If the buffer is a {@link CompositeByteBuf} (or a {@link ByteBuf#order(java.nio.ByteOrder)
+   * swapped view} of it), the content of {@link ByteBufBackedBsonValue} documents can be added to
+   * it as {@linkplain ByteBuf#retain() retained} slices, so the buffers that back them can be
+   * released before the composite is.
+   */
   public void writeInto(ByteBuf byteBuf, BsonDocument doc) {
-    doc.accept(VISITOR, byteBuf);
+    VISITOR.visit(doc, byteBuf);
+  }
+
+  /**
+   * Writes the given documents on the given buffer, as {@link #writeInto(ByteBuf, BsonDocument)}
+   * does.
+   *
+   * <p>The documents are iterated once. The buffer is grown once to fit the ones that will be
+   * copied, measured with {@link BsonDocument#encodedSize()}, before any of them is written, so a
+   * composite buffer gets a single new component instead of one per document.
+   *
+   * @return the number of written documents
+   */
+  public int writeAllInto(ByteBuf byteBuf, Iterable<? extends BsonDocument> docs) {
+    List<BsonDocument> toWrite = new ArrayList<>();
+    long copiedBytes = 0;
+    for (BsonDocument doc : docs) {
+      int size = doc.encodedSize();
+      if (!(doc instanceof ByteBufBackedBsonValue) || size < MIN_ZERO_COPY_BYTES) {
+        copiedBytes += size;
+      }
+      toWrite.add(doc);
+    }
+    long required = byteBuf.writerIndex() + copiedBytes;
+    if (required > byteBuf.capacity() && required <= byteBuf.maxCapacity()) {
+      byteBuf.capacity((int) required);
+    }
+    for (BsonDocument doc : toWrite) {
+      VISITOR.visit(doc, byteBuf);
+    }
+    return toWrite.size();
+  }
+
+  /**
+   * Writes the encoded bytes of a {@link ByteBufBackedBsonValue} on the given buffer.
+   */
+  static void writeEncoded(ByteBuf target, ByteBufBackedBsonValue value) {
+    writeContent(target, value.getEncodedBytes());
+  }
+
+  /**
+   * Writes the readable bytes of the given buffer on the target, copying them or, if the target
+   * is a composite buffer and they are big enough, appending a retained slice of them.
+   */
+  static void writeContent(ByteBuf target, @Tight ByteBuf content) {
+    int length = content.readableBytes();
+    CompositeByteBuf composite = length < MIN_ZERO_COPY_BYTES ? null : asComposite(target);
+    if (composite == null) {
+      target.writeBytes(content, content.readerIndex(), length);
+    } else {
+      int writerIndex = composite.writerIndex();
+      insertComponent(composite, writerIndex, content.slice().retain());
+      composite.writerIndex(writerIndex + length);
+    }
+  }
+
+  /**
+   * Inserts the given component at the given index of the composite. The capacity after the
+   * index, like the one reserved by {@link #writeAllInto(ByteBuf, Iterable)}, is kept after the
+   * new component, so the composite does not need to grow again for the next copied bytes.
+   */
+  private static void insertComponent(CompositeByteBuf composite, int index, ByteBuf component) {
+    if (index == composite.capacity()) {
+      composite.addComponent(component);
+      return;
+    }
+    int componentIndex = composite.toComponentIndex(index);
+    int offset = index - composite.toByteIndex(componentIndex);
+    if (offset == 0) {
+      composite.addComponent(componentIndex, component);
+      return;
+    }
+    //the component that contains the index is split around the new one. Both halves share the
+    //buffer of the removed component, which is released once
+    ByteBuf split = composite.internalComponent(componentIndex);
+    int splitLength = split.readableBytes();
+    split.retain(2);
+    composite.removeComponent(componentIndex);
+    composite.addComponents(componentIndex, split.slice(0, offset), component,
+        split.slice(offset, splitLength - offset));
+  }
+
+  private static CompositeByteBuf asComposite(ByteBuf byteBuf) {
+    if (byteBuf instanceof CompositeByteBuf) {
+      return (CompositeByteBuf) byteBuf;
+    }
+    if (byteBuf instanceof SwappedByteBuf) {
+      //SwappedByteBuf.unwrap() returns the buffer wrapped by the swapped one, but swapping the
+      //order again returns the swapped buffer itself
+      ByteOrder originalOrder = byteBuf.order() == ByteOrder.BIG_ENDIAN
+          ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+      ByteBuf original = byteBuf.order(originalOrder);
+      if (original instanceof CompositeByteBuf) {
+        return (CompositeByteBuf) original;
+      }
+    }
+    return null;
   }
 
   private static class WriterBsonValueVisitor implements BsonValueVisitor<Void, ByteBuf> {
 
     void writeCString(ByteBuf buf, String str) {
-      buf.writeBytes(str.getBytes(Charsets.UTF_8));
+      writeUtf8(buf, str);
       buf.writeByte(0x00);
     }
 
     void writeString(ByteBuf buf, String str) {
-      byte[] bytes = str.getBytes(Charsets.UTF_8);
-      int length = bytes.length + 1;
+      final int lengthIndex = buf.writerIndex();
+      buf.writeInt(0); // reserve space for the string length
+
+      writeUtf8(buf, str);
+      buf.writeByte(0x00);
+
+      buf.setInt(lengthIndex, buf.writerIndex() - lengthIndex - 4);
+    }
 
-      buf.writeInt(length).writeBytes(bytes).writeByte(0x00);
+    /**
+     * Encodes the given string as UTF-8 directly on the buffer. Unpaired surrogates are written as
+     * '?', like {@link String#getBytes(java.nio.charset.Charset)} does.
+     */
+    private static void writeUtf8(ByteBuf buf, String str) {
+      int length = str.length();
+      buf.ensureWritable(length);
+      int i = 0;
+      while (i < length && str.charAt(i) < 0x80) {
+        buf.writeByte(str.charAt(i));
+        i++;
+      }
+      for (; i < length; i++) {
+        char c = str.charAt(i);
+        if (c < 0x80) {
+          buf.writeByte(c);
+        } else if (c < 0x800) {
+          buf.writeByte(0xC0 | (c >> 6));
+          buf.writeByte(0x80 | (c & 0x3F));
+        } else if (!Character.isSurrogate(c)) {
+          buf.writeByte(0xE0 | (c >> 12));
+          buf.writeByte(0x80 | ((c >> 6) & 0x3F));
+          buf.writeByte(0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && i + 1 < length
+            && Character.isLowSurrogate(str.charAt(i + 1))) {
+          i++;
+          int codePoint = Character.toCodePoint(c, str.charAt(i));
+          buf.writeByte(0xF0 | (codePoint >> 18));
+          buf.writeByte(0x80 | ((codePoint >> 12) & 0x3F));
+          buf.writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+          buf.writeByte(0x80 | (codePoint & 0x3F));
+        } else {
+          buf.writeByte('?');
+        }
+      }
+    }
+
+    /**
+     * Writes the key of the array element with the given index, including the final 0x00.
+     */
+    private static void writeIndexKey(ByteBuf buf, int index) {
+      if (index < INDEX_KEYS.length) {
+        buf.writeBytes(INDEX_KEYS[index]);
+        return;
+      }
+      int digits = 1;
+      for (int remaining = index / 10; remaining > 0; remaining /= 10) {
+        digits++;
+      }
+      buf.ensureWritable(digits + 1);
+      int start = buf.writerIndex();
+      int remaining = index;
+      for (int pos = start + digits - 1; pos >= start; pos--) {
+        buf.setByte(pos, '0' + remaining % 10);
+        remaining /= 10;
+      }
+      buf.writerIndex(start + digits).writeByte(0x00);
+    }
+
+    private static byte getTypeByte(BsonType type) {
+      try {
+        return ParsingTools.getByte(type);
+      } catch (NettyBsonReaderException ex) {
+        throw new AssertionError(ex);
+      }
+    }
+
+    /**
+     * Writes the given value, whose type is the given one. The most common types are written
+     * directly instead of visiting them, which is cheaper when values of many different classes
+     * are written.
+     */
+    void writeValue(ByteBuf buf, BsonValue<?> value, BsonType type) {
+      switch (type) {
+        case DOUBLE:
+          buf.writeDouble(((BsonDouble) value).doubleValue());
+          break;
+        case STRING:
+          visit((BsonString) value, buf);
+          break;
+        case DOCUMENT:
+          visit((BsonDocument) value, buf);
+          break;
+        case ARRAY:
+          visit((BsonArray) value, buf);
+          break;
+        case INT32:
+          buf.writeInt(((BsonInt32) value).intValue());
+          break;
+        case INT64:
+          buf.writeLong(((BsonInt64) value).longValue());
+          break;
+        case BOOLEAN:
+          buf.writeByte(((BsonBoolean) value).getPrimitiveValue() ? 0x01 : 0x00);
+          break;
+        case DATETIME:
+          buf.writeLong(((BsonDateTime) value).getMillisFromUnix());
+          break;
+        case NULL:
+          break;
+        default:
+          value.accept(this, buf);
+      }
     }
 
     @Override
     public Void visit(BsonArray value, ByteBuf arg) {
+      if (value instanceof ByteBufBackedBsonValue) {
+        writeEncoded(arg, (ByteBufBackedBsonValue) value);
+        return null;
+      }
       final int docStart = arg.writerIndex();
       arg.writeInt(0); // reserve space for doc size
 
       int i = 0;
       for (BsonValue<?> child : value) {
-        try {
-          arg.writeByte(ParsingTools.getByte(child.getType()));
-        } catch (NettyBsonReaderException ex) {
-          throw new AssertionError(ex);
-        }
-        writeCString(arg, Integer.toString(i));
+        BsonType type = child.getType();
+        arg.writeByte(getTypeByte(type));
+        writeIndexKey(arg, i);
 
-        child.accept(this, arg);
+        writeValue(arg, child, type);
         i++;
       }
 
@@ -107,6 +348,11 @@ public class NettyBsonDocumentWriter {
 
     @Override
     public Void visit(BsonBinary value, ByteBuf arg) {
+      if (value instanceof NettyBsonBsonBinary) {
+        arg.writeInt(value.size()).writeByte(value.getNumericSubType());
+        writeContent(arg, ((NettyBsonBsonBinary) value).getData());
+        return null;
+      }
       NonIoByteSource byteSource = value.getByteSource();
 
       UnsignedInteger unsignedSize;
@@ -139,19 +385,33 @@ public class NettyBsonDocumentWriter {
 
     @Override
     public Void visit(BsonDocument value, ByteBuf arg) {
+      if (value instanceof ByteBufBackedBsonValue) {
+        writeEncoded(arg, (ByteBufBackedBsonValue) value);
+        return null;
+      }
       final int docStart = arg.writerIndex();
       arg.writeInt(0); // reserve space for doc size
 
-      for (Entry<?> entry : value) {
-        BsonValue<?> child = entry.getValue();
-        try {
-          arg.writeByte(ParsingTools.getByte(child.getType()));
-        } catch (NettyBsonReaderException ex) {
-          throw new AssertionError(ex);
+      if (value instanceof ArrayBasedBsonDocument) {
+        //its keys and values are read by position, so entries are not needed
+        ArrayBasedBsonDocument arrayBased = (ArrayBasedBsonDocument) value;
+        for (int i = 0; i < arrayBased.size(); i++) {
+          BsonValue<?> child = arrayBased.getValue(i);
+          BsonType type = child.getType();
+          arg.writeByte(getTypeByte(type));
+          writeCString(arg, arrayBased.getKey(i));
+
+          writeValue(arg, child, type);
         }
-        writeCString(arg, entry.getKey());
+      } else {
+        for (Entry<?> entry : value) {
+          BsonValue<?> child = entry.getValue();
+          BsonType type = child.getType();
+          arg.writeByte(getTypeByte(type));
+          writeCString(arg, entry.getKey());
 
-        child.accept(this, arg);
+          writeValue(arg, child, type);
+        }
       }
 
       arg.writeByte(0x00);
@@ -249,7 +509,15 @@ public class NettyBsonDocumentWriter {
 
     @Override
     public Void visit(BsonString value, ByteBuf arg) {
-      writeString(arg, value.getValue());
+      if (value instanceof NettyBsonString) {
+        //its bytes are already encoded, so they are copied without decoding them
+        ByteBuf utf8 = ((NettyBsonString) value).getByteBuf();
+        arg.writeInt(utf8.readableBytes() + 1)
+            .writeBytes(utf8, utf8.readerIndex(), utf8.readableBytes())
+            .writeByte(0x00);
+      } else {
+        writeString(arg, value.getValue());
+      }
 
       return null;
     }
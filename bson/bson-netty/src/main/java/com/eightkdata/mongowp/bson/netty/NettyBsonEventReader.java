@@ -0,0 +1,243 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.bson.netty;
+
+import com.eightkdata.mongowp.bson.BsonType;
+import com.eightkdata.mongowp.bson.BsonValue;
+import com.eightkdata.mongowp.bson.netty.annotations.ConservesIndexes;
+import com.eightkdata.mongowp.bson.netty.annotations.Tight;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import io.netty.buffer.ByteBuf;
+
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+/**
+ * A pull parser that reads the elements of an encoded document one by one.
+ *
+ * <p>{@link #next()} moves the parser to the next element of the current document and returns
+ * its type. Then the key and the value of the element can be read with the methods of this
+ * class. Values that are not read are skipped using the lengths embedded on the encoding, so
+ * scanning a document does not decode the values that are not needed. Nested documents and
+ * arrays can be {@link #enterDocument() entered} and {@link #exitDocument() exited}.
+ *
+ * <p>Moving the parser, comparing keys and reading numeric values does not allocate objects.
+ * The parser does not modify the indexes of the buffer and it is not thread safe.
+ */
+public class NettyBsonEventReader {
+
+  private static final int INITIAL_DEPTH = 8;
+
+  private final ByteBuf byteBuf;
+  /**
+   * The index of the final 0x00 of each document that has been entered, starting from the root.
+   */
+  private int[] documentEnds = new int[INITIAL_DEPTH];
+  private int depth;
+  /**
+   * The index of the next element of the current document.
+   */
+  private int position;
+  @Nullable
+  private BsonType currentType;
+  private int elementStart;
+  private int keyEnd;
+  private int valueLength;
+
+  /**
+   * @param byteBuf a buffer whose readable bytes start with a document, from its length to its
+   *                final 0x00
+   */
+  public NettyBsonEventReader(@Tight @ConservesIndexes ByteBuf byteBuf) {
+    this.byteBuf = byteBuf;
+    int start = byteBuf.readerIndex();
+    documentEnds[0] = start + byteBuf.getInt(start) - 1;
+    depth = 1;
+    position = start + 4;
+  }
+
+  /**
+   * Moves the parser to the next element of the current document.
+   *
+   * @return the type of the element or null if there are no more elements on the current
+   *         document
+   * @throws NettyBsonReaderException if the element is malformed
+   */
+  @Nullable
+  public BsonType next() throws NettyBsonReaderException {
+    byte typeByte = byteBuf.getByte(position);
+    if (typeByte == 0x00) {
+      currentType = null;
+      return null;
+    }
+    final BsonType type = ParsingTools.getBsonType(typeByte);
+    final int end = documentEnds[depth - 1];
+    elementStart = position;
+    keyEnd = ParsingTools.getCStringEnd(byteBuf, position + 1);
+    valueLength = ParsingTools.getValueLength(byteBuf, keyEnd + 1, typeByte);
+    position = keyEnd + 1 + valueLength;
+    if (position > end || valueLength < 0) {
+      throw new NettyBsonReaderException("The element at " + elementStart + " exceeds the "
+          + "document that contains it");
+    }
+    currentType = type;
+    return type;
+  }
+
+  /**
+   * Returns the type of the current element or null if the parser is not on an element.
+   */
+  @Nullable
+  public BsonType getCurrentType() {
+    return currentType;
+  }
+
+  /**
+   * Returns the number of documents that have been entered, including the root one.
+   */
+  public int getDepth() {
+    return depth;
+  }
+
+  /**
+   * Returns true iff the key of the current element is equal to the given one.
+   */
+  public boolean keyEquals(String key) {
+    checkOnElement();
+    byte[] utf8 = ParsingTools.isAscii(key) ? null : key.getBytes(Charsets.UTF_8);
+    return ParsingTools.cstringEquals(byteBuf, elementStart + 1, key, utf8);
+  }
+
+  /**
+   * Returns a slice that contains the UTF-8 bytes of the key of the current element, without the
+   * final 0x00.
+   */
+  public ByteBuf getKeyBytes() {
+    checkOnElement();
+    return byteBuf.slice(elementStart + 1, keyEnd - elementStart - 1);
+  }
+
+  /**
+   * Decodes the key of the current element.
+   */
+  public String readKey() {
+    checkOnElement();
+    return Utf8Decoder.decode(byteBuf, elementStart + 1, keyEnd - elementStart - 1);
+  }
+
+  public int readInt32() {
+    checkType(BsonType.INT32);
+    return byteBuf.getInt(keyEnd + 1);
+  }
+
+  public long readInt64() {
+    checkType(BsonType.INT64);
+    return byteBuf.getLong(keyEnd + 1);
+  }
+
+  public double readDouble() {
+    checkType(BsonType.DOUBLE);
+    return byteBuf.getDouble(keyEnd + 1);
+  }
+
+  public boolean readBoolean() {
+    checkType(BsonType.BOOLEAN);
+    return byteBuf.getByte(keyEnd + 1) != 0x00;
+  }
+
+  /**
+   * Returns the milliseconds since the Unix epoch of the current datetime element.
+   */
+  public long readDateTime() {
+    checkType(BsonType.DATETIME);
+    return byteBuf.getLong(keyEnd + 1);
+  }
+
+  /**
+   * Decodes the value of the current string element.
+   */
+  public String readString() {
+    checkType(BsonType.STRING);
+    return Utf8Decoder.decode(byteBuf, keyEnd + 1 + 4, valueLength - 4 - 1);
+  }
+
+  /**
+   * Reads the value of the current element using the given reader.
+   *
+   * <p>This method can be used to materialize the values that are needed while a document is
+   * scanned.
+   */
+  public BsonValue<?> readValue(NettyBsonLowLevelReader reader) throws NettyBsonReaderException {
+    checkOnElement();
+    ByteBuf element = byteBuf.slice(elementStart, position - elementStart);
+    return reader.readArrayEntry(element);
+  }
+
+  /**
+   * Skips the value of the current element, so the parser is no longer on it.
+   */
+  public void skipValue() {
+    checkOnElement();
+    currentType = null;
+  }
+
+  /**
+   * Enters the current element, that must be a document or an array, so {@link #next()} returns
+   * its elements. Array elements have their indexes as keys.
+   */
+  public void enterDocument() {
+    if (currentType != BsonType.DOCUMENT && currentType != BsonType.ARRAY) {
+      throw new IllegalStateException("The current element is not a document or an array but "
+          + currentType);
+    }
+    if (depth == documentEnds.length) {
+      documentEnds = Arrays.copyOf(documentEnds, depth * 2);
+    }
+    documentEnds[depth] = position - 1;
+    depth++;
+    position = keyEnd + 1 + 4;
+    currentType = null;
+  }
+
+  /**
+   * Skips the remaining elements of the current document and moves the parser to the element
+   * that follows it on its parent document.
+   */
+  public void exitDocument() {
+    Preconditions.checkState(depth > 1, "The root document cannot be exited");
+    depth--;
+    position = documentEnds[depth] + 1;
+    currentType = null;
+  }
+
+  private void checkOnElement() {
+    Preconditions.checkState(currentType != null, "The parser is not on an element");
+  }
+
+  private void checkType(BsonType expected) {
+    //the message is not built with Preconditions to not allocate its arguments
+    if (currentType != expected) {
+      throw new IllegalStateException("The current element is not a " + expected + " but "
+          + currentType);
+    }
+  }
+
+}
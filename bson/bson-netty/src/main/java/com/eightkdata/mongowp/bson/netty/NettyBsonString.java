@@ -18,13 +18,14 @@
 
 package com.eightkdata.mongowp.bson.netty;
 
+import com.eightkdata.mongowp.bson.BsonValue;
 import com.eightkdata.mongowp.bson.abst.AbstractBsonString;
 import com.eightkdata.mongowp.bson.impl.StringBsonString;
 import com.eightkdata.mongowp.bson.netty.annotations.ModifiesIndexes;
 import com.eightkdata.mongowp.bson.netty.annotations.Tight;
-import com.google.common.base.Charsets;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 
 import java.io.ObjectStreamException;
 
@@ -39,6 +40,8 @@ public class NettyBsonString extends AbstractBsonString {
 
   @Tight
   private final ByteBuf byteBuf;
+  private transient String value;
+  private transient int hash;
 
   public NettyBsonString(@Tight @ModifiesIndexes ByteBuf byteBuf) {
     this.byteBuf = byteBuf;
@@ -46,18 +49,97 @@ public class NettyBsonString extends AbstractBsonString {
 
   @Override
   public String getValue() {
-    return getString(byteBuf);
+    //strings are immutable, so the decoded value can be safely shared without synchronization
+    String result = value;
+    if (result == null) {
+      result = Utf8Decoder.decode(byteBuf);
+      value = result;
+    }
+    return result;
   }
 
-  private String getString(@Tight ByteBuf byteBuf) {
-    int lenght = getStringLenght(byteBuf);
-    byte[] bytes = new byte[lenght];
-    byteBuf.getBytes(0, bytes);
-    return new String(bytes, Charsets.UTF_8);
+  @Override
+  public int encodedSize() {
+    //the length, the bytes and the final 0x00
+    return 4 + byteBuf.readableBytes() + 1;
+  }
+
+  /**
+   * Returns the buffer that contains the UTF-8 bytes of this string, without the final 0x00.
+   */
+  @Tight
+  ByteBuf getByteBuf() {
+    return byteBuf;
+  }
+
+  /**
+   * Compares the UTF-8 bytes of both strings if the other one is also a {@link NettyBsonString},
+   * so none of them has to be decoded.
+   */
+  @Override
+  public int compareTo(BsonValue<?> obj) {
+    if (obj instanceof NettyBsonString) {
+      return compareUtf8(byteBuf, ((NettyBsonString) obj).byteBuf);
+    }
+    return super.compareTo(obj);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj instanceof NettyBsonString) {
+      return ByteBufUtil.equals(byteBuf, ((NettyBsonString) obj).byteBuf);
+    }
+    return super.equals(obj);
+  }
+
+  /**
+   * Returns the hash of the decoded value, which is calculated from the bytes when the string is
+   * ASCII, as then each byte is also the UTF-16 code unit of a character.
+   */
+  @Override
+  public int hashCode() {
+    int result = hash;
+    if (result == 0) {
+      String decoded = value;
+      int index = byteBuf.readerIndex();
+      int length = byteBuf.readableBytes();
+      if (decoded == null && Utf8Decoder.isAscii(byteBuf, index, length)) {
+        for (int i = 0; i < length; i++) {
+          result = 31 * result + byteBuf.getByte(index + i);
+        }
+      } else {
+        result = getValue().hashCode();
+      }
+      hash = result;
+    }
+    return result;
   }
 
-  private int getStringLenght(@Tight ByteBuf byteBuf) {
-    return byteBuf.readableBytes();
+  /**
+   * Compares two UTF-8 strings with the same order than {@link String#compareTo(String)}.
+   *
+   * <p>The UTF-8 byte order is the code point order, which is the UTF-16 code unit order except
+   * for the characters between U+E000 and U+FFFF, which are greater than the supplementary ones
+   * on UTF-16. Their encodings start with 0xEE or 0xEF and the supplementary ones start with 0xF0
+   * or greater, so the result is reversed when the first different bytes are those ones.
+   */
+  private static int compareUtf8(ByteBuf byteBuf1, ByteBuf byteBuf2) {
+    int index1 = byteBuf1.readerIndex();
+    int index2 = byteBuf2.readerIndex();
+    int length1 = byteBuf1.readableBytes();
+    int length2 = byteBuf2.readableBytes();
+    int minLength = Math.min(length1, length2);
+    for (int i = 0; i < minLength; i++) {
+      int byte1 = byteBuf1.getUnsignedByte(index1 + i);
+      int byte2 = byteBuf2.getUnsignedByte(index2 + i);
+      if (byte1 != byte2) {
+        if (byte1 >= 0xEE && byte2 >= 0xEE && (byte1 >= 0xF0) != (byte2 >= 0xF0)) {
+          return byte2 - byte1;
+        }
+        return byte1 - byte2;
+      }
+    }
+    return length1 - length2;
   }
 
   private Object writeReplace() throws ObjectStreamException {
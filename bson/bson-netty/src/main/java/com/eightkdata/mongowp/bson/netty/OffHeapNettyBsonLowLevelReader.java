@@ -39,26 +39,24 @@ public class OffHeapNettyBsonLowLevelReader extends OffHeapValuesNettyBsonLowLev
   @Override
   BsonDocument readDocument(@Loose @ModifiesIndexes ByteBuf byteBuf)
       throws NettyBsonReaderException {
-    int length = byteBuf.readInt();
-    int significantLenght = length - 4; //the final 0x00 must be included
+    int length = byteBuf.getInt(byteBuf.readerIndex());
 
-    ByteBuf significantSlice = byteBuf.readSlice(significantLenght);
+    ByteBuf encodedSlice = byteBuf.readSlice(length); //the length and the final 0x00 are included
 
     assert byteBuf.getByte(byteBuf.readerIndex() - 1) == 0x00;
 
-    return new IterableNettyBsonDocument(significantSlice, this);
+    return new IterableNettyBsonDocument(encodedSlice, this);
   }
 
   @Override
   BsonArray readArray(@Loose @ModifiesIndexes ByteBuf byteBuf)
       throws NettyBsonReaderException {
-    int length = byteBuf.readInt();
-    int significantLenght = length - 4; //the final 0x00 must be included
+    int length = byteBuf.getInt(byteBuf.readerIndex());
 
-    ByteBuf significantSlice = byteBuf.readSlice(significantLenght);
+    ByteBuf encodedSlice = byteBuf.readSlice(length); //the length and the final 0x00 are included
 
     assert byteBuf.getByte(byteBuf.readerIndex() - 1) == 0x00;
 
-    return new IterableNettyBsonArray(significantSlice, this);
+    return new IterableNettyBsonArray(encodedSlice, this);
   }
 }
@@ -43,12 +43,14 @@ import com.eightkdata.mongowp.bson.BinarySubtype;
 import com.eightkdata.mongowp.bson.BsonRegex.Options;
 import com.eightkdata.mongowp.bson.BsonType;
 import com.google.common.primitives.UnsignedBytes;
+import io.netty.buffer.ByteBuf;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.EnumSet;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 /**
  *
@@ -164,6 +166,103 @@ class ParsingTools {
     }
   }
 
+  /**
+   * Returns the number of bytes used by the value of the given type that starts at the given
+   * index, without reading it.
+   *
+   * @param byteBuf    the buffer that contains the value. Its indexes are not modified
+   * @param valueIndex the index where the value starts, just after the key of its element
+   * @param typeByte   the type byte of the element
+   * @throws NettyBsonReaderException if the type is not known or the value is not terminated
+   */
+  protected static int getValueLength(ByteBuf byteBuf, int valueIndex, byte typeByte)
+      throws NettyBsonReaderException {
+    switch (getBsonType(typeByte)) {
+      case UNDEFINED:
+      case NULL:
+      case MIN:
+      case MAX:
+        return 0;
+      case BOOLEAN:
+        return 1;
+      case INT32:
+        return 4;
+      case DOUBLE:
+      case DATETIME:
+      case TIMESTAMP:
+      case INT64:
+        return 8;
+      case OBJECT_ID:
+        return 12;
+      case STRING:
+      case JAVA_SCRIPT:
+      case DEPRECATED:
+        return 4 + byteBuf.getInt(valueIndex);
+      case DOCUMENT:
+      case ARRAY:
+      case JAVA_SCRIPT_WITH_SCOPE:
+        return byteBuf.getInt(valueIndex);
+      case BINARY:
+        return 4 + 1 + byteBuf.getInt(valueIndex);
+      case DB_POINTER:
+        return 4 + byteBuf.getInt(valueIndex) + 12;
+      case REGEX: {
+        int patternEnd = getCStringEnd(byteBuf, valueIndex);
+        return getCStringEnd(byteBuf, patternEnd + 1) + 1 - valueIndex;
+      }
+      default:
+        throw new NettyBsonReaderException("Unexpected bson type 0x"
+            + UnsignedBytes.toString(typeByte, 16));
+    }
+  }
+
+  /**
+   * Returns the index of the 0x00 byte that terminates the C-string that starts at the given
+   * index.
+   */
+  protected static int getCStringEnd(ByteBuf byteBuf, int index) throws NettyBsonReaderException {
+    int end = byteBuf.indexOf(index, byteBuf.writerIndex(), (byte) 0x00);
+    if (end < 0) {
+      throw new NettyBsonReaderException("The C-string that starts at " + index
+          + " is not terminated");
+    }
+    return end;
+  }
+
+  /**
+   * Returns true iff the C-string that starts at the given index is equal to the given string.
+   *
+   * @param utf8 the UTF-8 encoding of the string or null if it only contains ASCII characters,
+   *             in which case it is compared without encoding it
+   */
+  protected static boolean cstringEquals(ByteBuf byteBuf, int index, String str,
+      @Nullable byte[] utf8) {
+    if (utf8 == null) {
+      int length = str.length();
+      for (int i = 0; i < length; i++) {
+        if (byteBuf.getByte(index + i) != str.charAt(i)) {
+          return false;
+        }
+      }
+      return byteBuf.getByte(index + length) == 0x00;
+    }
+    for (int i = 0; i < utf8.length; i++) {
+      if (byteBuf.getByte(index + i) != utf8[i]) {
+        return false;
+      }
+    }
+    return byteBuf.getByte(index + utf8.length) == 0x00;
+  }
+
+  protected static boolean isAscii(String str) {
+    for (int i = 0; i < str.length(); i++) {
+      if (str.charAt(i) >= 0x80) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   protected static BinarySubtype getBinarySubtype(byte readByte) {
     switch (readByte) {
       case 0x00:
@@ -0,0 +1,85 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.bson.netty;
+
+import com.eightkdata.mongowp.bson.netty.annotations.ConservesIndexes;
+import com.eightkdata.mongowp.bson.netty.annotations.Tight;
+import com.google.common.base.Charsets;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Decodes UTF-8 strings stored on {@link ByteBuf ByteBufs}.
+ *
+ * <p>Most keys and values are pure ASCII, so the bytes are first checked eight at a time and, if
+ * none of them has the high bit set, the string is created directly from them, as each ASCII byte
+ * is also the Latin-1 code of the character. This skips the charset decoder and, on JVMs with
+ * compact strings, the result uses the bytes as they are. Other strings are decoded as UTF-8.
+ */
+public final class Utf8Decoder {
+
+  private static final long HIGH_BITS = 0x8080808080808080L;
+
+  private Utf8Decoder() {
+  }
+
+  /**
+   * Decodes the readable bytes of the given buffer.
+   */
+  public static String decode(@Tight @ConservesIndexes ByteBuf byteBuf) {
+    return decode(byteBuf, byteBuf.readerIndex(), byteBuf.readableBytes());
+  }
+
+  /**
+   * Decodes the given bytes of the buffer, without modifying its indexes.
+   */
+  @SuppressWarnings("deprecation")
+  public static String decode(ByteBuf byteBuf, int index, int length) {
+    if (length == 0) {
+      return "";
+    }
+    if (!isAscii(byteBuf, index, length)) {
+      return byteBuf.toString(index, length, Charsets.UTF_8);
+    }
+    if (byteBuf.hasArray()) {
+      return new String(byteBuf.array(), 0, byteBuf.arrayOffset() + index, length);
+    }
+    byte[] bytes = new byte[length];
+    byteBuf.getBytes(index, bytes);
+    return new String(bytes, 0, 0, length);
+  }
+
+  /**
+   * Returns true iff none of the given bytes of the buffer has its high bit set.
+   */
+  public static boolean isAscii(ByteBuf byteBuf, int index, int length) {
+    int end = index + length;
+    int i = index;
+    for (; i + 8 <= end; i += 8) {
+      if ((byteBuf.getLong(i) & HIGH_BITS) != 0) {
+        return false;
+      }
+    }
+    for (; i < end; i++) {
+      if (byteBuf.getByte(i) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
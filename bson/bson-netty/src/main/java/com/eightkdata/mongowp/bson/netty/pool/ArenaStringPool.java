@@ -0,0 +1,247 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.bson.netty.pool;
+
+import com.eightkdata.mongowp.bson.netty.annotations.ConservesIndexes;
+import com.eightkdata.mongowp.bson.netty.annotations.Tight;
+import com.google.common.base.Preconditions;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+import javax.inject.Inject;
+
+/**
+ * A bounded string pool that stores the UTF-8 bytes of the pooled strings on a flat byte array,
+ * so strings are found comparing the bytes of the input with the stored ones, without decoding
+ * or copying the input.
+ *
+ * <p>The table is divided in buckets of {@value #BUCKET_SLOTS} slots. Each slot has a fixed
+ * region of the arena, so strings longer than the configured maximum are not pooled. Lookups
+ * are lock free: they use optimistic reads of a {@link StampedLock} shared by a stripe of
+ * buckets and they are treated as misses if a writer modified the stripe meanwhile. When a
+ * bucket is full, the slot to reuse is chosen with the clock algorithm, so strings that are
+ * frequently used are not evicted. The victim is only replaced if the
+ * {@link StringPoolPolicy#admit(ByteBuf, ByteBuf) policy admits} the new string.
+ */
+public class ArenaStringPool extends StringPool {
+
+  public static final int DEFAULT_CAPACITY = 8192;
+  public static final int DEFAULT_MAX_STRING_BYTES = 32;
+  private static final int BUCKET_SLOTS = 8;
+  private static final int STRIPES = 64;
+
+  private final int maxStringBytes;
+  private final int bucketMask;
+  private final byte[] arena;
+  private final int[] hashes;
+  private final int[] lengths;
+  private final String[] values;
+  private final boolean[] referenced;
+  private final byte[] clockHands;
+  private final StampedLock[] locks = new StampedLock[STRIPES];
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  @Inject
+  public ArenaStringPool(StringPoolPolicy heuristic) {
+    this(heuristic, DEFAULT_CAPACITY, DEFAULT_MAX_STRING_BYTES);
+  }
+
+  /**
+   * @param capacity       the maximum number of pooled strings. It is rounded up to a power of
+   *                       two
+   * @param maxStringBytes the maximum length in bytes of the pooled strings
+   */
+  public ArenaStringPool(StringPoolPolicy heuristic, int capacity, int maxStringBytes) {
+    super(heuristic);
+    Preconditions.checkArgument(capacity > 0, "The capacity must be positive");
+    Preconditions.checkArgument(maxStringBytes > 0, "The max string bytes must be positive");
+    int buckets = Math.max(1, Integer.highestOneBit(capacity * 2 - 1) / BUCKET_SLOTS);
+    int slots = buckets * BUCKET_SLOTS;
+    this.maxStringBytes = maxStringBytes;
+    this.bucketMask = buckets - 1;
+    this.arena = new byte[slots * maxStringBytes];
+    this.hashes = new int[slots];
+    this.lengths = new int[slots];
+    Arrays.fill(lengths, -1);
+    this.values = new String[slots];
+    this.referenced = new boolean[slots];
+    this.clockHands = new byte[buckets];
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new StampedLock();
+    }
+  }
+
+  @Override
+  protected String retrieveFromPool(@Tight @ConservesIndexes ByteBuf stringBuf) {
+    int length = stringBuf.readableBytes();
+    if (length > maxStringBytes) {
+      return getString(stringBuf);
+    }
+    int hash = hash(stringBuf);
+    int bucket = hash & bucketMask;
+    StampedLock lock = locks[bucket & (STRIPES - 1)];
+
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      int slot = find(bucket, hash, stringBuf);
+      String result = slot < 0 ? null : values[slot];
+      if (lock.validate(stamp) && result != null) {
+        referenced[slot] = true;
+        hits.increment();
+        return result;
+      }
+    }
+    misses.increment();
+    String result = getString(stringBuf);
+
+    stamp = lock.tryWriteLock();
+    if (stamp == 0) {
+      //another thread is modifying the stripe, so the string is not pooled to not wait
+      return result;
+    }
+    try {
+      int slot = find(bucket, hash, stringBuf);
+      if (slot >= 0) {
+        return values[slot];
+      }
+      slot = chooseSlot(bucket);
+      if (values[slot] != null) {
+        ByteBuf victim = Unpooled.wrappedBuffer(arena, slot * maxStringBytes, lengths[slot]);
+        if (!getHeuristic().admit(stringBuf, victim)) {
+          return result;
+        }
+        advanceClock(bucket, slot);
+        evictions.increment();
+      }
+      stringBuf.getBytes(stringBuf.readerIndex(), arena, slot * maxStringBytes, length);
+      hashes[slot] = hash;
+      lengths[slot] = length;
+      values[slot] = result;
+      referenced[slot] = false;
+      return result;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Returns the slot of the bucket that contains the given string or -1 if it is not pooled.
+   */
+  private int find(int bucket, int hash, ByteBuf stringBuf) {
+    int length = stringBuf.readableBytes();
+    int firstSlot = bucket * BUCKET_SLOTS;
+    for (int slot = firstSlot; slot < firstSlot + BUCKET_SLOTS; slot++) {
+      if (hashes[slot] == hash && lengths[slot] == length && bytesEqual(slot, stringBuf)) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  private boolean bytesEqual(int slot, ByteBuf stringBuf) {
+    int offset = slot * maxStringBytes;
+    int readerIndex = stringBuf.readerIndex();
+    int length = stringBuf.readableBytes();
+    for (int i = 0; i < length; i++) {
+      if (arena[offset + i] != stringBuf.getByte(readerIndex + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Chooses the slot where a new string will be stored on the given bucket, which is an empty
+   * one or, if there is none, the first one that has not been referenced since the clock hand
+   * passed over it. The clock is not modified, so a rejected candidate does not age the pooled
+   * strings; {@link #advanceClock(int, int)} must be called once the victim is replaced. Must be
+   * called with the write lock of the bucket.
+   */
+  private int chooseSlot(int bucket) {
+    int firstSlot = bucket * BUCKET_SLOTS;
+    for (int slot = firstSlot; slot < firstSlot + BUCKET_SLOTS; slot++) {
+      if (values[slot] == null) {
+        return slot;
+      }
+    }
+    int hand = clockHands[bucket];
+    for (int i = 0; i < BUCKET_SLOTS; i++) {
+      int slot = firstSlot + (hand + i) % BUCKET_SLOTS;
+      if (!referenced[slot]) {
+        return slot;
+      }
+    }
+    //all slots are referenced, so the clock clears them all and stops where it started
+    return firstSlot + hand;
+  }
+
+  /**
+   * Moves the clock hand of the given bucket past the victim returned by
+   * {@link #chooseSlot(int)}, clearing the referenced flag of the slots it passes over. Must be
+   * called with the write lock of the bucket.
+   */
+  private void advanceClock(int bucket, int victimSlot) {
+    int firstSlot = bucket * BUCKET_SLOTS;
+    int victim = victimSlot - firstSlot;
+    int hand = clockHands[bucket];
+    if (referenced[victimSlot]) {
+      Arrays.fill(referenced, firstSlot, firstSlot + BUCKET_SLOTS, false);
+    } else {
+      while (hand != victim) {
+        referenced[firstSlot + hand] = false;
+        hand = (hand + 1) % BUCKET_SLOTS;
+      }
+    }
+    clockHands[bucket] = (byte) ((victim + 1) % BUCKET_SLOTS);
+  }
+
+  private static int hash(ByteBuf stringBuf) {
+    int hash = ByteBufUtil.hashCode(stringBuf);
+    return hash ^ (hash >>> 16);
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * Returns the number of pooled strings that have been replaced by other ones.
+   */
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "ArenaStringPool{hits=" + getHits() + ", misses=" + getMisses() + ", evictions="
+        + getEvictions() + '}';
+  }
+
+}
@@ -0,0 +1,208 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.bson.netty.pool;
+
+import com.google.common.base.Preconditions;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.inject.Inject;
+
+/**
+ * An adaptive policy that estimates how frequently each string is read and only pools the
+ * strings that are read more frequently than the ones they would evict, so one-off values do not
+ * replace the hot ones.
+ *
+ * <p>Frequencies are estimated with a count-min sketch of four rows of 4-bit counters, packed on
+ * longs, that is indexed by the hash of the UTF-8 bytes of the strings. Each time the number of
+ * recorded reads reaches the sample size all counters are halved, so the estimations decay over
+ * time and strings that were hot in the past can be replaced by the ones that are hot now.
+ *
+ * <p>A string is only considered for pooling once it has been read at least
+ * {@link #getMinFrequency() a minimum number of times}. Estimations can be lower than the real
+ * frequencies when several threads update the same counter concurrently, which is acceptable
+ * for an admission heuristic.
+ */
+public class FrequencySketchStringPoolPolicy extends StringPoolPolicy {
+
+  public static final int DEFAULT_EXPECTED_STRINGS = 8192;
+  public static final int DEFAULT_MIN_FREQUENCY = 2;
+  private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+      0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+  private static final long RESET_MASK = 0x7777777777777777L;
+  private static final int MAX_COUNT = 15;
+
+  private final AtomicLongArray table;
+  private final int tableMask;
+  private final int sampleSize;
+  private final int minFrequency;
+  private final AtomicInteger additions = new AtomicInteger();
+  private final LongAdder admitted = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+
+  @Inject
+  public FrequencySketchStringPoolPolicy() {
+    this(DEFAULT_EXPECTED_STRINGS, DEFAULT_MIN_FREQUENCY);
+  }
+
+  /**
+   * @param expectedStrings the number of distinct strings whose frequency is tracked, usually
+   *                        the capacity of the pool
+   * @param minFrequency    the number of times a string must be read before it is pooled. It
+   *                        must be between 1 and {@value #MAX_COUNT}
+   */
+  public FrequencySketchStringPoolPolicy(int expectedStrings, int minFrequency) {
+    Preconditions.checkArgument(expectedStrings > 0, "The expected strings must be positive");
+    Preconditions.checkArgument(minFrequency > 0 && minFrequency <= MAX_COUNT,
+        "The min frequency must be between 1 and %s", MAX_COUNT);
+    int tableSize = Integer.highestOneBit(Math.min(expectedStrings, 1 << 29) * 2 - 1);
+    this.table = new AtomicLongArray(tableSize);
+    this.tableMask = tableSize - 1;
+    this.sampleSize = 10 * tableSize;
+    this.minFrequency = minFrequency;
+  }
+
+  @Override
+  public boolean apply(boolean likelyCacheable, ByteBuf input) {
+    return increment(spread(ByteBufUtil.hashCode(input))) >= minFrequency;
+  }
+
+  @Override
+  public boolean admit(ByteBuf candidate, ByteBuf victim) {
+    int candidateFrequency = frequency(spread(ByteBufUtil.hashCode(candidate)));
+    int victimFrequency = frequency(spread(ByteBufUtil.hashCode(victim)));
+    if (candidateFrequency > victimFrequency) {
+      admitted.increment();
+      return true;
+    }
+    rejected.increment();
+    return false;
+  }
+
+  @Override
+  public boolean hasAdmission() {
+    return true;
+  }
+
+  /**
+   * Returns the estimated number of times the given string has been read since its counters
+   * were last halved.
+   */
+  public int estimateFrequency(ByteBuf input) {
+    return frequency(spread(ByteBufUtil.hashCode(input)));
+  }
+
+  public int getMinFrequency() {
+    return minFrequency;
+  }
+
+  /**
+   * Returns the number of candidates that have replaced a pooled string.
+   */
+  public long getAdmitted() {
+    return admitted.sum();
+  }
+
+  /**
+   * Returns the number of candidates that have not been pooled because they were less frequent
+   * than the string they would replace.
+   */
+  public long getRejected() {
+    return rejected.sum();
+  }
+
+  /**
+   * Returns the ratio of candidates that have replaced a pooled string, or 1 if there has been no
+   * candidate yet.
+   */
+  public double getAdmissionRate() {
+    long admittedCount = getAdmitted();
+    long total = admittedCount + getRejected();
+    return total == 0 ? 1 : (double) admittedCount / total;
+  }
+
+  private int increment(int hash) {
+    int start = (hash & 3) << 2;
+    int frequency = Integer.MAX_VALUE;
+    boolean added = false;
+    for (int row = 0; row < 4; row++) {
+      int index = indexOf(hash, row);
+      int shift = (start + row) << 2;
+      int count;
+      while (true) {
+        long value = table.get(index);
+        count = (int) ((value >>> shift) & MAX_COUNT);
+        if (count == MAX_COUNT) {
+          break;
+        }
+        if (table.compareAndSet(index, value, value + (1L << shift))) {
+          count++;
+          added = true;
+          break;
+        }
+      }
+      frequency = Math.min(frequency, count);
+    }
+    if (added && additions.incrementAndGet() == sampleSize) {
+      reset();
+    }
+    return frequency;
+  }
+
+  private int frequency(int hash) {
+    int start = (hash & 3) << 2;
+    int frequency = Integer.MAX_VALUE;
+    for (int row = 0; row < 4; row++) {
+      long value = table.get(indexOf(hash, row));
+      frequency = Math.min(frequency, (int) ((value >>> ((start + row) << 2)) & MAX_COUNT));
+    }
+    return frequency;
+  }
+
+  /**
+   * Halves all counters. Increments done concurrently with the reset can be lost.
+   */
+  private void reset() {
+    for (int i = 0; i < table.length(); i++) {
+      table.set(i, (table.get(i) >>> 1) & RESET_MASK);
+    }
+    additions.addAndGet(-sampleSize / 2);
+  }
+
+  private int indexOf(int hash, int row) {
+    long result = (hash + SEEDS[row]) * SEEDS[row];
+    result += result >>> 32;
+    return ((int) result) & tableMask;
+  }
+
+  private static int spread(int hash) {
+    int result = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+    result = ((result >>> 16) ^ result) * 0x45d9f3b;
+    return (result >>> 16) ^ result;
+  }
+
+  @Override
+  public String toString() {
+    return "frequency >= " + minFrequency + " and more frequent than the evicted string";
+  }
+}
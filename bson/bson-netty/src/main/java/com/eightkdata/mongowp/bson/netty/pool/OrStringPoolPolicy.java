@@ -38,6 +38,22 @@ public class OrStringPoolPolicy extends StringPoolPolicy {
     return policy1.apply(likelyCacheable, input) || policy2.apply(likelyCacheable, input);
   }
 
+  @Override
+  public boolean admit(ByteBuf candidate, ByteBuf victim) {
+    if (!policy1.hasAdmission()) {
+      return policy2.admit(candidate, victim);
+    }
+    if (!policy2.hasAdmission()) {
+      return policy1.admit(candidate, victim);
+    }
+    return policy1.admit(candidate, victim) || policy2.admit(candidate, victim);
+  }
+
+  @Override
+  public boolean hasAdmission() {
+    return policy1.hasAdmission() || policy2.hasAdmission();
+  }
+
   @Override
   public String toString() {
     return "(" + policy1 + " or " + policy2 + ")";
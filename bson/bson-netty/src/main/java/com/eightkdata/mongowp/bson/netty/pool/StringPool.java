@@ -18,9 +18,9 @@
 
 package com.eightkdata.mongowp.bson.netty.pool;
 
+import com.eightkdata.mongowp.bson.netty.Utf8Decoder;
 import com.eightkdata.mongowp.bson.netty.annotations.ConservesIndexes;
 import com.eightkdata.mongowp.bson.netty.annotations.Tight;
-import com.google.common.base.Charsets;
 import io.netty.buffer.ByteBuf;
 
 import javax.annotation.concurrent.ThreadSafe;
@@ -39,8 +39,12 @@ public abstract class StringPool {
     this.heuristic = heuristic;
   }
 
+  protected final StringPoolPolicy getHeuristic() {
+    return heuristic;
+  }
+
   protected static String getString(@Tight @ConservesIndexes ByteBuf stringBuf) {
-    return stringBuf.toString(Charsets.UTF_8);
+    return Utf8Decoder.decode(stringBuf);
   }
 
   public String fromPool(boolean likelyCacheable, @Tight @ConservesIndexes ByteBuf stringBuf) {
@@ -33,6 +33,30 @@ public abstract class StringPoolPolicy {
   public abstract boolean apply(boolean likelyCacheable, @Tight
       @ConservesIndexes ByteBuf input);
 
+  /**
+   * Called by the pools that have a bounded capacity when the given candidate, which has been
+   * accepted by {@link #apply(boolean, ByteBuf)}, can only be pooled by evicting another pooled
+   * string.
+   *
+   * @param candidate the bytes of the string that would be pooled
+   * @param victim    the bytes of the string that would be evicted
+   * @return true iff the candidate should replace the victim. By default it is always true
+   * @see #hasAdmission()
+   */
+  public boolean admit(@Tight @ConservesIndexes ByteBuf candidate,
+      @Tight @ConservesIndexes ByteBuf victim) {
+    return true;
+  }
+
+  /**
+   * Returns true iff this policy decides which strings are {@link #admit(ByteBuf, ByteBuf)
+   * admitted}. Composed policies only ask the policies that do, as the default admission, which
+   * accepts every candidate, is neutral.
+   */
+  public boolean hasAdmission() {
+    return false;
+  }
+
   public StringPoolPolicy and(StringPoolPolicy other) {
     return new AndStringPoolPolicy(this, other);
   }
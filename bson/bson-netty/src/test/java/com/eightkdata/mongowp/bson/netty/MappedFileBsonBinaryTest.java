@@ -0,0 +1,107 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.bson.netty;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.eightkdata.mongowp.bson.BinarySubtype;
+import com.eightkdata.mongowp.bson.impl.ByteArrayBsonBinary;
+import com.eightkdata.mongowp.bson.utils.DefaultBsonValues;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import org.bson.BsonBinary;
+import org.bson.BsonDocument;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+public class MappedFileBsonBinaryTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void writeIntoCompositeTest() throws IOException {
+    byte[] content = new byte[4 * NettyBsonDocumentWriter.MIN_ZERO_COPY_BYTES];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) i;
+    }
+    File file = folder.newFile();
+    Files.write(file.toPath(), content);
+
+    MappedFileBsonBinary binary;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      binary = MappedFileBsonBinary.map(channel, 10, content.length - 20);
+    }
+    byte[] expected = Arrays.copyOfRange(content, 10, content.length - 10);
+    assertEquals(expected.length, binary.size());
+    assertEquals(BinarySubtype.GENERIC, binary.getSubtype());
+    assertArrayEquals(expected, binary.getByteSource().read());
+
+    CompositeByteBuf composite = Unpooled.compositeBuffer();
+    ByteBuf target = composite.order(ByteOrder.LITTLE_ENDIAN);
+    new NettyBsonDocumentWriter().writeInto(target,
+        DefaultBsonValues.newDocument("data", binary));
+
+    assertTrue(composite.numComponents() > 1);
+    assertEquals(new BsonDocument("data", new BsonBinary(expected)), MongoBsonUtils.read(target));
+    composite.release();
+  }
+
+  @Test
+  public void serializationTest() throws IOException, ClassNotFoundException {
+    byte[] content = new byte[] {1, 2, 3, 4, 5};
+    File file = folder.newFile();
+    Files.write(file.toPath(), content);
+
+    MappedFileBsonBinary binary;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      binary = MappedFileBsonBinary.map(channel, 1, 3, BinarySubtype.USER_DEFINED, (byte) 0x80);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(binary);
+    }
+    ByteArrayBsonBinary read;
+    try (ObjectInputStream in = new ObjectInputStream(
+        new ByteArrayInputStream(bytes.toByteArray()))) {
+      read = (ByteArrayBsonBinary) in.readObject();
+    }
+    assertEquals(BinarySubtype.USER_DEFINED, read.getSubtype());
+    assertEquals((byte) 0x80, read.getNumericSubType());
+    assertArrayEquals(new byte[] {2, 3, 4}, read.getByteSource().read());
+    assertEquals(binary, read);
+  }
+
+}
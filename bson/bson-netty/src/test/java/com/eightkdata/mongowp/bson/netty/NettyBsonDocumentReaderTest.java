@@ -19,10 +19,17 @@
 package com.eightkdata.mongowp.bson.netty;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import com.eightkdata.mongowp.bson.BsonArray;
+import com.eightkdata.mongowp.bson.BsonDocument.Entry;
+import com.eightkdata.mongowp.bson.BsonValue;
+import com.eightkdata.mongowp.bson.impl.MapBasedBsonDocument;
 import com.eightkdata.mongowp.bson.netty.pool.AlwaysFalseStringPool;
 import com.eightkdata.mongowp.bson.org.bson.utils.MongoBsonTranslator;
 import com.eightkdata.mongowp.bson.utils.BsonDocumentReader.AllocationType;
+import com.eightkdata.mongowp.bson.utils.Projection;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import org.bson.BsonDocument;
@@ -35,7 +42,12 @@ import org.junit.runners.Parameterized.Parameters;
 
 import java.io.IOException;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
 
 /**
  *
@@ -97,4 +109,81 @@ public class NettyBsonDocumentReaderTest {
   public void readOffHeapValuesTest() throws NettyBsonReaderException, IOException {
     test(AllocationType.OFFHEAP_VALUES);
   }
+
+  @Test
+  public void projectionTest() throws NettyBsonReaderException, IOException {
+    com.eightkdata.mongowp.bson.BsonDocument heapDoc = MongoBsonTranslator.translate(mongoDoc);
+    Set<String> topLevel = new HashSet<>();
+    for (Entry<?> entry : heapDoc) {
+      if (topLevel.size() < 3) {
+        topLevel.add(entry.getKey());
+      }
+    }
+    List<String> selected = new ArrayList<>(topLevel);
+    selected.add("notAField.notASubfield");
+
+    for (AllocationType allocationType : AllocationType.values()) {
+      MongoBsonUtils.write(mongoDoc, byteBuf);
+      com.eightkdata.mongowp.bson.BsonDocument included =
+          reader.readDocument(allocationType, byteBuf, Projection.include(selected));
+      assertEquals(0, byteBuf.readableBytes());
+      MongoBsonUtils.write(mongoDoc, byteBuf);
+      com.eightkdata.mongowp.bson.BsonDocument excluded =
+          reader.readDocument(allocationType, byteBuf, Projection.exclude(selected));
+
+      for (Entry<?> entry : heapDoc) {
+        if (topLevel.contains(entry.getKey())) {
+          assertEquals(entry.getValue(), included.get(entry.getKey()));
+          assertFalse(excluded.containsKey(entry.getKey()));
+        } else {
+          assertFalse(included.containsKey(entry.getKey()));
+          assertEquals(entry.getValue(), excluded.get(entry.getKey()));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void hashCodeTest() throws NettyBsonReaderException, IOException {
+    com.eightkdata.mongowp.bson.BsonDocument heapDoc = MongoBsonTranslator.translate(mongoDoc);
+    LinkedHashMap<String, BsonValue<?>> map = new LinkedHashMap<>();
+    for (Entry<?> entry : heapDoc) {
+      map.put(entry.getKey(), entry.getValue());
+    }
+    com.eightkdata.mongowp.bson.BsonDocument mapDoc = new MapBasedBsonDocument(map);
+    assertEquals(heapDoc, mapDoc);
+    assertEquals(heapDoc.hashCode(), mapDoc.hashCode());
+
+    for (AllocationType allocationType : AllocationType.values()) {
+      MongoBsonUtils.write(mongoDoc, byteBuf);
+      com.eightkdata.mongowp.bson.BsonDocument readDoc =
+          reader.readDocument(allocationType, byteBuf);
+      assertEquals(heapDoc, readDoc);
+      assertEquals(allocationType.toString(), heapDoc.hashCode(), readDoc.hashCode());
+    }
+  }
+
+  @Test
+  public void offHeapRandomAccessTest() throws NettyBsonReaderException, IOException {
+    MongoBsonUtils.write(mongoDoc, byteBuf);
+    com.eightkdata.mongowp.bson.BsonDocument offHeapDoc =
+        reader.readDocument(AllocationType.OFFHEAP, byteBuf);
+    com.eightkdata.mongowp.bson.BsonDocument heapDoc = MongoBsonTranslator.translate(mongoDoc);
+
+    assertEquals(mongoDoc.size(), offHeapDoc.size());
+    assertFalse(offHeapDoc.containsKey("\u00f1otAKey"));
+    for (Entry<?> entry : heapDoc) {
+      assertTrue(offHeapDoc.containsKey(entry.getKey()));
+      assertEquals(entry.getValue(), offHeapDoc.get(entry.getKey()));
+      assertEquals(entry, offHeapDoc.getEntry(entry.getKey()));
+      if (entry.getValue().isArray()) {
+        BsonArray heapArray = entry.getValue().asArray();
+        BsonArray offHeapArray = offHeapDoc.get(entry.getKey()).asArray();
+        assertEquals(heapArray.size(), offHeapArray.size());
+        for (int i = heapArray.size() - 1; i >= 0; i--) {
+          assertEquals(heapArray.get(i), offHeapArray.get(i));
+        }
+      }
+    }
+  }
 }
@@ -20,9 +20,15 @@ package com.eightkdata.mongowp.bson.netty;
 
 import static org.junit.Assert.*;
 
+import com.eightkdata.mongowp.bson.netty.pool.AlwaysFalseStringPool;
 import com.eightkdata.mongowp.bson.org.bson.utils.MongoBsonTranslator;
+import com.eightkdata.mongowp.bson.utils.BsonDocumentReader.AllocationType;
+import com.eightkdata.mongowp.bson.utils.EncodedSizeCalculator;
+import com.google.common.base.Strings;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import org.bson.*;
 import org.junit.Before;
 import org.junit.Test;
@@ -33,7 +39,11 @@ import org.junit.runners.Parameterized.Parameters;
 
 import java.io.IOException;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 /**
  *
@@ -46,6 +56,13 @@ public class NettyBsonDocumentWriterTest {
 
   private final NettyBsonDocumentWriter writer = new NettyBsonDocumentWriter();
 
+  private static final NettyStringReader STRING_READER =
+      new PooledNettyStringReader(AlwaysFalseStringPool.getInstance());
+  private final NettyBsonDocumentReader reader =
+      new NettyBsonDocumentReader(new DefaultNettyBsonLowLevelReader(STRING_READER),
+          new OffHeapNettyBsonLowLevelReader(STRING_READER),
+          new OffHeapValuesNettyBsonLowLevelReader(STRING_READER));
+
   @Parameters(name = "{0}")
   public static Collection<Object[]> documents() throws IOException {
     return MongoDocumentProvider.readTestDocuments();
@@ -75,4 +92,132 @@ public class NettyBsonDocumentWriterTest {
     assertEquals(mongoDoc, read);
   }
 
+  @Test
+  public void writeOffHeapValuesTest() throws NettyBsonReaderException {
+    BsonDocument doc = new BsonDocument("doc", mongoDoc)
+        .append("strings", new BsonArray(Arrays.<BsonValue>asList(new BsonString("ascii"),
+            new BsonString("ñ 汉字 😀"))));
+    BsonArray longArray = new BsonArray();
+    for (int i = 0; i < 1100; i++) {
+      longArray.add(new BsonInt32(i));
+    }
+    doc.append("longArray", longArray);
+    MongoBsonUtils.write(doc, byteBuf);
+    com.eightkdata.mongowp.bson.BsonDocument offHeapValuesDoc =
+        reader.readDocument(AllocationType.OFFHEAP_VALUES, byteBuf);
+
+    ByteBuf target = Unpooled.buffer().order(ByteOrder.LITTLE_ENDIAN);
+    writer.writeInto(target, offHeapValuesDoc);
+    assertEquals(doc, MongoBsonUtils.read(target));
+
+    target.clear();
+    writer.writeInto(target, MongoBsonTranslator.translate(doc));
+    assertEquals(doc, MongoBsonUtils.read(target));
+  }
+
+  @Test
+  public void encodedSizeTest() throws NettyBsonReaderException {
+    com.eightkdata.mongowp.bson.BsonDocument wpDocument = MongoBsonTranslator.translate(mongoDoc);
+
+    writer.writeInto(byteBuf, wpDocument);
+
+    assertEquals(byteBuf.readableBytes(), EncodedSizeCalculator.calculate(wpDocument));
+
+    for (AllocationType allocationType : AllocationType.values()) {
+      com.eightkdata.mongowp.bson.BsonDocument read = reader.readDocument(allocationType,
+          byteBuf.slice());
+      assertEquals(byteBuf.readableBytes(), read.encodedSize());
+    }
+  }
+
+  @Test
+  public void writeOffHeapIntoCompositeTest() throws NettyBsonReaderException {
+    BsonDocument bigDoc = new BsonDocument("padding", new BsonString(Strings.repeat("x",
+        NettyBsonDocumentWriter.MIN_ZERO_COPY_BYTES)))
+        .append("doc", mongoDoc);
+    MongoBsonUtils.write(bigDoc, byteBuf);
+    com.eightkdata.mongowp.bson.BsonDocument offHeapDoc =
+        reader.readDocument(AllocationType.OFFHEAP, byteBuf);
+    assertTrue(offHeapDoc instanceof ByteBufBackedBsonValue);
+
+    CompositeByteBuf composite = Unpooled.compositeBuffer();
+    ByteBuf target = composite.order(ByteOrder.LITTLE_ENDIAN);
+    target.writeInt(42);
+    writer.writeInto(target, offHeapDoc);
+    target.writeInt(43);
+
+    assertTrue(composite.numComponents() > 1);
+    assertEquals(42, target.readInt());
+    assertEquals(bigDoc, MongoBsonUtils.read(target));
+    assertEquals(43, target.readInt());
+    composite.release();
+  }
+
+  @Test
+  public void writeAllIntoCompositeTest() {
+    com.eightkdata.mongowp.bson.BsonDocument wpDocument = MongoBsonTranslator.translate(mongoDoc);
+    int docs = 2000;
+
+    CompositeByteBuf composite = Unpooled.compositeBuffer();
+    ByteBuf target = composite.order(ByteOrder.LITTLE_ENDIAN);
+    target.writeInt(42);
+    assertEquals(docs, writer.writeAllInto(target, Collections.nCopies(docs, wpDocument)));
+
+    //the buffer is grown once for all the documents
+    assertEquals(2, composite.numComponents());
+    assertEquals(42, target.readInt());
+    for (int i = 0; i < docs; i++) {
+      assertEquals(mongoDoc, MongoBsonUtils.read(target));
+    }
+    assertFalse(target.isReadable());
+    composite.release();
+  }
+
+  @Test
+  public void writeAllIntoMixedCompositeTest() throws NettyBsonReaderException {
+    BsonDocument bigDoc = new BsonDocument("padding", new BsonString(Strings.repeat("x",
+        NettyBsonDocumentWriter.MIN_ZERO_COPY_BYTES)))
+        .append("doc", mongoDoc);
+    MongoBsonUtils.write(bigDoc, byteBuf);
+    com.eightkdata.mongowp.bson.BsonDocument offHeapDoc =
+        reader.readDocument(AllocationType.OFFHEAP, byteBuf);
+    com.eightkdata.mongowp.bson.BsonDocument heapDoc = MongoBsonTranslator.translate(mongoDoc);
+    List<com.eightkdata.mongowp.bson.BsonDocument> docs = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      docs.add(heapDoc);
+      docs.add(offHeapDoc);
+    }
+
+    GrowthCountingCompositeByteBuf composite = new GrowthCountingCompositeByteBuf();
+    ByteBuf target = composite.order(ByteOrder.LITTLE_ENDIAN);
+    writer.writeAllInto(target, docs);
+
+    //the reserved capacity is kept when the big documents are added without copying them
+    assertEquals(1, composite.growths);
+    for (int i = 0; i < 100; i++) {
+      assertEquals(mongoDoc, MongoBsonUtils.read(target));
+      assertEquals(bigDoc, MongoBsonUtils.read(target));
+    }
+    assertFalse(target.isReadable());
+    composite.release();
+    assertEquals(1, byteBuf.refCnt());
+  }
+
+  private static class GrowthCountingCompositeByteBuf extends CompositeByteBuf {
+
+    private int growths;
+
+    private GrowthCountingCompositeByteBuf() {
+      super(UnpooledByteBufAllocator.DEFAULT, false, 1024);
+    }
+
+    @Override
+    public CompositeByteBuf capacity(int newCapacity) {
+      if (newCapacity > capacity()) {
+        growths++;
+      }
+      return super.capacity(newCapacity);
+    }
+  }
+
 }
@@ -0,0 +1,123 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.bson.netty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.eightkdata.mongowp.bson.BsonType;
+import com.eightkdata.mongowp.bson.BsonValue;
+import com.eightkdata.mongowp.bson.netty.pool.AlwaysFalseStringPool;
+import com.eightkdata.mongowp.bson.org.bson.utils.MongoBsonTranslator;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.bson.BsonDocument;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.Collection;
+
+@RunWith(Parameterized.class)
+public class NettyBsonEventReaderTest {
+
+  private static final NettyStringReader STRING_READER =
+      new PooledNettyStringReader(AlwaysFalseStringPool.getInstance());
+  private final NettyBsonLowLevelReader lowLevelReader =
+      new DefaultNettyBsonLowLevelReader(STRING_READER);
+
+  @Parameters(name = "{0}")
+  public static Collection<Object[]> documents() throws IOException {
+    return MongoDocumentProvider.readTestDocuments();
+  }
+
+  @Parameter(0)
+  public String name;
+
+  @Parameter(1)
+  public BsonDocument mongoDoc;
+
+  @Test
+  public void scanTest() throws NettyBsonReaderException {
+    ByteBuf byteBuf = Unpooled.buffer().order(ByteOrder.LITTLE_ENDIAN);
+    MongoBsonUtils.write(mongoDoc, byteBuf);
+    int readerIndex = byteBuf.readerIndex();
+
+    NettyBsonEventReader eventReader = new NettyBsonEventReader(byteBuf);
+    assertDocument(MongoBsonTranslator.translate(mongoDoc), eventReader);
+
+    assertEquals(1, eventReader.getDepth());
+    assertEquals(readerIndex, byteBuf.readerIndex());
+  }
+
+  @Test
+  public void skipTest() throws NettyBsonReaderException {
+    ByteBuf byteBuf = Unpooled.buffer().order(ByteOrder.LITTLE_ENDIAN);
+    MongoBsonUtils.write(mongoDoc, byteBuf);
+
+    NettyBsonEventReader eventReader = new NettyBsonEventReader(byteBuf);
+    int elements = 0;
+    for (BsonType type = eventReader.next(); type != null; type = eventReader.next()) {
+      if (type == BsonType.DOCUMENT || type == BsonType.ARRAY) {
+        eventReader.enterDocument();
+        eventReader.exitDocument();
+      } else {
+        eventReader.skipValue();
+      }
+      elements++;
+    }
+    assertEquals(mongoDoc.size(), elements);
+  }
+
+  private void assertDocument(com.eightkdata.mongowp.bson.BsonDocument expected,
+      NettyBsonEventReader eventReader) throws NettyBsonReaderException {
+    for (com.eightkdata.mongowp.bson.BsonDocument.Entry<?> entry : expected) {
+      BsonValue<?> value = entry.getValue();
+      assertEquals(value.getType(), eventReader.next());
+      assertEquals(entry.getKey(), eventReader.readKey());
+      assertTrue(eventReader.keyEquals(entry.getKey()));
+      switch (value.getType()) {
+        case INT32:
+          assertEquals(value.asInt32().intValue(), eventReader.readInt32());
+          break;
+        case INT64:
+          assertEquals(value.asInt64().longValue(), eventReader.readInt64());
+          break;
+        case STRING:
+          assertEquals(value.asString().getValue(), eventReader.readString());
+          break;
+        case DOCUMENT:
+          eventReader.enterDocument();
+          assertDocument(value.asDocument(), eventReader);
+          eventReader.exitDocument();
+          break;
+        default:
+          assertEquals(value, eventReader.readValue(lowLevelReader));
+          break;
+      }
+    }
+    assertNull(eventReader.next());
+  }
+
+}
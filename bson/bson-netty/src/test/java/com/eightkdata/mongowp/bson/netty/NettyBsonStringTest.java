@@ -0,0 +1,60 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.bson.netty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import com.eightkdata.mongowp.bson.impl.StringBsonString;
+import com.google.common.base.Charsets;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+public class NettyBsonStringTest {
+
+  private static final String[] STRINGS = {"", "a", "ab", "b", "_id", "ñ", "ñu", "z",
+      "z�", "z😀", "汉字"};
+
+  private static NettyBsonString netty(String str) {
+    return new NettyBsonString(Unpooled.copiedBuffer(str, Charsets.UTF_8));
+  }
+
+  @Test
+  public void compareTest() {
+    for (String str1 : STRINGS) {
+      for (String str2 : STRINGS) {
+        assertEquals(str1 + " vs " + str2, Integer.signum(str1.compareTo(str2)),
+            Integer.signum(netty(str1).compareTo(netty(str2))));
+      }
+    }
+  }
+
+  @Test
+  public void equalsTest() {
+    for (String str : STRINGS) {
+      StringBsonString heap = new StringBsonString(str);
+      assertEquals(netty(str), netty(str));
+      assertEquals(netty(str), heap);
+      assertEquals(heap, netty(str));
+      assertEquals(heap.hashCode(), netty(str).hashCode());
+    }
+    assertNotEquals(netty("a"), netty("ab"));
+  }
+
+}
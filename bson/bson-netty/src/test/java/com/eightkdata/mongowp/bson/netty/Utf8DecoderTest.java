@@ -0,0 +1,58 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.bson.netty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Charsets;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+public class Utf8DecoderTest {
+
+  private static final String[] STRINGS = {"", "a", "_id", "exactly8", "a longer ascii string",
+      "ñ", "ascii prefix ñ", "ñ and an ascii suffix", "汉字 and 😀"};
+
+  @Test
+  public void decodeTest() {
+    for (String str : STRINGS) {
+      ByteBuf heap = Unpooled.copiedBuffer("x" + str + "y", Charsets.UTF_8);
+      int length = heap.readableBytes() - 2;
+      assertEquals(str, Utf8Decoder.decode(heap, 1, length));
+      assertEquals(str, Utf8Decoder.decode(heap.slice(1, length)));
+
+      ByteBuf direct = Unpooled.directBuffer().writeBytes(heap);
+      assertEquals(str, Utf8Decoder.decode(direct, 1, length));
+      direct.release();
+    }
+  }
+
+  @Test
+  public void isAsciiTest() {
+    ByteBuf byteBuf = Unpooled.copiedBuffer("0123456789abcdefñ", Charsets.UTF_8);
+    assertTrue(Utf8Decoder.isAscii(byteBuf, 0, 16));
+    assertTrue(Utf8Decoder.isAscii(byteBuf, 3, 13));
+    assertFalse(Utf8Decoder.isAscii(byteBuf, 0, 17));
+    assertFalse(Utf8Decoder.isAscii(byteBuf, 9, 8));
+  }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.bson.netty.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+public class ArenaStringPoolTest {
+
+  private static final StringPoolPolicy ALWAYS = new StringPoolPolicy() {
+    @Override
+    public boolean apply(boolean likelyCacheable, ByteBuf input) {
+      return true;
+    }
+  };
+
+  private static class AdmissionPolicy extends StringPoolPolicy {
+    private boolean admit;
+
+    @Override
+    public boolean apply(boolean likelyCacheable, ByteBuf input) {
+      return true;
+    }
+
+    @Override
+    public boolean admit(ByteBuf candidate, ByteBuf victim) {
+      return admit;
+    }
+
+    @Override
+    public boolean hasAdmission() {
+      return true;
+    }
+  }
+
+  private static String fromPool(StringPool pool, String str) {
+    ByteBuf byteBuf = Unpooled.copiedBuffer("x" + str, Charsets.UTF_8);
+    //the pool must only use the readable bytes
+    byteBuf.skipBytes(1);
+    return pool.fromPool(true, byteBuf);
+  }
+
+  @Test
+  public void poolTest() {
+    ArenaStringPool pool = new ArenaStringPool(ALWAYS, 64, 16);
+
+    String first = fromPool(pool, "name");
+    assertEquals("name", first);
+    assertSame(first, fromPool(pool, "name"));
+    assertEquals("ñame", fromPool(pool, "ñame"));
+    assertEquals("", fromPool(pool, ""));
+    assertEquals(1, pool.getHits());
+    assertEquals(3, pool.getMisses());
+
+    String longString = Strings.repeat("x", 17);
+    assertNotSame(fromPool(pool, longString), fromPool(pool, longString));
+  }
+
+  @Test
+  public void evictionTest() {
+    ArenaStringPool pool = new ArenaStringPool(ALWAYS, 1, 16);
+
+    String hot = fromPool(pool, "hot");
+    for (int i = 0; i < 100; i++) {
+      assertSame(hot, fromPool(pool, "hot"));
+      assertEquals("cold" + i, fromPool(pool, "cold" + i));
+    }
+    assertTrue(pool.getEvictions() > 0);
+  }
+
+  @Test
+  public void composedAdmissionTest() {
+    AdmissionPolicy admission = new AdmissionPolicy();
+    //a single bucket of eight slots
+    ArenaStringPool pool = new ArenaStringPool(ALWAYS.or(admission), 1, 16);
+
+    for (int i = 0; i < 8; i++) {
+      fromPool(pool, "s" + i);
+    }
+    String rejected = fromPool(pool, "rejected");
+    assertNotSame(rejected, fromPool(pool, "rejected"));
+    assertEquals(0, pool.getEvictions());
+  }
+
+  @Test
+  public void rejectedCandidateKeepsClockTest() {
+    AdmissionPolicy admission = new AdmissionPolicy();
+    ArenaStringPool pool = new ArenaStringPool(admission, 1, 16);
+
+    String[] pooled = new String[8];
+    for (int i = 0; i < pooled.length; i++) {
+      pooled[i] = fromPool(pool, "s" + i);
+    }
+    for (int i = 0; i < pooled.length; i++) {
+      assertSame(pooled[i], fromPool(pool, "s" + i));
+    }
+    fromPool(pool, "rejected");
+
+    admission.admit = true;
+    fromPool(pool, "admitted");
+    assertEquals(1, pool.getEvictions());
+    //the rejected candidate did not move the hand, so the victim is the first slot
+    assertSame(pooled[1], fromPool(pool, "s1"));
+    assertNotSame(pooled[0], fromPool(pool, "s0"));
+  }
+
+}
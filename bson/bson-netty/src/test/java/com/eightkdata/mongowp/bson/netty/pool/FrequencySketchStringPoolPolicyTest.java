@@ -0,0 +1,90 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.bson.netty.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Charsets;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+public class FrequencySketchStringPoolPolicyTest {
+
+  private static ByteBuf buf(String str) {
+    return Unpooled.copiedBuffer(str, Charsets.UTF_8);
+  }
+
+  @Test
+  public void frequencyTest() {
+    FrequencySketchStringPoolPolicy policy = new FrequencySketchStringPoolPolicy(64, 2);
+
+    assertFalse(policy.apply(false, buf("key")));
+    assertTrue(policy.apply(false, buf("key")));
+    for (int i = 0; i < 20; i++) {
+      policy.apply(false, buf("key"));
+    }
+    assertEquals(15, policy.estimateFrequency(buf("key")));
+    assertEquals(0, policy.estimateFrequency(buf("other")));
+
+    assertTrue(policy.admit(buf("key"), buf("other")));
+    assertFalse(policy.admit(buf("other"), buf("key")));
+    assertEquals(0.5, policy.getAdmissionRate(), 0);
+  }
+
+  @Test
+  public void decayTest() {
+    FrequencySketchStringPoolPolicy policy = new FrequencySketchStringPoolPolicy(16, 1);
+    for (int i = 0; i < 10; i++) {
+      policy.apply(false, buf("old"));
+    }
+    for (int i = 0; i < 1000; i++) {
+      policy.apply(false, buf("new" + i));
+    }
+    assertTrue(policy.estimateFrequency(buf("old")) < 10);
+  }
+
+  @Test
+  public void poolTest() {
+    FrequencySketchStringPoolPolicy policy = new FrequencySketchStringPoolPolicy(64, 2);
+    //a single bucket of eight slots
+    ArenaStringPool pool = new ArenaStringPool(policy, 1, 16);
+
+    String[] hot = new String[8];
+    for (int i = 0; i < 5; i++) {
+      for (int j = 0; j < hot.length; j++) {
+        hot[j] = pool.fromPool(false, buf("hot" + j));
+      }
+    }
+    for (int i = 0; i < 100; i++) {
+      //values read twice pass the minimum frequency, but they are less frequent than hot keys
+      pool.fromPool(false, buf("cold" + i));
+      pool.fromPool(false, buf("cold" + i));
+    }
+    for (int j = 0; j < hot.length; j++) {
+      assertSame(hot[j], pool.fromPool(false, buf("hot" + j)));
+    }
+    assertEquals(0, pool.getEvictions());
+    assertTrue(policy.getRejected() > 0);
+  }
+
+}
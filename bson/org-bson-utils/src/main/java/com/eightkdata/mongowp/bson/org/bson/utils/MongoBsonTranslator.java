@@ -31,7 +31,6 @@ import com.eightkdata.mongowp.bson.impl.DefaultBsonTimestamp;
 import com.eightkdata.mongowp.bson.impl.FalseBsonBoolean;
 import com.eightkdata.mongowp.bson.impl.ListBsonArray;
 import com.eightkdata.mongowp.bson.impl.LongBsonDateTime;
-import com.eightkdata.mongowp.bson.impl.MapBasedBsonDocument;
 import com.eightkdata.mongowp.bson.impl.PrimitiveBsonDouble;
 import com.eightkdata.mongowp.bson.impl.PrimitiveBsonInt32;
 import com.eightkdata.mongowp.bson.impl.PrimitiveBsonInt64;
@@ -41,6 +40,7 @@ import com.eightkdata.mongowp.bson.impl.SimpleBsonNull;
 import com.eightkdata.mongowp.bson.impl.SimpleBsonUndefined;
 import com.eightkdata.mongowp.bson.impl.StringBsonString;
 import com.eightkdata.mongowp.bson.impl.TrueBsonBoolean;
+import com.eightkdata.mongowp.bson.utils.DefaultBsonValues;
 import com.google.common.primitives.UnsignedBytes;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -224,7 +224,7 @@ public class MongoBsonTranslator {
         for (java.util.Map.Entry<String, BsonValue> entry : value.asDocument().entrySet()) {
           map.put(entry.getKey(), translatePrivate(entry.getValue()));
         }
-        return new MapBasedBsonDocument(map);
+        return DefaultBsonValues.newDocument(map);
       }
       case DOUBLE:
         return PrimitiveBsonDouble.newInstance(value.asDouble().getValue());
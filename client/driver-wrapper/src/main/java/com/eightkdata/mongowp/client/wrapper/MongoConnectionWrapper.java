@@ -22,6 +22,7 @@ import com.eightkdata.mongowp.ErrorCode;
 import com.eightkdata.mongowp.bson.BsonDocument;
 import com.eightkdata.mongowp.bson.org.bson.utils.MongoBsonTranslator;
 import com.eightkdata.mongowp.bson.utils.DefaultBsonValues;
+import com.eightkdata.mongowp.bson.utils.EncodedSizeCalculator;
 import com.eightkdata.mongowp.client.core.MongoClient;
 import com.eightkdata.mongowp.client.core.MongoConnection;
 import com.eightkdata.mongowp.exceptions.BadValueException;
@@ -30,6 +31,7 @@ import com.eightkdata.mongowp.messages.request.QueryMessage.QueryOptions;
 import com.eightkdata.mongowp.server.api.Command;
 import com.eightkdata.mongowp.server.api.MarshalException;
 import com.eightkdata.mongowp.server.api.MongoRuntimeException;
+import com.eightkdata.mongowp.server.api.pojos.BatchSizeLimits;
 import com.eightkdata.mongowp.server.api.pojos.CollectionBatch;
 import com.eightkdata.mongowp.server.api.pojos.MongoCursor;
 import com.eightkdata.mongowp.server.api.pojos.MongoCursor.DeadCursorException;
@@ -60,7 +62,6 @@ import java.util.List;
 public class MongoConnectionWrapper implements MongoConnection {
 
   private static final Logger LOGGER = LogManager.getLogger(MongoConnectionWrapper.class);
-  private static final int DEFAULT_MAX_BATCH_SIZE = 100;
   private static final BsonDocument EMPTY_DOC = DefaultBsonValues.EMPTY_DOC;
 
   private final CodecRegistry codecRegistry;
@@ -114,7 +115,7 @@ public class MongoConnectionWrapper implements MongoConnection {
       return new WrappedMongoCursor(
           database,
           collection,
-          DEFAULT_MAX_BATCH_SIZE,
+          BatchSizeLimits.DEFAULT,
           queryOptions.isTailable(),
           findIterable.iterator()
       );
@@ -344,7 +345,13 @@ public class MongoConnectionWrapper implements MongoConnection {
 
     private final String database;
     private final String collection;
-    private int maxBatchSize;
+    private final BatchSizeLimits limits;
+    private int requestedBatchSize = 0;
+    private boolean firstBatch = true;
+    /**
+     * A document read from the driver cursor that did not fit on the last batch.
+     */
+    private BsonDocument pending;
     private final boolean tailable;
     private boolean close = false;
     private HostAndPort serverAddress;
@@ -353,13 +360,12 @@ public class MongoConnectionWrapper implements MongoConnection {
     public WrappedMongoCursor(
         String database,
         String collection,
-        int maxBatchSize,
+        BatchSizeLimits limits,
         boolean tailable,
         com.mongodb.client.MongoCursor<org.bson.BsonDocument> cursor) {
       this.database = database;
       this.collection = collection;
-      Preconditions.checkArgument(maxBatchSize > 0);
-      this.maxBatchSize = maxBatchSize;
+      this.limits = limits;
       this.tailable = tailable;
       this.cursor = cursor;
     }
@@ -382,12 +388,25 @@ public class MongoConnectionWrapper implements MongoConnection {
     @Override
     public void setMaxBatchSize(int newBatchSize) {
       Preconditions.checkState(!close, "This cursor is closed");
-      this.maxBatchSize = newBatchSize;
+      Preconditions.checkArgument(newBatchSize >= 0, "The batch size cannot be negative");
+      this.requestedBatchSize = newBatchSize;
     }
 
     @Override
     public int getMaxBatchSize() {
-      return maxBatchSize;
+      return requestedBatchSize;
+    }
+
+    /**
+     * Returns the next document without waiting for the driver cursor or null if there is none.
+     */
+    private BsonDocument tryNextDocument() {
+      BsonDocument result = pending;
+      if (result != null) {
+        pending = null;
+        return result;
+      }
+      return MongoBsonTranslator.translate(cursor.tryNext());
     }
 
     @Override
@@ -401,20 +420,27 @@ public class MongoConnectionWrapper implements MongoConnection {
       long start = System.currentTimeMillis();
 
       List<BsonDocument> docs = Lists.newArrayList();
+      int maxDocs = limits.getMaxDocs(firstBatch, requestedBatchSize);
 
       try {
-        boolean noMoreDocs = false;
-        while (docs.size() < maxBatchSize && !noMoreDocs) {
-          org.bson.BsonDocument tryNext = cursor.tryNext();
-          if (tryNext != null) {
-            docs.add(MongoBsonTranslator.translate(tryNext));
-          } else {
-            noMoreDocs = true;
+        long bytes = 0;
+        while (docs.size() < maxDocs) {
+          BsonDocument doc = tryNextDocument();
+          if (doc == null) {
+            break;
           }
+          int size = EncodedSizeCalculator.calculate(doc);
+          if (!limits.fitsInBatch(docs.size(), bytes, size, firstBatch)) {
+            pending = doc;
+            break;
+          }
+          docs.add(doc);
+          bytes += size;
         }
         if (docs.isEmpty()) {
           return null;
         }
+        firstBatch = false;
       } catch (MongoCursorNotFoundException ex) {
         this.close();
         throw new DeadCursorException();
@@ -435,21 +461,32 @@ public class MongoConnectionWrapper implements MongoConnection {
       long start = System.currentTimeMillis();
 
       List<BsonDocument> docs = Lists.newArrayList();
+      boolean isFirstBatch = firstBatch;
+      int maxDocs = limits.getMaxDocs(isFirstBatch, requestedBatchSize);
 
       try {
-        if (!isTailable() && !cursor.hasNext()) {
+        if (!isTailable() && pending == null && !cursor.hasNext()) {
           return new CollectionBatch<>(docs, start);
         }
-        docs.add(MongoBsonTranslator.translate(cursor.next()));
-
-        while (docs.size() < maxBatchSize && System.currentTimeMillis()
-            - start < MAX_WAIT_TIME) {
-          BsonDocument next =
-              MongoBsonTranslator.translate(cursor.tryNext());
+        BsonDocument first = pending != null ? pending
+            : MongoBsonTranslator.translate(cursor.next());
+        pending = null;
+        docs.add(first);
+        long bytes = EncodedSizeCalculator.calculate(first);
+        firstBatch = false;
+
+        while (docs.size() < maxDocs && System.currentTimeMillis() - start < MAX_WAIT_TIME) {
+          BsonDocument next = tryNextDocument();
           if (next == null) {
             break;
           }
+          int size = EncodedSizeCalculator.calculate(next);
+          if (!limits.fitsInBatch(docs.size(), bytes, size, isFirstBatch)) {
+            pending = next;
+            break;
+          }
           docs.add(next);
+          bytes += size;
         }
       } catch (MongoCursorNotFoundException ex) {
         this.close();
@@ -489,6 +526,9 @@ public class MongoConnectionWrapper implements MongoConnection {
       if (close) {
         return false;
       }
+      if (pending != null) {
+        return true;
+      }
       try {
         return cursor.hasNext();
       } catch (MongoCursorNotFoundException ex) {
@@ -511,6 +551,11 @@ public class MongoConnectionWrapper implements MongoConnection {
     public BsonDocument next() throws MongoServerException {
       //TODO(gortiz): Wrap mongo driver exceptions on our own exceptions
       Preconditions.checkState(!close, "This cursor is closed");
+      if (pending != null) {
+        BsonDocument result = pending;
+        pending = null;
+        return result;
+      }
       try {
         return MongoBsonTranslator.translate(cursor.next());
       } catch (MongoCursorNotFoundException ex) {
@@ -533,7 +578,7 @@ public class MongoConnectionWrapper implements MongoConnection {
     public BsonDocument tryNext() throws MongoServerException {
       //TODO(gortiz): Wrap mongo driver exceptions on our own exceptions
       try {
-        return MongoBsonTranslator.translate(cursor.tryNext());
+        return tryNextDocument();
       } catch (MongoCursorNotFoundException ex) {
         this.close();
         throw new DeadCursorException();
@@ -153,6 +153,7 @@ public enum ErrorCode {
   INCOMPATIBLE_ELECTION_PROTOCOL(124, "error.code.incompatible.election.protocol"),
   COMMAND_FAILED(125, "error.code.command.failed"),
   RPC_PROTOCOL_NEGOTIATION_FAILED(126, "error.code.rpc.protocol.negotiation.failed"),
+  CURSOR_IN_USE(292, "error.code.cursor.in.use"),
   NOT_MASTER(10107, "error.code.not.master"),
   DUPLICATE_KEY(11000, "error.code.duplicate.key"),
   INTERRUPTED_AT_SHUTDOWN(11600, "error.code.interrupted.at.shutdown"),
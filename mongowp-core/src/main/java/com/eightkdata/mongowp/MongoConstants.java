@@ -30,6 +30,7 @@ public class MongoConstants {
    * configurable
    */
   public static final int MAX_MESSAGE_SIZE_BYTES = 48 * 1000 * 1000;
+  public static final int MAX_BSON_OBJECT_SIZE_BYTES = 16 * 1024 * 1024;
   public static final int MESSAGE_LENGTH_FIELD_BYTES = Ints.BYTES;
   public static final int MESSAGE_HEADER_WITHOUT_LENGTH_FIELD_BYTES = Ints.BYTES + Ints.BYTES
       + Ints.BYTES;
@@ -0,0 +1,172 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.messages.compression;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per compressor counters of the messages compressed and decompressed by a peer.
+ *
+ * <p>Times are measured in nanoseconds of the thread that compressed or decompressed the
+ * message, so they approximate the CPU cost of each compressor.
+ */
+public class CompressionStatistics {
+
+  private final Counters[] counters = new Counters[MessageCompressor.values().length];
+  private final LongAdder uncompressedSmallMessages = new LongAdder();
+
+  public CompressionStatistics() {
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] = new Counters();
+    }
+  }
+
+  /**
+   * Records that a message has been compressed.
+   *
+   * @param compressor        the compressor used
+   * @param uncompressedBytes the length of the original message
+   * @param compressedBytes   the length of the compressed message
+   * @param nanos             the time spent compressing the message
+   */
+  public void onCompression(MessageCompressor compressor, int uncompressedBytes,
+      int compressedBytes, long nanos) {
+    Counters c = counters[compressor.ordinal()];
+    c.compressedMessages.increment();
+    c.compressionInputBytes.add(uncompressedBytes);
+    c.compressionOutputBytes.add(compressedBytes);
+    c.compressionNanos.add(nanos);
+  }
+
+  /**
+   * Records that a message has been decompressed.
+   *
+   * @param compressor        the compressor used
+   * @param compressedBytes   the length of the compressed message
+   * @param uncompressedBytes the length of the decompressed message
+   * @param nanos             the time spent decompressing the message
+   */
+  public void onDecompression(MessageCompressor compressor, int compressedBytes,
+      int uncompressedBytes, long nanos) {
+    Counters c = counters[compressor.ordinal()];
+    c.decompressedMessages.increment();
+    c.decompressionInputBytes.add(compressedBytes);
+    c.decompressionOutputBytes.add(uncompressedBytes);
+    c.decompressionNanos.add(nanos);
+  }
+
+  /**
+   * Records that a message that could have been compressed has been sent uncompressed because
+   * it was too small.
+   */
+  public void onSmallMessage() {
+    uncompressedSmallMessages.increment();
+  }
+
+  public long getCompressedMessages(MessageCompressor compressor) {
+    return counters[compressor.ordinal()].compressedMessages.sum();
+  }
+
+  /**
+   * Returns the number of bytes that have been given to the compressor.
+   */
+  public long getCompressionInputBytes(MessageCompressor compressor) {
+    return counters[compressor.ordinal()].compressionInputBytes.sum();
+  }
+
+  /**
+   * Returns the number of bytes that have been generated by the compressor.
+   */
+  public long getCompressionOutputBytes(MessageCompressor compressor) {
+    return counters[compressor.ordinal()].compressionOutputBytes.sum();
+  }
+
+  public long getCompressionNanos(MessageCompressor compressor) {
+    return counters[compressor.ordinal()].compressionNanos.sum();
+  }
+
+  /**
+   * Returns the ratio between the uncompressed and the compressed bytes of the messages
+   * compressed with the given compressor or 0 if none has been compressed.
+   */
+  public double getCompressionRatio(MessageCompressor compressor) {
+    Counters c = counters[compressor.ordinal()];
+    long output = c.compressionOutputBytes.sum();
+    if (output == 0) {
+      return 0;
+    }
+    return (double) c.compressionInputBytes.sum() / output;
+  }
+
+  public long getDecompressedMessages(MessageCompressor compressor) {
+    return counters[compressor.ordinal()].decompressedMessages.sum();
+  }
+
+  /**
+   * Returns the number of bytes that have been given to the decompressor.
+   */
+  public long getDecompressionInputBytes(MessageCompressor compressor) {
+    return counters[compressor.ordinal()].decompressionInputBytes.sum();
+  }
+
+  /**
+   * Returns the number of bytes that have been generated by the decompressor.
+   */
+  public long getDecompressionOutputBytes(MessageCompressor compressor) {
+    return counters[compressor.ordinal()].decompressionOutputBytes.sum();
+  }
+
+  public long getDecompressionNanos(MessageCompressor compressor) {
+    return counters[compressor.ordinal()].decompressionNanos.sum();
+  }
+
+  /**
+   * Returns the number of messages that have not been compressed because they were smaller
+   * than the minimum size.
+   */
+  public long getUncompressedSmallMessages() {
+    return uncompressedSmallMessages.sum();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("CompressionStatistics{");
+    for (MessageCompressor compressor : MessageCompressor.values()) {
+      sb.append(compressor.getName())
+          .append("={compressed=").append(getCompressedMessages(compressor))
+          .append(", ratio=").append(getCompressionRatio(compressor))
+          .append(", compressionNanos=").append(getCompressionNanos(compressor))
+          .append(", decompressed=").append(getDecompressedMessages(compressor))
+          .append(", decompressionNanos=").append(getDecompressionNanos(compressor))
+          .append("}, ");
+    }
+    return sb.append("small=").append(getUncompressedSmallMessages()).append('}').toString();
+  }
+
+  private static class Counters {
+    private final LongAdder compressedMessages = new LongAdder();
+    private final LongAdder compressionInputBytes = new LongAdder();
+    private final LongAdder compressionOutputBytes = new LongAdder();
+    private final LongAdder compressionNanos = new LongAdder();
+    private final LongAdder decompressedMessages = new LongAdder();
+    private final LongAdder decompressionInputBytes = new LongAdder();
+    private final LongAdder decompressionOutputBytes = new LongAdder();
+    private final LongAdder decompressionNanos = new LongAdder();
+  }
+}
@@ -0,0 +1,309 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.messages.compression;
+
+import org.iq80.snappy.CorruptionException;
+import org.iq80.snappy.Snappy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.annotation.Nullable;
+
+/**
+ * The compressors that can be used on OP_COMPRESSED messages.
+ *
+ * <p>Compressors work on byte arrays, so they can be used by servers and clients whatever their
+ * network library is. The classes of the optional compression libraries are only referenced by
+ * holder classes that are loaded once {@link #isAvailable()} probes them, so this class can be
+ * loaded even if they are not on the classpath. Use {@link #isAvailable()} to know if a
+ * compressor can be used.
+ */
+public enum MessageCompressor {
+  NOOP(0, "noop") {
+    @Override
+    public int maxCompressedLength(int length) {
+      return length;
+    }
+
+    @Override
+    public int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+      System.arraycopy(src, srcOffset, dst, dstOffset, length);
+      return length;
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset,
+        int uncompressedLength) throws DataFormatException {
+      if (length != uncompressedLength) {
+        throw new DataFormatException("Expected " + uncompressedLength + " uncompressed bytes, "
+            + "but " + length + " were found");
+      }
+      System.arraycopy(src, srcOffset, dst, dstOffset, length);
+    }
+
+    @Override
+    void checkAvailable() {
+    }
+  },
+  SNAPPY(1, "snappy") {
+    @Override
+    public int maxCompressedLength(int length) {
+      return Snappy.maxCompressedLength(length);
+    }
+
+    @Override
+    public int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+      return Snappy.compress(src, srcOffset, length, dst, dstOffset);
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset,
+        int uncompressedLength) throws DataFormatException {
+      try {
+        int actualLength = Snappy.getUncompressedLength(src, srcOffset);
+        if (actualLength != uncompressedLength) {
+          throw new DataFormatException("Expected " + uncompressedLength + " uncompressed "
+              + "bytes, but the compressed data contains " + actualLength);
+        }
+        Snappy.uncompress(src, srcOffset, length, dst, dstOffset);
+      } catch (CorruptionException | IndexOutOfBoundsException ex) {
+        DataFormatException dataEx = new DataFormatException(ex.getMessage());
+        dataEx.initCause(ex);
+        throw dataEx;
+      }
+    }
+
+    @Override
+    void checkAvailable() {
+      Snappy.maxCompressedLength(0);
+    }
+  },
+  ZLIB(2, "zlib") {
+    @Override
+    public int maxCompressedLength(int length) {
+      //the same bound used by zlib's compressBound
+      return length + (length >> 12) + (length >> 14) + (length >> 25) + 13;
+    }
+
+    @Override
+    public int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+      Deflater deflater = new Deflater(ZLIB_LEVEL);
+      try {
+        deflater.setInput(src, srcOffset, length);
+        deflater.finish();
+        int written = 0;
+        int maxLength = dst.length - dstOffset;
+        while (!deflater.finished()) {
+          if (written == maxLength) {
+            throw new IllegalArgumentException("The destination array is too small");
+          }
+          written += deflater.deflate(dst, dstOffset + written, maxLength - written);
+        }
+        return written;
+      } finally {
+        deflater.end();
+      }
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset,
+        int uncompressedLength) throws DataFormatException {
+      Inflater inflater = new Inflater();
+      try {
+        inflater.setInput(src, srcOffset, length);
+        int read = 0;
+        while (!inflater.finished()) {
+          int lastRead = inflater.inflate(dst, dstOffset + read, uncompressedLength - read);
+          read += lastRead;
+          if (lastRead == 0 && !inflater.finished()) {
+            if (read == uncompressedLength) {
+              throw new DataFormatException("The compressed data contains more than "
+                  + uncompressedLength + " bytes");
+            }
+            throw new DataFormatException("The compressed data is truncated");
+          }
+        }
+        if (read != uncompressedLength) {
+          throw new DataFormatException("Expected " + uncompressedLength + " uncompressed bytes, "
+              + "but " + read + " were found");
+        }
+      } finally {
+        inflater.end();
+      }
+    }
+
+    @Override
+    void checkAvailable() {
+    }
+  },
+  ZSTD(3, "zstd") {
+    @Override
+    public int maxCompressedLength(int length) {
+      checkUsable();
+      return ZstdCompression.maxCompressedLength(length);
+    }
+
+    @Override
+    public int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+      checkUsable();
+      return ZstdCompression.compress(src, srcOffset, length, dst, dstOffset, ZSTD_LEVEL);
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset,
+        int uncompressedLength) throws DataFormatException {
+      checkUsable();
+      ZstdCompression.decompress(src, srcOffset, length, dst, dstOffset, uncompressedLength);
+    }
+
+    @Override
+    void checkAvailable() {
+      ZstdCompression.checkAvailable();
+    }
+  };
+
+  private static final int ZLIB_LEVEL = 6;
+  private static final int ZSTD_LEVEL = 3;
+
+  private final byte id;
+  private final String name;
+  private volatile Boolean available;
+
+  private MessageCompressor(int id, String name) {
+    this.id = (byte) id;
+    this.name = name;
+  }
+
+  /**
+   * Returns the id that identifies this compressor on OP_COMPRESSED messages.
+   */
+  public byte getId() {
+    return id;
+  }
+
+  /**
+   * Returns the name that identifies this compressor on the {@code compression} field of the
+   * {@code hello} command.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Returns the maximum number of bytes {@link #compress(byte[], int, int, byte[], int)} can
+   * write when it compresses the given number of bytes.
+   */
+  public abstract int maxCompressedLength(int length);
+
+  /**
+   * Compresses {@code length} bytes of {@code src} into {@code dst}.
+   *
+   * @return the number of bytes written on {@code dst}
+   * @throws IllegalArgumentException if there are less than {@link #maxCompressedLength(int)}
+   *                                  bytes after {@code dstOffset}
+   */
+  public abstract int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset);
+
+  /**
+   * Decompresses {@code length} bytes of {@code src} into {@code dst}.
+   *
+   * @throws DataFormatException if the compressed data is corrupted or it does not contain
+   *                             exactly {@code uncompressedLength} bytes
+   */
+  public abstract void decompress(byte[] src, int srcOffset, int length, byte[] dst,
+      int dstOffset, int uncompressedLength) throws DataFormatException;
+
+  abstract void checkAvailable() throws LinkageError;
+
+  /**
+   * Returns true iff the library used by this compressor is on the classpath and it can be
+   * loaded on this platform.
+   */
+  public boolean isAvailable() {
+    Boolean result = available;
+    if (result == null) {
+      try {
+        checkAvailable();
+        result = true;
+      } catch (LinkageError ex) {
+        result = false;
+      }
+      available = result;
+    }
+    return result;
+  }
+
+  /**
+   * Throws an {@link IllegalStateException} instead of the {@link LinkageError} the library
+   * classes would throw if this compressor is not available.
+   */
+  final void checkUsable() {
+    if (!isAvailable()) {
+      throw new IllegalStateException("The library of the " + name + " compressor is not "
+          + "available");
+    }
+  }
+
+  @Nullable
+  public static MessageCompressor getById(int id) {
+    for (MessageCompressor compressor : values()) {
+      if (compressor.id == id) {
+        return compressor;
+      }
+    }
+    return null;
+  }
+
+  @Nullable
+  public static MessageCompressor getByName(String name) {
+    String lowerCaseName = name.toLowerCase(Locale.ROOT);
+    for (MessageCompressor compressor : values()) {
+      if (compressor.name.equals(lowerCaseName)) {
+        return compressor;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the compressors that can be used between two peers.
+   *
+   * @param requested the names of the compressors the other peer supports, in its preference
+   *                  order. Unknown names are ignored.
+   * @param supported the compressors this peer supports
+   * @return the requested compressors that are supported, in the order they were requested
+   */
+  public static List<MessageCompressor> negotiate(Iterable<String> requested,
+      Collection<MessageCompressor> supported) {
+    List<MessageCompressor> result = new ArrayList<>();
+    for (String name : requested) {
+      MessageCompressor compressor = getByName(name);
+      if (compressor != null && supported.contains(compressor) && !result.contains(compressor)) {
+        result.add(compressor);
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.messages.compression;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdException;
+
+import java.util.zip.DataFormatException;
+
+/**
+ * The calls to the optional zstd-jni library used by {@link MessageCompressor#ZSTD}.
+ *
+ * <p>This class is the only one that references zstd-jni, so it is only loaded once
+ * {@link MessageCompressor#isAvailable()} probes the library.
+ */
+final class ZstdCompression {
+
+  private ZstdCompression() {
+  }
+
+  static void checkAvailable() {
+    Zstd.compressBound(0);
+  }
+
+  static int maxCompressedLength(int length) {
+    return (int) Zstd.compressBound(length);
+  }
+
+  static int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset,
+      int level) {
+    long result = Zstd.compressByteArray(dst, dstOffset, dst.length - dstOffset, src, srcOffset,
+        length, level);
+    if (Zstd.isError(result)) {
+      throw new IllegalArgumentException(Zstd.getErrorName(result));
+    }
+    return (int) result;
+  }
+
+  static void decompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset,
+      int uncompressedLength) throws DataFormatException {
+    long result;
+    try {
+      result = Zstd.decompressByteArray(dst, dstOffset, uncompressedLength, src, srcOffset,
+          length);
+    } catch (ZstdException ex) {
+      DataFormatException dataEx = new DataFormatException(ex.getMessage());
+      dataEx.initCause(ex);
+      throw dataEx;
+    }
+    if (Zstd.isError(result)) {
+      throw new DataFormatException(Zstd.getErrorName(result));
+    }
+    if (result != uncompressedLength) {
+      throw new DataFormatException("Expected " + uncompressedLength + " uncompressed bytes, "
+          + "but " + result + " were found");
+    }
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.messages.request;
+
+import com.eightkdata.mongowp.annotations.Ethereal;
+import com.eightkdata.mongowp.bson.BsonDocument;
+import com.eightkdata.mongowp.bson.BsonValue;
+import com.eightkdata.mongowp.messages.utils.DocumentSequence;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * An OP_MSG request, which contains a command body and zero or more document sequences.
+ */
+@Immutable
+public class MsgMessage extends AbstractRequestMessage {
+
+  public static final RequestOpCode REQUEST_OP_CODE = RequestOpCode.OP_COMMAND_MSG;
+  public static final String DATABASE_FIELD = "$db";
+
+  private final boolean checksumPresent;
+  private final boolean moreToCome;
+  private final boolean exhaustAllowed;
+  @Nonnull
+  @Ethereal("getDataContext")
+  private final BsonDocument body;
+  @Nonnull
+  @Ethereal("getDataContext")
+  private final ImmutableList<DocumentSequence> documentSequences;
+
+  public MsgMessage(
+      @Nonnull RequestBaseMessage requestBaseMessage,
+      @Nonnull BsonContext dataContext,
+      boolean checksumPresent,
+      boolean moreToCome,
+      boolean exhaustAllowed,
+      @Nonnull @Ethereal("dataContext") BsonDocument body,
+      @Nonnull @Ethereal("dataContext") List<DocumentSequence> documentSequences) {
+    super(requestBaseMessage, dataContext);
+    this.checksumPresent = checksumPresent;
+    this.moreToCome = moreToCome;
+    this.exhaustAllowed = exhaustAllowed;
+    this.body = body;
+    this.documentSequences = ImmutableList.copyOf(documentSequences);
+  }
+
+  @Override
+  public RequestOpCode getOpCode() {
+    return REQUEST_OP_CODE;
+  }
+
+  public boolean isChecksumPresent() {
+    return checksumPresent;
+  }
+
+  /**
+   * @return true if the client does not expect a reply to this message
+   */
+  public boolean isMoreToCome() {
+    return moreToCome;
+  }
+
+  /**
+   * @return true if the client accepts several replies to this message
+   */
+  public boolean isExhaustAllowed() {
+    return exhaustAllowed;
+  }
+
+  @Nonnull
+  @Ethereal("this")
+  public BsonDocument getBody() {
+    return body;
+  }
+
+  @Nonnull
+  @Ethereal("this")
+  public ImmutableList<DocumentSequence> getDocumentSequences() {
+    return documentSequences;
+  }
+
+  /**
+   * Returns the database this message is sent to, as specified by the {@value #DATABASE_FIELD}
+   * field of its body, or null if there is no such field or it is not a string.
+   */
+  @Nullable
+  public String getDatabase() {
+    BsonValue<?> db = body.get(DATABASE_FIELD);
+    if (db == null || !db.isString()) {
+      return null;
+    }
+    return db.asString().getValue();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+
+    sb.append("MsgMessage{")
+        .append(super.toString())
+        .append(", checksumPresent=").append(checksumPresent)
+        .append(", moreToCome=").append(moreToCome)
+        .append(", exhaustAllowed=").append(exhaustAllowed);
+
+    if (getDataContext().isValid()) {
+      //TODO: This must be changed to preserve privacy on logs
+      sb.append(", body=").append(body);
+    } else {
+      sb.append(", body=<not available>");
+    }
+    return sb.append(", documentSequences=").append(documentSequences).append('}').toString();
+  }
+}
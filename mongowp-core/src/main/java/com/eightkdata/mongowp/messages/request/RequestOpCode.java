@@ -25,6 +25,9 @@ import java.util.Map;
  *
  */
 public enum RequestOpCode {
+  /**
+   * The deprecated diagnostic message, not to be confused with {@link #OP_COMMAND_MSG}.
+   */
   OP_MSG(1000),
   OP_UPDATE(2001),
   OP_INSERT(2002),
@@ -32,7 +35,17 @@ public enum RequestOpCode {
   OP_QUERY(2004),
   OP_GET_MORE(2005),
   OP_DELETE(2006),
-  OP_KILL_CURSORS(2007);
+  OP_KILL_CURSORS(2007),
+  /**
+   * A message that wraps another compressed message. It is unwrapped before the wrapped message
+   * is decoded.
+   */
+  OP_COMPRESSED(2012),
+  /**
+   * The message that carries commands since MongoDB 3.6, which MongoDB calls OP_MSG. It has
+   * another name here because {@link #OP_MSG} was already used by the diagnostic message.
+   */
+  OP_COMMAND_MSG(2013);
 
   private final int opCode;
 
@@ -58,6 +71,6 @@ public enum RequestOpCode {
   }
 
   public boolean canReply() {
-    return this.equals(OP_QUERY) || this.equals(OP_GET_MORE);
+    return this.equals(OP_QUERY) || this.equals(OP_GET_MORE) || this.equals(OP_COMMAND_MSG);
   }
 }
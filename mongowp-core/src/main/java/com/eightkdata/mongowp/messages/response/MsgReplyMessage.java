@@ -0,0 +1,162 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.messages.response;
+
+import com.eightkdata.mongowp.annotations.Ethereal;
+import com.eightkdata.mongowp.bson.BsonDocument;
+import com.eightkdata.mongowp.messages.request.BsonContext;
+import com.eightkdata.mongowp.messages.utils.DocumentSequence;
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * An OP_MSG reply, which contains a body and zero or more document sequences.
+ */
+public class MsgReplyMessage implements AutoCloseable {
+
+  private final int responseTo;
+  private final boolean checksumPresent;
+  private final boolean moreToCome;
+  @Nonnull
+  @Ethereal("dataContext")
+  private final BsonDocument body;
+  @Nonnull
+  @Ethereal("dataContext")
+  private final ImmutableList<DocumentSequence> documentSequences;
+  @Nonnull
+  private final BsonContext dataContext;
+
+  public MsgReplyMessage(
+      @Nonnull BsonContext dataContext,
+      int responseTo,
+      boolean checksumPresent,
+      boolean moreToCome,
+      @Nonnull @Ethereal("dataContext") BsonDocument body,
+      @Nonnull @Ethereal("dataContext") List<DocumentSequence> documentSequences) {
+    this.dataContext = dataContext;
+    this.responseTo = responseTo;
+    this.checksumPresent = checksumPresent;
+    this.moreToCome = moreToCome;
+    this.body = body;
+    this.documentSequences = ImmutableList.copyOf(documentSequences);
+  }
+
+  public int getResponseTo() {
+    return responseTo;
+  }
+
+  public boolean isChecksumPresent() {
+    return checksumPresent;
+  }
+
+  /**
+   * @return true if another reply to the same request will follow this one
+   */
+  public boolean isMoreToCome() {
+    return moreToCome;
+  }
+
+  @Nonnull
+  @Ethereal("this")
+  public BsonDocument getBody() {
+    return body;
+  }
+
+  @Nonnull
+  @Ethereal("this")
+  public ImmutableList<DocumentSequence> getDocumentSequences() {
+    return documentSequences;
+  }
+
+  @Override
+  public void close() throws Exception {
+    dataContext.close();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+
+    sb.append("MsgReplyMessage{responseTo=").append(responseTo)
+        .append(", checksumPresent=").append(checksumPresent)
+        .append(", moreToCome=").append(moreToCome);
+
+    if (dataContext.isValid()) {
+      //TODO: This must be changed to preserve privacy on logs
+      sb.append(", body=").append(body);
+    } else {
+      sb.append(", body=<not available>");
+    }
+    return sb.append(", documentSequences=").append(documentSequences).append('}').toString();
+  }
+
+  @NotThreadSafe
+  public static class Builder {
+
+    @Nonnull
+    private final BsonContext dataContext;
+    private final int responseTo;
+    @Nonnull
+    private final BsonDocument body;
+    private final List<DocumentSequence> documentSequences = new ArrayList<>();
+    private boolean checksumPresent;
+    private boolean moreToCome;
+
+    public Builder(
+        @Nonnull BsonContext dataContext,
+        int responseTo,
+        @Ethereal("dataContext") BsonDocument body) {
+      this.dataContext = dataContext;
+      this.responseTo = responseTo;
+      this.body = body;
+    }
+
+    public Builder setChecksumPresent(boolean checksumPresent) {
+      this.checksumPresent = checksumPresent;
+      return this;
+    }
+
+    public Builder setMoreToCome(boolean moreToCome) {
+      this.moreToCome = moreToCome;
+      return this;
+    }
+
+    public Builder addDocumentSequence(
+        @Ethereal("dataContext") DocumentSequence documentSequence) {
+      this.documentSequences.add(documentSequence);
+      return this;
+    }
+
+    public MsgReplyMessage build() {
+      return new MsgReplyMessage(
+          dataContext,
+          responseTo,
+          checksumPresent,
+          moreToCome,
+          body,
+          documentSequences
+      );
+    }
+  }
+}
@@ -22,7 +22,13 @@ package com.eightkdata.mongowp.messages.response;
  *
  */
 public enum ResponseOpCode {
-  OP_REPLY(1);
+  OP_REPLY(1),
+  OP_COMPRESSED(2012),
+  /**
+   * The reply of a {@link com.eightkdata.mongowp.messages.request.RequestOpCode#OP_COMMAND_MSG}
+   * request.
+   */
+  OP_COMMAND_MSG(2013);
 
   private final int opCode;
 
@@ -0,0 +1,115 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.messages.utils;
+
+import com.eightkdata.mongowp.annotations.Ethereal;
+import com.eightkdata.mongowp.bson.BsonArray;
+import com.eightkdata.mongowp.bson.BsonDocument;
+import com.eightkdata.mongowp.bson.BsonValue;
+import com.eightkdata.mongowp.bson.abst.AbstractIterableBasedBsonArray;
+import com.eightkdata.mongowp.bson.impl.ListBsonArray;
+import com.eightkdata.mongowp.bson.utils.BsonDocumentReader.AllocationType;
+import com.google.common.collect.Lists;
+import com.google.common.collect.UnmodifiableIterator;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+import java.io.ObjectStreamException;
+import java.util.Iterator;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A document sequence section of an OP_MSG message: a list of documents that is equivalent to an
+ * array field of the message body whose name is the sequence identifier.
+ */
+@Immutable
+public class DocumentSequence {
+
+  @Nonnull
+  private final String identifier;
+  @Nonnull
+  @Ethereal("this")
+  private final IterableDocumentProvider<?> documents;
+
+  public DocumentSequence(@Nonnull String identifier,
+      @Nonnull @Ethereal("whatever") IterableDocumentProvider<?> documents) {
+    this.identifier = identifier;
+    this.documents = documents;
+  }
+
+  @Nonnull
+  public String getIdentifier() {
+    return identifier;
+  }
+
+  @Nonnull
+  @Ethereal("this")
+  public IterableDocumentProvider<?> getDocuments() {
+    return documents;
+  }
+
+  /**
+   * Returns a lazy array view of this sequence. Documents are read each time the array is
+   * iterated, using the given allocation type.
+   */
+  @Ethereal("this")
+  public BsonArray asBsonArray(AllocationType allocationType) {
+    return new SequenceBsonArray(documents, allocationType);
+  }
+
+  @Override
+  public String toString() {
+    return "DocumentSequence{identifier='" + identifier + "'}";
+  }
+
+  @SuppressFBWarnings(value = "SE_BAD_FIELD", justification = "writeReplace is used")
+  private static class SequenceBsonArray extends AbstractIterableBasedBsonArray {
+
+    private static final long serialVersionUID = -2848127610396487425L;
+
+    private final IterableDocumentProvider<?> documents;
+    private final AllocationType allocationType;
+
+    SequenceBsonArray(IterableDocumentProvider<?> documents, AllocationType allocationType) {
+      this.documents = documents;
+      this.allocationType = allocationType;
+    }
+
+    @Override
+    public UnmodifiableIterator<BsonValue<?>> iterator() {
+      Iterator<? extends BsonDocument> it = documents.getIterable(allocationType).iterator();
+      return new UnmodifiableIterator<BsonValue<?>>() {
+        @Override
+        public boolean hasNext() {
+          return it.hasNext();
+        }
+
+        @Override
+        public BsonValue<?> next() {
+          return it.next();
+        }
+      };
+    }
+
+    private Object writeReplace() throws ObjectStreamException {
+      return new ListBsonArray(Lists.newArrayList(this));
+    }
+  }
+}
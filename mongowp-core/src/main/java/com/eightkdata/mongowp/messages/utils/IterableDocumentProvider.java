@@ -43,6 +43,13 @@ public abstract class IterableDocumentProvider<E extends BsonDocument> {
   @Ethereal("my-own-context")
   public abstract FluentIterable<E> getIterable(BsonDocumentReader.AllocationType algorithm);
 
+  /**
+   * Returns true iff there are no documents, without reading them.
+   */
+  public boolean isEmpty() {
+    return getIterable(AllocationType.OFFHEAP).isEmpty();
+  }
+
   @Material
   @SuppressWarnings("unchecked")
   public static <E1 extends BsonDocument> IterableDocumentProvider<E1> of() {
@@ -38,4 +38,9 @@ class SimpleIterableDocumentProvider<E extends BsonDocument> extends IterableDoc
   public FluentIterable<E> getIterable(AllocationType algorithm) {
     return documents;
   }
+
+  @Override
+  public boolean isEmpty() {
+    return documents.isEmpty();
+  }
 }
@@ -0,0 +1,217 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.server.api;
+
+import com.eightkdata.mongowp.annotations.MongoWp;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * A long-poll facility for tailable cursors with the {@code awaitData} option.
+ *
+ * <p>A request that has no data to return registers a callback on the namespace it reads with
+ * {@link #await(String, String, long, long, Runnable)}. The callback is executed once, when the
+ * backend {@link #signal(String, String) signals} that new data is available on that namespace
+ * or when the timeout expires, whatever happens first. Timeouts are tracked by a single
+ * {@link HashedWheelTimer}, so no thread is parked while a request waits.
+ *
+ * <p>Signals that arrive between the read that found no data and the registration of the callback
+ * are not lost: the request reads the {@link #getVersion(String, String) version} of the namespace
+ * before reading and the callback is executed immediately if a signal has changed it since then.
+ * Versions are kept on a fixed number of stripes shared by namespaces with the same hash, so a
+ * signal can wake up requests that wait on other namespaces, which just read again.
+ *
+ * <p>Callbacks are executed on the thread that calls {@link #signal(String, String)} or
+ * {@link #await(String, String, long, long, Runnable)} or on the timer thread, so they must not
+ * block. Usually they just submit the request again to the executor of its connection.
+ */
+@Singleton
+public class AwaitDataRegistry implements AutoCloseable {
+
+  private static final long TICK_MILLIS = 10;
+  private static final int VERSION_STRIPES = 256;
+
+  private final Timer timer;
+  private final ConcurrentHashMap<String, Set<Waiter>> waiters = new ConcurrentHashMap<>();
+  private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+  private final AtomicInteger waiting = new AtomicInteger();
+
+  @Inject
+  public AwaitDataRegistry(@MongoWp ThreadFactory threadFactory) {
+    this(new HashedWheelTimer(threadFactory, TICK_MILLIS, TimeUnit.MILLISECONDS));
+  }
+
+  public AwaitDataRegistry(Timer timer) {
+    this.timer = timer;
+  }
+
+  /**
+   * Returns the version of the given namespace, which changes each time new data is signaled on
+   * it.
+   *
+   * <p>It must be read before looking for new data and then given to
+   * {@link #await(String, String, long, long, Runnable)}.
+   */
+  public long getVersion(String database, String collection) {
+    return versions.get(toStripe(toNamespace(database, collection)));
+  }
+
+  /**
+   * Registers a callback that is executed once, when new data is signaled on the given namespace
+   * or when the timeout expires.
+   *
+   * @param version the {@link #getVersion(String, String) version} of the namespace when the
+   *                caller looked for new data. If it has changed, the callback is executed
+   *                before this method returns.
+   * @return a waiter that can be used to cancel the callback
+   */
+  public Waiter await(String database, String collection, long version, long timeoutMillis,
+      Runnable callback) {
+    String namespace = toNamespace(database, collection);
+    Waiter waiter = new Waiter(namespace, callback);
+    waiters.compute(namespace, (ns, namespaceWaiters) -> {
+      Set<Waiter> result = namespaceWaiters != null ? namespaceWaiters
+          : ConcurrentHashMap.newKeySet();
+      result.add(waiter);
+      return result;
+    });
+    waiting.incrementAndGet();
+    waiter.timeout = timer.newTimeout(waiter, Math.max(timeoutMillis, 0), TimeUnit.MILLISECONDS);
+    if (waiter.done.get()) {
+      waiter.timeout.cancel();
+    } else if (versions.get(toStripe(namespace)) != version) {
+      //the signal arrived before the waiter was registered
+      waiter.fire();
+    }
+    return waiter;
+  }
+
+  /**
+   * Wakes up the requests that are waiting for new data on the given namespace.
+   */
+  public void signal(String database, String collection) {
+    String namespace = toNamespace(database, collection);
+    versions.incrementAndGet(toStripe(namespace));
+    Set<Waiter> namespaceWaiters = waiters.get(namespace);
+    if (namespaceWaiters != null) {
+      for (Waiter waiter : namespaceWaiters) {
+        waiter.fire();
+      }
+    }
+  }
+
+  /**
+   * Returns the number of requests that are waiting for new data.
+   */
+  public int getWaiting() {
+    return waiting.get();
+  }
+
+  /**
+   * Returns the number of namespaces that have requests waiting for new data.
+   */
+  int getWaitedNamespaces() {
+    return waiters.size();
+  }
+
+  /**
+   * Stops the timer. Waiting callbacks are not executed.
+   */
+  @Override
+  public void close() {
+    timer.stop();
+  }
+
+  private static String toNamespace(String database, String collection) {
+    return database + '.' + collection;
+  }
+
+  private static int toStripe(String namespace) {
+    return (namespace.hashCode() & Integer.MAX_VALUE) % VERSION_STRIPES;
+  }
+
+  public final class Waiter implements TimerTask {
+
+    private final String namespace;
+    private final Runnable callback;
+    private final AtomicBoolean done = new AtomicBoolean();
+    private volatile Timeout timeout;
+
+    private Waiter(String namespace, Runnable callback) {
+      this.namespace = namespace;
+      this.callback = callback;
+    }
+
+    /**
+     * Cancels this waiter, so its callback is not executed.
+     *
+     * @return true iff the callback had not been executed or cancelled before
+     */
+    public boolean cancel() {
+      if (!finish()) {
+        return false;
+      }
+      Timeout t = timeout;
+      if (t != null) {
+        t.cancel();
+      }
+      return true;
+    }
+
+    private void fire() {
+      if (finish()) {
+        Timeout t = timeout;
+        if (t != null) {
+          t.cancel();
+        }
+        callback.run();
+      }
+    }
+
+    private boolean finish() {
+      if (!done.compareAndSet(false, true)) {
+        return false;
+      }
+      waiters.computeIfPresent(namespace, (ns, namespaceWaiters) -> {
+        namespaceWaiters.remove(this);
+        return namespaceWaiters.isEmpty() ? null : namespaceWaiters;
+      });
+      waiting.decrementAndGet();
+      return true;
+    }
+
+    @Override
+    public void run(Timeout timeout) {
+      fire();
+    }
+  }
+}
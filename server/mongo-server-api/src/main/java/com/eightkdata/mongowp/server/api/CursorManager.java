@@ -0,0 +1,335 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.server.api;
+
+import com.eightkdata.mongowp.annotations.MongoWp;
+import com.eightkdata.mongowp.exceptions.CursorInUseException;
+import com.eightkdata.mongowp.exceptions.CursorNotFoundException;
+import com.eightkdata.mongowp.server.MongoServerConfig;
+import com.eightkdata.mongowp.server.api.pojos.MongoCursor;
+import com.google.common.base.Preconditions;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongFunction;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * A registry of the cursors opened by the clients of a server.
+ *
+ * <p>Cursors are {@link #register(LongFunction, int, boolean) registered} with a random and
+ * unique id and they are stored on a concurrent map, so they can be looked up without locks.
+ * Operations {@link #pin(long) pin} a cursor while they use it, so it cannot be used by other
+ * operations and it does not time out.
+ *
+ * <p>Cursors that are not used during the configured idle timeout are closed, unless they were
+ * registered with the {@code noCursorTimeout} option. Idle timeouts are tracked by a
+ * {@link HashedWheelTimer}, which only reschedules a cursor timeout when it expires, so using a
+ * cursor does not touch the timer.
+ */
+@Singleton
+public class CursorManager implements AutoCloseable {
+
+  private static final Logger LOGGER = LogManager.getLogger(CursorManager.class);
+  private static final long TICK_MILLIS = 1000;
+  private static final int TICKS_PER_WHEEL = 512;
+
+  private static final int IDLE = 0;
+  private static final int PINNED = 1;
+  private static final int CLOSED = 2;
+
+  private final Timer timer;
+  private final long idleTimeoutNanos;
+  private final ConcurrentHashMap<Long, CursorEntry> cursors = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Integer, Set<Long>> connectionCursors =
+      new ConcurrentHashMap<>();
+  private final AtomicInteger pinnedCursors = new AtomicInteger();
+  private final LongAdder timedOutCursors = new LongAdder();
+
+  @Inject
+  public CursorManager(MongoServerConfig mongoServerConfig,
+      @MongoWp ThreadFactory threadFactory) {
+    this(new HashedWheelTimer(threadFactory, TICK_MILLIS, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL),
+        mongoServerConfig.getCursorIdleTimeoutMillis());
+  }
+
+  public CursorManager(Timer timer, long idleTimeoutMillis) {
+    Preconditions.checkArgument(idleTimeoutMillis > 0, "The idle timeout must be positive");
+    this.timer = timer;
+    this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+  }
+
+  /**
+   * Registers a new cursor.
+   *
+   * @param cursorFactory   a function that creates the cursor given the id assigned to it. The
+   *                        {@link MongoCursor#getId() id} of the created cursor must be the
+   *                        given one
+   * @param connectionId    the id of the connection that opens the cursor
+   * @param noCursorTimeout true iff the cursor must not be closed when it is idle
+   * @return the created cursor
+   */
+  public <C extends MongoCursor<?>> C register(LongFunction<C> cursorFactory, int connectionId,
+      boolean noCursorTimeout) {
+    CursorEntry entry = null;
+    while (entry == null) {
+      long id = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+      if (id != 0) {
+        CursorEntry candidate = new CursorEntry(id, connectionId, noCursorTimeout);
+        if (cursors.putIfAbsent(id, candidate) == null) {
+          entry = candidate;
+        }
+      }
+    }
+
+    C cursor;
+    try {
+      cursor = cursorFactory.apply(entry.id);
+      Preconditions.checkState(cursor.getId() == entry.id, "The id of the created cursor is %s "
+          + "but %s was expected", cursor.getId(), entry.id);
+    } catch (RuntimeException ex) {
+      cursors.remove(entry.id);
+      throw ex;
+    }
+    entry.cursor = cursor;
+    entry.lastUseNanos = System.nanoTime();
+    connectionCursors.computeIfAbsent(connectionId, id -> ConcurrentHashMap.newKeySet())
+        .add(entry.id);
+    if (!noCursorTimeout) {
+      entry.scheduleTimeout(idleTimeoutNanos);
+    }
+    //new entries are pinned until they are completely initialized
+    entry.state.set(IDLE);
+    return cursor;
+  }
+
+  /**
+   * Pins the given cursor, so other operations cannot use it and it does not time out until the
+   * returned lease is closed.
+   *
+   * @throws CursorNotFoundException if there is no cursor with the given id
+   * @throws CursorInUseException    if the cursor is pinned by another operation
+   */
+  public Lease pin(long cursorId) throws CursorNotFoundException, CursorInUseException {
+    CursorEntry entry = cursors.get(cursorId);
+    if (entry == null) {
+      throw new CursorNotFoundException(cursorId);
+    }
+    if (!entry.state.compareAndSet(IDLE, PINNED)) {
+      if (entry.state.get() == CLOSED) {
+        throw new CursorNotFoundException(cursorId);
+      }
+      throw new CursorInUseException(cursorId);
+    }
+    pinnedCursors.incrementAndGet();
+    return new Lease(entry);
+  }
+
+  /**
+   * Closes the given cursor. If it is pinned, it is closed once its lease is closed.
+   *
+   * @return true iff there was a cursor with the given id
+   */
+  public boolean kill(long cursorId) {
+    CursorEntry entry = cursors.get(cursorId);
+    if (entry == null) {
+      return false;
+    }
+    entry.killPending = true;
+    if (entry.state.compareAndSet(IDLE, CLOSED)) {
+      dispose(entry);
+    }
+    return true;
+  }
+
+  /**
+   * Closes all cursors opened by the given connection.
+   *
+   * @return the number of closed cursors
+   */
+  public int killConnectionCursors(int connectionId) {
+    Set<Long> ids = connectionCursors.remove(connectionId);
+    if (ids == null) {
+      return 0;
+    }
+    int killed = 0;
+    for (Long id : ids) {
+      if (kill(id)) {
+        killed++;
+      }
+    }
+    return killed;
+  }
+
+  /**
+   * Returns the number of registered cursors.
+   */
+  public int getOpenCursors() {
+    return cursors.size();
+  }
+
+  /**
+   * Returns the number of cursors that are being used by an operation.
+   */
+  public int getPinnedCursors() {
+    return pinnedCursors.get();
+  }
+
+  /**
+   * Returns the number of cursors that have been closed because they were idle.
+   */
+  public long getTimedOutCursors() {
+    return timedOutCursors.sum();
+  }
+
+  /**
+   * Stops the timer and closes all registered cursors. Pinned cursors are closed once their
+   * leases are closed.
+   */
+  @Override
+  public void close() {
+    timer.stop();
+    for (CursorEntry entry : cursors.values()) {
+      kill(entry.id);
+    }
+  }
+
+  private void dispose(CursorEntry entry) {
+    assert entry.state.get() == CLOSED;
+    cursors.remove(entry.id, entry);
+    Set<Long> ids = connectionCursors.get(entry.connectionId);
+    if (ids != null) {
+      ids.remove(entry.id);
+    }
+    Timeout timeout = entry.timeout;
+    if (timeout != null) {
+      timeout.cancel();
+    }
+    MongoCursor<?> cursor = entry.cursor;
+    if (cursor != null && !cursor.isClosed()) {
+      try {
+        cursor.close();
+      } catch (RuntimeException ex) {
+        LOGGER.warn("Error while closing cursor " + entry.id, ex);
+      }
+    }
+  }
+
+  /**
+   * The permission to use a pinned cursor. Closing it unpins the cursor. If the cursor has been
+   * closed while it was pinned, it is removed from the manager.
+   */
+  public final class Lease implements AutoCloseable {
+
+    private final CursorEntry entry;
+    private boolean released;
+
+    private Lease(CursorEntry entry) {
+      this.entry = entry;
+    }
+
+    public long getCursorId() {
+      return entry.id;
+    }
+
+    /**
+     * Returns the pinned cursor, casted to the type used when it was registered.
+     */
+    @SuppressWarnings("unchecked")
+    public <E> MongoCursor<E> getCursor() {
+      return (MongoCursor<E>) entry.cursor;
+    }
+
+    @Override
+    public void close() {
+      if (released) {
+        return;
+      }
+      released = true;
+      pinnedCursors.decrementAndGet();
+      entry.lastUseNanos = System.nanoTime();
+      if (entry.cursor.isClosed()) {
+        entry.killPending = true;
+      }
+      boolean unpinned = entry.state.compareAndSet(PINNED, IDLE);
+      assert unpinned;
+      if (entry.killPending && entry.state.compareAndSet(IDLE, CLOSED)) {
+        dispose(entry);
+      }
+    }
+  }
+
+  private final class CursorEntry implements TimerTask {
+
+    private final long id;
+    private final int connectionId;
+    private final boolean noCursorTimeout;
+    private final AtomicInteger state = new AtomicInteger(PINNED);
+    private volatile MongoCursor<?> cursor;
+    private volatile long lastUseNanos;
+    private volatile boolean killPending;
+    private volatile Timeout timeout;
+
+    private CursorEntry(long id, int connectionId, boolean noCursorTimeout) {
+      this.id = id;
+      this.connectionId = connectionId;
+      this.noCursorTimeout = noCursorTimeout;
+    }
+
+    private void scheduleTimeout(long delayNanos) {
+      assert !noCursorTimeout;
+      timeout = timer.newTimeout(this, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void run(Timeout timeout) {
+      long idleNanos = System.nanoTime() - lastUseNanos;
+      if (idleNanos >= idleTimeoutNanos && state.compareAndSet(IDLE, CLOSED)) {
+        LOGGER.debug("Closing cursor {} after being idle for {} ms", id,
+            TimeUnit.NANOSECONDS.toMillis(idleNanos));
+        timedOutCursors.increment();
+        dispose(this);
+        return;
+      }
+      switch (state.get()) {
+        case IDLE:
+          scheduleTimeout(idleTimeoutNanos - idleNanos);
+          break;
+        case PINNED:
+          scheduleTimeout(idleTimeoutNanos);
+          break;
+        default:
+          break;
+      }
+    }
+  }
+}
@@ -21,23 +21,34 @@ package com.eightkdata.mongowp.server.api;
 import com.eightkdata.mongowp.MongoConstants;
 import com.eightkdata.mongowp.Status;
 import com.eightkdata.mongowp.bson.BsonDocument;
+import com.eightkdata.mongowp.bson.BsonDocument.Entry;
+import com.eightkdata.mongowp.bson.BsonValue;
+import com.eightkdata.mongowp.bson.utils.BsonDocumentReader.AllocationType;
 import com.eightkdata.mongowp.bson.utils.DefaultBsonValues;
+import com.eightkdata.mongowp.exceptions.BadValueException;
 import com.eightkdata.mongowp.exceptions.CommandNotFoundException;
 import com.eightkdata.mongowp.exceptions.FailedToParseException;
 import com.eightkdata.mongowp.exceptions.MongoException;
 import com.eightkdata.mongowp.exceptions.UnauthorizedException;
+import com.eightkdata.mongowp.fields.ArrayField;
 import com.eightkdata.mongowp.fields.DoubleField;
 import com.eightkdata.mongowp.fields.IntField;
 import com.eightkdata.mongowp.fields.StringField;
+import com.eightkdata.mongowp.messages.compression.MessageCompressor;
 import com.eightkdata.mongowp.messages.request.DeleteMessage;
+import com.eightkdata.mongowp.messages.request.EmptyBsonContext;
 import com.eightkdata.mongowp.messages.request.GetMoreMessage;
 import com.eightkdata.mongowp.messages.request.InsertMessage;
 import com.eightkdata.mongowp.messages.request.KillCursorsMessage;
+import com.eightkdata.mongowp.messages.request.MsgMessage;
 import com.eightkdata.mongowp.messages.request.QueryMessage;
 import com.eightkdata.mongowp.messages.request.QueryMessage.QueryOptions;
 import com.eightkdata.mongowp.messages.request.RequestOpCode;
 import com.eightkdata.mongowp.messages.request.UpdateMessage;
+import com.eightkdata.mongowp.messages.response.MsgReplyMessage;
 import com.eightkdata.mongowp.messages.response.ReplyMessage;
+import com.eightkdata.mongowp.messages.utils.DocumentSequence;
+import com.eightkdata.mongowp.server.MongoServerConfig;
 import com.eightkdata.mongowp.server.api.CommandsLibrary.LibraryEntry;
 import com.eightkdata.mongowp.server.api.Request.ExternalClientInfo;
 import com.eightkdata.mongowp.server.api.pojos.QueryRequest;
@@ -47,7 +58,18 @@ import com.eightkdata.mongowp.utils.BsonDocumentBuilder;
 import io.netty.util.AttributeKey;
 import io.netty.util.AttributeMap;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 
 /**
@@ -58,21 +80,65 @@ public class RequestProcessorAdaptor<C extends Connection> implements RequestPro
   public final AttributeKey<C> connection = AttributeKey.valueOf(
       RequestProcessorAdaptor.class.getCanonicalName() + ".connection");
 
+  private static final AttributeKey<ConcurrentMap<Long, AwaitDataCursor>> AWAIT_DATA_CURSORS =
+      AttributeKey.valueOf(RequestProcessorAdaptor.class.getCanonicalName()
+          + ".awaitDataCursors");
+
   public static final String QUERY_MESSAGE_COMMAND_COLLECTION = "$cmd";
   public static final String QUERY_MESSAGE_ADMIN_DATABASE = "admin";
+  public static final String READ_PREFERENCE_FIELD = "$readPreference";
   public static final IntField ERR_CODE = new IntField("code");
   public static final StringField ERR_MSG_FIELD = new StringField("errmsg");
   public static final DoubleField OK_FIELD = new DoubleField("ok");
+  public static final ArrayField COMPRESSION_FIELD = new ArrayField("compression");
+  public static final String GET_MORE_COMMAND = "getMore";
+  private static final String CURSOR_FIELD = "cursor";
+  private static final String CURSOR_ID_FIELD = "id";
+  /**
+   * The time a getMore on an awaitData cursor waits for new data if the query that created the
+   * cursor did not specify a {@code $maxTimeMS}.
+   */
+  public static final int DEFAULT_AWAIT_DATA_MILLIS = 1000;
 
   private final SafeRequestProcessor<C> safeRequestProcessor;
   private final ErrorHandler errorHandler;
+  private final List<MessageCompressor> compressors;
+  @Nullable
+  private final AwaitDataRegistry awaitDataRegistry;
+  @Nullable
+  private final CursorManager cursorManager;
 
-  @Inject
+  /**
+   * Creates an adaptor that does not support compression, that replies getMore requests on
+   * awaitData cursors immediately and that does not close the cursors of closed connections.
+   */
   public RequestProcessorAdaptor(
       SafeRequestProcessor<C> safeRequestProcessor,
       ErrorHandler errorHandler) {
     this.safeRequestProcessor = safeRequestProcessor;
     this.errorHandler = errorHandler;
+    this.compressors = Collections.emptyList();
+    this.awaitDataRegistry = null;
+    this.cursorManager = null;
+  }
+
+  @Inject
+  public RequestProcessorAdaptor(
+      SafeRequestProcessor<C> safeRequestProcessor,
+      ErrorHandler errorHandler,
+      MongoServerConfig mongoServerConfig,
+      AwaitDataRegistry awaitDataRegistry,
+      CursorManager cursorManager) {
+    this.safeRequestProcessor = safeRequestProcessor;
+    this.errorHandler = errorHandler;
+    this.awaitDataRegistry = awaitDataRegistry;
+    this.cursorManager = cursorManager;
+    this.compressors = new ArrayList<>();
+    for (MessageCompressor compressor : mongoServerConfig.getCompressors()) {
+      if (compressor.isAvailable()) {
+        compressors.add(compressor);
+      }
+    }
   }
 
   @Nonnull
@@ -100,12 +166,35 @@ public class RequestProcessorAdaptor<C extends Connection> implements RequestPro
 
   @Override
   public void onChannelInactive(AttributeMap attMap) {
+    ConcurrentMap<Long, AwaitDataCursor> awaitDataCursors = attMap.attr(AWAIT_DATA_CURSORS)
+        .getAndRemove();
+    if (awaitDataCursors != null) {
+      for (AwaitDataCursor awaitDataCursor : awaitDataCursors.values()) {
+        awaitDataCursor.cancel();
+      }
+    }
     C connection = attMap.attr(this.connection).getAndRemove();
     if (connection != null) {
+      if (cursorManager != null) {
+        cursorManager.killConnectionCursors(connection.getConnectionId());
+      }
       connection.close();
     }
   }
 
+  /**
+   * Closes the {@link AwaitDataRegistry} and the {@link CursorManager}, if any.
+   */
+  @Override
+  public void onServerShutDown() {
+    if (awaitDataRegistry != null) {
+      awaitDataRegistry.close();
+    }
+    if (cursorManager != null) {
+      cursorManager.close();
+    }
+  }
+
   @Override
   public void queryMessage(QueryMessage queryMessage, MessageReplier messageReplier) throws
       MongoException {
@@ -150,17 +239,54 @@ public class RequestProcessorAdaptor<C extends Connection> implements RequestPro
           messageReplier.getRequestId(),
           requestBuilder.build()
       );
+      if (awaitDataRegistry != null && queryOptions.isTailable() && queryOptions.isAwaitData()
+          && reply.getCursorId() != 0) {
+        int awaitMillis = queryMessage.getMaxTimeMs() > 0 ? queryMessage.getMaxTimeMs()
+            : DEFAULT_AWAIT_DATA_MILLIS;
+        getAwaitDataCursors(messageReplier).put(reply.getCursorId(), new AwaitDataCursor(
+            queryMessage.getDatabase(), queryMessage.getCollection(), awaitMillis));
+      }
       messageReplier.replyMessage(reply);
     }
 
   }
 
-  @SuppressWarnings("unchecked")
+  private ConcurrentMap<Long, AwaitDataCursor> getAwaitDataCursors(
+      MessageReplier messageReplier) {
+    ConcurrentMap<Long, AwaitDataCursor> cursors = messageReplier.getAttributeMap()
+        .attr(AWAIT_DATA_CURSORS).get();
+    if (cursors == null) {
+      cursors = new ConcurrentHashMap<>();
+      ConcurrentMap<Long, AwaitDataCursor> oldCursors = messageReplier.getAttributeMap()
+          .attr(AWAIT_DATA_CURSORS).setIfAbsent(cursors);
+      if (oldCursors != null) {
+        cursors = oldCursors;
+      }
+    }
+    return cursors;
+  }
+
   private void executeCommand(
       C connection,
       QueryMessage queryMessage,
       MessageReplier messageReplier) throws MongoException {
-    BsonDocument document = queryMessage.getQuery();
+    BsonDocument reply = executeCommand(
+        connection,
+        queryMessage.getDatabase(),
+        queryMessage.getQuery(),
+        new ExternalClientInfo(queryMessage.getClientAddress(), queryMessage.getClientPort()),
+        queryMessage.getQueryOptions().isSlaveOk()
+    );
+    messageReplier.replyMessageNoCursor(reply);
+  }
+
+  @SuppressWarnings("unchecked")
+  private BsonDocument executeCommand(
+      C connection,
+      String database,
+      BsonDocument document,
+      ExternalClientInfo clientInfo,
+      boolean slaveOk) throws MongoException {
     LibraryEntry libraryEntry = safeRequestProcessor.getCommandsLibrary()
         .find(document);
     Command command = libraryEntry.getCommand();
@@ -173,7 +299,7 @@ public class RequestProcessorAdaptor<C extends Connection> implements RequestPro
     }
 
     if (command.isAdminOnly()) {
-      if (!QUERY_MESSAGE_ADMIN_DATABASE.equals(queryMessage.getDatabase())) {
+      if (!QUERY_MESSAGE_ADMIN_DATABASE.equals(database)) {
         throw new UnauthorizedException(
             command.getCommandName() + "may only be run "
             + "against the admin database."
@@ -184,9 +310,9 @@ public class RequestProcessorAdaptor<C extends Connection> implements RequestPro
     Object arg = command.unmarshallArg(document, libraryEntry.getAlias());
 
     Request request = new Request(
-        queryMessage.getDatabase(),
-        new ExternalClientInfo(queryMessage.getClientAddress(), queryMessage.getClientPort()),
-        queryMessage.getQueryOptions().isSlaveOk(),
+        database,
+        clientInfo,
+        slaveOk,
         null //Set the requested timeout
     );
     Status<?> reply = safeRequestProcessor.execute(request, command, arg, connection);
@@ -204,6 +330,9 @@ public class RequestProcessorAdaptor<C extends Connection> implements RequestPro
                 .build();
           }
         }
+        if (isHandshake(command)) {
+          bson = appendNegotiatedCompressors(document, bson);
+        }
       } catch (MarshalException ex) {
         throw new FailedToParseException(ex.getLocalizedMessage());
       }
@@ -215,25 +344,197 @@ public class RequestProcessorAdaptor<C extends Connection> implements RequestPro
           .build();
     }
 
-    messageReplier.replyMessageNoCursor(bson);
+    return bson;
+  }
+
+  private boolean isHandshake(Command<?, ?> command) {
+    return "isMaster".equalsIgnoreCase(command.getCommandName())
+        || "hello".equals(command.getCommandName());
+  }
+
+  /**
+   * Adds to the reply of a handshake command the compressors requested by the client that this
+   * server supports, so the client can send compressed messages.
+   */
+  private BsonDocument appendNegotiatedCompressors(BsonDocument request, BsonDocument reply) {
+    BsonValue<?> requested = request.get(COMPRESSION_FIELD.getFieldName());
+    if (compressors.isEmpty() || requested == null || !requested.isArray()
+        || reply.containsKey(COMPRESSION_FIELD.getFieldName())) {
+      return reply;
+    }
+    List<String> requestedNames = new ArrayList<>();
+    for (BsonValue<?> name : requested.asArray()) {
+      if (name.isString()) {
+        requestedNames.add(name.asString().getValue());
+      }
+    }
+    List<BsonValue<?>> negotiated = new ArrayList<>();
+    for (MessageCompressor compressor : MessageCompressor.negotiate(requestedNames,
+        compressors)) {
+      negotiated.add(DefaultBsonValues.newString(compressor.getName()));
+    }
+    return new BsonDocumentBuilder(reply)
+        .append(COMPRESSION_FIELD, negotiated)
+        .build();
+  }
+
+  /**
+   * Executes the command contained on an OP_MSG message.
+   *
+   * <p>The command is the message body without its {@value MsgMessage#DATABASE_FIELD} field. Each
+   * document sequence is added to it as a lazy array field whose name is the sequence identifier,
+   * so its documents are only read when the command iterates them. A sequence whose identifier
+   * is already used by the body or by another sequence is rejected.
+   *
+   * <p>If the message has the {@code exhaustAllowed} flag, is a {@value #GET_MORE_COMMAND}
+   * command and the returned cursor is not exhausted, the reply is sent with the
+   * {@code moreToCome} flag. The transport must then execute the same message again to stream the
+   * next batch, until a reply without that flag is sent.
+   */
+  @Override
+  public void msg(MsgMessage msgMessage, MessageReplier messageReplier) throws MongoException {
+    String database = msgMessage.getDatabase();
+    if (database == null) {
+      throw new BadValueException("OP_MSG body must contain a string "
+          + MsgMessage.DATABASE_FIELD + " field");
+    }
+
+    BsonDocumentBuilder commandBuilder = new BsonDocumentBuilder();
+    for (Entry<?> entry : msgMessage.getBody()) {
+      if (!MsgMessage.DATABASE_FIELD.equals(entry.getKey())) {
+        commandBuilder.appendUnsafe(entry.getKey(), entry.getValue());
+      }
+    }
+    Set<String> sequenceIdentifiers = new HashSet<>();
+    for (DocumentSequence sequence : msgMessage.getDocumentSequences()) {
+      String identifier = sequence.getIdentifier();
+      if (msgMessage.getBody().containsKey(identifier) || !sequenceIdentifiers.add(identifier)) {
+        throw new BadValueException("Duplicate field " + identifier + " on the OP_MSG body "
+            + "and document sequences");
+      }
+      commandBuilder.appendUnsafe(identifier, sequence.asBsonArray(AllocationType.OFFHEAP_VALUES));
+    }
+
+    C connection = getConnection(messageReplier);
+    BsonDocument reply = executeCommand(
+        connection,
+        database,
+        commandBuilder.build(),
+        new ExternalClientInfo(msgMessage.getClientAddress(), msgMessage.getClientPort()),
+        isSecondaryOk(msgMessage.getBody())
+    );
+    boolean moreToCome = msgMessage.isExhaustAllowed() && isStreamable(msgMessage)
+        && getCursorId(reply) != 0;
+    messageReplier.replyMessage(new MsgReplyMessage.Builder(
+        EmptyBsonContext.getInstance(), messageReplier.getRequestId(), reply)
+        .setMoreToCome(moreToCome)
+        .build());
+  }
+
+  /**
+   * Only getMore commands can be streamed, as the same command returns the next batch each time
+   * it is executed.
+   */
+  private boolean isStreamable(MsgMessage msgMessage) {
+    BsonDocument body = msgMessage.getBody();
+    return !body.isEmpty() && GET_MORE_COMMAND.equals(body.getFirstEntry().getKey())
+        && msgMessage.getDocumentSequences().isEmpty();
+  }
+
+  /**
+   * Returns the id of the cursor returned by a successful command or 0 if the command failed or
+   * did not return a cursor.
+   */
+  private long getCursorId(BsonDocument reply) {
+    BsonValue<?> ok = reply.get(OK_FIELD.getFieldName());
+    BsonValue<?> cursor = reply.get(CURSOR_FIELD);
+    if (ok == null || !ok.isNumber() || ok.asNumber().intValue() != 1 || cursor == null
+        || !cursor.isDocument()) {
+      return 0;
+    }
+    BsonValue<?> id = cursor.asDocument().get(CURSOR_ID_FIELD);
+    return id != null && id.isNumber() ? id.asNumber().longValue() : 0;
+  }
+
+  private boolean isSecondaryOk(BsonDocument body) {
+    BsonValue<?> readPreference = body.get(READ_PREFERENCE_FIELD);
+    if (readPreference == null || !readPreference.isDocument()) {
+      return false;
+    }
+    BsonValue<?> mode = readPreference.asDocument().get("mode");
+    return mode != null && mode.isString() && !"primary".equals(mode.asString().getValue());
   }
 
+  /**
+   * Executes a getMore request.
+   *
+   * <p>If the cursor was created by a tailable query with the {@code awaitData} option and there
+   * is no new data, the reply is delayed until the {@link AwaitDataRegistry} signals new data on
+   * the cursor namespace or the await time of the query expires.
+   */
   @Override
   public void getMore(GetMoreMessage getMoreMessage, MessageReplier messageReplier) {
     C connection = getConnection(messageReplier);
-    try {
-      Request req = new Request(
-          getMoreMessage.getDatabase(),
-          new ExternalClientInfo(getMoreMessage.getClientAddress(), getMoreMessage.getRequestId()),
-          true,
-          null //Set the requested timeout
-      );
+    int requestId = messageReplier.getRequestId();
+    Request req = new Request(
+        getMoreMessage.getDatabase(),
+        new ExternalClientInfo(getMoreMessage.getClientAddress(), getMoreMessage.getRequestId()),
+        true,
+        null //Set the requested timeout
+    );
+    AwaitDataCursor awaitDataCursor = awaitDataRegistry == null ? null
+        : getAwaitDataCursors(messageReplier).get(getMoreMessage.getCursorId());
+    long deadline = awaitDataCursor == null ? 0
+        : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(awaitDataCursor.awaitMillis);
+    getMore(connection, req, requestId, getMoreMessage, messageReplier, awaitDataCursor,
+        deadline);
+  }
 
-      ReplyMessage reply = safeRequestProcessor.getMore(connection, req, messageReplier
-          .getRequestId(), getMoreMessage);
+  private void getMore(C connection, Request req, int requestId, GetMoreMessage getMoreMessage,
+      MessageReplier messageReplier, @Nullable AwaitDataCursor awaitDataCursor, long deadline) {
+    try {
+      //read before the cursor, so the data signaled after it is read is not lost
+      long version = awaitDataCursor == null ? 0 : awaitDataRegistry.getVersion(
+          awaitDataCursor.database, awaitDataCursor.collection);
+      ReplyMessage reply = safeRequestProcessor.getMore(connection, req, requestId,
+          getMoreMessage);
+      if (awaitDataCursor != null) {
+        if (reply.getCursorId() == 0 || reply.isCursorNotFound()) {
+          getAwaitDataCursors(messageReplier).remove(getMoreMessage.getCursorId());
+        } else if (System.nanoTime() < deadline && reply.getDocuments().isEmpty()) {
+          closeQuietly(reply);
+          awaitData(connection, req, requestId, getMoreMessage, messageReplier, awaitDataCursor,
+              version, deadline);
+          return;
+        }
+      }
       messageReplier.replyMessage(reply);
     } catch (MongoException ex) {
-      errorHandler.handleMongodbException(connection, messageReplier.getRequestId(), false, ex);
+      errorHandler.handleMongodbException(connection, requestId, false, ex);
+    }
+  }
+
+  private void awaitData(C connection, Request req, int requestId, GetMoreMessage getMoreMessage,
+      MessageReplier messageReplier, AwaitDataCursor awaitDataCursor, long version,
+      long deadline) {
+    assert awaitDataRegistry != null;
+    long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    awaitDataCursor.waiter = awaitDataRegistry.await(awaitDataCursor.database,
+        awaitDataCursor.collection, version, remainingMillis,
+        () -> messageReplier.executeOnConnection(() -> {
+          if (messageReplier.getAttributeMap().attr(this.connection).get() != connection) {
+            return; //the connection has been closed while waiting
+          }
+          getMore(connection, req, requestId, getMoreMessage, messageReplier, awaitDataCursor,
+              deadline);
+        }));
+  }
+
+  private static void closeQuietly(ReplyMessage reply) {
+    try {
+      reply.close();
+    } catch (Exception ex) {
+      throw new AssertionError("Closing a reply should not fail", ex);
     }
   }
 
@@ -249,6 +550,13 @@ public class RequestProcessorAdaptor<C extends Connection> implements RequestPro
           null //Set the requested timeout
       );
       safeRequestProcessor.killCursors(connection, req, killCursorsMessage);
+      if (awaitDataRegistry != null) {
+        ConcurrentMap<Long, AwaitDataCursor> awaitDataCursors = getAwaitDataCursors(
+            messageReplier);
+        for (long cursorId : killCursorsMessage.getCursorIds()) {
+          awaitDataCursors.remove(cursorId);
+        }
+      }
     } catch (MongoException ex) {
       errorHandler.handleMongodbException(connection, messageReplier.getRequestId(), false, ex);
     }
@@ -323,8 +631,52 @@ public class RequestProcessorAdaptor<C extends Connection> implements RequestPro
       );
     }
     if (requestOpCode.canReply() && handleMongodbException != null) {
-      messageReplier.replyMessage(handleMongodbException);
+      if (requestOpCode == RequestOpCode.OP_COMMAND_MSG) {
+        messageReplier.replyMessage(toMsgReply(handleMongodbException));
+      } else {
+        messageReplier.replyMessage(handleMongodbException);
+      }
     }
     return true;
   }
+
+  /**
+   * OP_MSG requests must be replied with OP_MSG messages, so the error document generated by the
+   * {@link ErrorHandler} is used as the body of the reply.
+   */
+  private MsgReplyMessage toMsgReply(ReplyMessage reply) {
+    Iterator<? extends BsonDocument> docs = reply.getDocuments()
+        .getIterable(AllocationType.HEAP).iterator();
+    BsonDocument body = docs.hasNext() ? docs.next() : new BsonDocumentBuilder()
+        .append(OK_FIELD, MongoConstants.KO)
+        .build();
+    return new MsgReplyMessage.Builder(
+        EmptyBsonContext.getInstance(), reply.getResponseTo(), body)
+        .build();
+  }
+
+  private static class AwaitDataCursor {
+
+    private final String database;
+    private final String collection;
+    private final int awaitMillis;
+    /**
+     * The last waiter registered by a getMore on this cursor.
+     */
+    @Nullable
+    private volatile AwaitDataRegistry.Waiter waiter;
+
+    AwaitDataCursor(String database, String collection, int awaitMillis) {
+      this.database = database;
+      this.collection = collection;
+      this.awaitMillis = awaitMillis;
+    }
+
+    void cancel() {
+      AwaitDataRegistry.Waiter w = waiter;
+      if (w != null) {
+        w.cancel();
+      }
+    }
+  }
 }
@@ -0,0 +1,114 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.server.api.pojos;
+
+import com.eightkdata.mongowp.MongoConstants;
+import com.eightkdata.mongowp.server.MongoServerConfig;
+import com.google.common.base.Preconditions;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * The limits of the batches returned by cursors, following the MongoDB semantics: the first batch
+ * contains up to {@link #getFirstBatchMaxDocs()} documents and
+ * {@link #getFirstBatchMaxBytes()} bytes, while the next ones are only limited by
+ * {@link #getBatchMaxBytes()} bytes. A batch size explicitly requested by the client limits the
+ * number of documents of every batch instead.
+ *
+ * <p>A batch always contains at least one document, so a document bigger than the byte limits
+ * is returned alone.
+ */
+@Singleton
+public class BatchSizeLimits {
+
+  public static final BatchSizeLimits DEFAULT = new BatchSizeLimits(101, 1024 * 1024,
+      MongoConstants.MAX_BSON_OBJECT_SIZE_BYTES);
+
+  private final int firstBatchMaxDocs;
+  private final int firstBatchMaxBytes;
+  private final int batchMaxBytes;
+
+  @Inject
+  public BatchSizeLimits(MongoServerConfig mongoServerConfig) {
+    this(mongoServerConfig.getFirstBatchMaxDocs(), mongoServerConfig.getFirstBatchMaxBytes(),
+        mongoServerConfig.getBatchMaxBytes());
+  }
+
+  public BatchSizeLimits(int firstBatchMaxDocs, int firstBatchMaxBytes, int batchMaxBytes) {
+    Preconditions.checkArgument(firstBatchMaxDocs > 0, "The first batch max docs must be positive");
+    Preconditions.checkArgument(firstBatchMaxBytes > 0,
+        "The first batch max bytes must be positive");
+    Preconditions.checkArgument(batchMaxBytes > 0, "The batch max bytes must be positive");
+    this.firstBatchMaxDocs = firstBatchMaxDocs;
+    this.firstBatchMaxBytes = firstBatchMaxBytes;
+    this.batchMaxBytes = batchMaxBytes;
+  }
+
+  public int getFirstBatchMaxDocs() {
+    return firstBatchMaxDocs;
+  }
+
+  public int getFirstBatchMaxBytes() {
+    return firstBatchMaxBytes;
+  }
+
+  public int getBatchMaxBytes() {
+    return batchMaxBytes;
+  }
+
+  /**
+   * Returns the maximum number of documents of a batch.
+   *
+   * @param firstBatch         true iff the batch is the first one of its cursor
+   * @param requestedBatchSize the batch size requested by the client or a value lower or equal
+   *                           than zero if none was requested
+   */
+  public int getMaxDocs(boolean firstBatch, int requestedBatchSize) {
+    if (requestedBatchSize > 0) {
+      return requestedBatchSize;
+    }
+    return firstBatch ? firstBatchMaxDocs : Integer.MAX_VALUE;
+  }
+
+  /**
+   * Returns the maximum number of document bytes of a batch.
+   *
+   * @param firstBatch true iff the batch is the first one of its cursor
+   */
+  public int getMaxBytes(boolean firstBatch) {
+    return firstBatch ? firstBatchMaxBytes : batchMaxBytes;
+  }
+
+  /**
+   * Returns true iff a document can be added to a batch without exceeding its byte limit.
+   *
+   * <p>Cursors must check it before they add each document, so the only batches that exceed the
+   * limit are the ones that contain a single document.
+   *
+   * @param batchDocs  the number of documents already on the batch
+   * @param batchBytes the encoded size of the documents already on the batch
+   * @param docBytes   the encoded size of the document to add
+   * @param firstBatch true iff the batch is the first one of its cursor
+   */
+  public boolean fitsInBatch(int batchDocs, long batchBytes, int docBytes, boolean firstBatch) {
+    return batchDocs == 0 || batchBytes + docBytes <= getMaxBytes(firstBatch);
+  }
+
+}
@@ -19,33 +19,94 @@
 package com.eightkdata.mongowp.server.api.pojos;
 
 import com.eightkdata.mongowp.exceptions.MongoException;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
+import com.google.common.collect.PeekingIterator;
 import com.google.common.net.HostAndPort;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.function.ToIntFunction;
+
+import javax.annotation.Nullable;
 
 /**
+ * A cursor whose elements are taken from an iterator.
+ *
+ * <p>Batches contain up to {@link #getMaxBatchSize()} elements or 1000 if no batch size has been
+ * requested. If the cursor is created with {@link BatchSizeLimits}, these limits are used
+ * instead and batches are also limited by the encoded size of their elements, as MongoDB does.
  *
+ * <p>Closing the cursor does not consume the remaining elements. Instead, the iterator is closed
+ * if it is {@link AutoCloseable} and then the close handler given on construction, if any, is
+ * called, so backends can release the resources of the scan at once.
  */
 public class IteratorMongoCursor<E> implements MongoCursor<E> {
 
+  private static final Logger LOGGER = LogManager.getLogger(IteratorMongoCursor.class);
+  private static final int DEFAULT_BATCH_SIZE = 1000;
+
   private final String database;
   private final String collection;
   private final long id;
   private final HostAndPort remoteAddress;
-  private final Iterator<E> iterator;
+  private final Iterator<E> source;
+  private final PeekingIterator<E> iterator;
+  @Nullable
+  private final AutoCloseable closeHandler;
+  @Nullable
+  private final BatchSizeLimits limits;
+  @Nullable
+  private final ToIntFunction<? super E> sizeFunction;
   private boolean closed = false;
-  private int batchSize = 1000;
+  private int batchSize = 0;
+  private boolean firstBatch = true;
 
   public IteratorMongoCursor(String database, String collection, long id, HostAndPort remoteAddress,
       Iterator<E> iterator) {
+    this(database, collection, id, remoteAddress, iterator, null, null, null);
+  }
+
+  /**
+   * Creates a cursor whose batches are limited by the given limits.
+   *
+   * @param sizeFunction a function that returns the encoded size of an element, like
+   *                     {@link com.eightkdata.mongowp.bson.utils.EncodedSizeCalculator#calculate}
+   *                     for BSON values. It is called once per element
+   */
+  public IteratorMongoCursor(String database, String collection, long id, HostAndPort remoteAddress,
+      Iterator<E> iterator, @Nullable BatchSizeLimits limits,
+      @Nullable ToIntFunction<? super E> sizeFunction) {
+    this(database, collection, id, remoteAddress, iterator, limits, sizeFunction, null);
+  }
+
+  /**
+   * Creates a cursor that calls the given handler when it is closed.
+   *
+   * @param closeHandler called when the cursor is closed, after the iterator has been closed if
+   *                     it is {@link AutoCloseable}
+   * @see #IteratorMongoCursor(String, String, long, HostAndPort, Iterator, BatchSizeLimits,
+   *      ToIntFunction)
+   */
+  public IteratorMongoCursor(String database, String collection, long id, HostAndPort remoteAddress,
+      Iterator<E> iterator, @Nullable BatchSizeLimits limits,
+      @Nullable ToIntFunction<? super E> sizeFunction, @Nullable AutoCloseable closeHandler) {
+    Preconditions.checkArgument((limits == null) == (sizeFunction == null),
+        "Batch size limits require a size function");
     this.database = database;
     this.collection = collection;
     this.id = id;
     this.remoteAddress = remoteAddress;
-    this.iterator = iterator;
+    this.source = iterator;
+    this.iterator = Iterators.peekingIterator(iterator);
+    this.closeHandler = closeHandler;
+    this.limits = limits;
+    this.sizeFunction = sizeFunction;
   }
 
   @Override
@@ -60,12 +121,37 @@ public class IteratorMongoCursor<E> implements MongoCursor<E> {
 
   @Override
   public Batch<E> fetchBatch() throws MongoException, DeadCursorException {
-    return new CollectionBatch<>(Lists.newArrayList(Iterators.limit(iterator, batchSize)), System
-        .currentTimeMillis());
+    if (closed) {
+      throw new DeadCursorException();
+    }
+    if (limits == null) {
+      int maxDocs = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+      return new CollectionBatch<>(Lists.newArrayList(Iterators.limit(iterator, maxDocs)), System
+          .currentTimeMillis());
+    }
+    assert sizeFunction != null;
+    boolean first = firstBatch;
+    firstBatch = false;
+    int maxDocs = limits.getMaxDocs(first, batchSize);
+
+    List<E> docs = new ArrayList<>();
+    long bytes = 0;
+    while (docs.size() < maxDocs && iterator.hasNext()) {
+      int size = sizeFunction.applyAsInt(iterator.peek());
+      if (!limits.fitsInBatch(docs.size(), bytes, size, first)) {
+        break;
+      }
+      bytes += size;
+      docs.add(iterator.next());
+    }
+    return new CollectionBatch<>(docs, System.currentTimeMillis());
   }
 
   @Override
   public Batch<E> tryFetchBatch() throws MongoException, DeadCursorException {
+    if (closed) {
+      throw new DeadCursorException();
+    }
     if (!iterator.hasNext()) {
       return null;
     }
@@ -79,6 +165,7 @@ public class IteratorMongoCursor<E> implements MongoCursor<E> {
 
   @Override
   public void setMaxBatchSize(int newBatchSize) {
+    Preconditions.checkArgument(newBatchSize >= 0, "The batch size cannot be negative");
     batchSize = newBatchSize;
   }
 
@@ -94,12 +181,15 @@ public class IteratorMongoCursor<E> implements MongoCursor<E> {
 
   @Override
   public E next() {
+    if (closed) {
+      throw new NoSuchElementException();
+    }
     return iterator.next();
   }
 
   @Override
   public E tryNext() {
-    if (!iterator.hasNext()) {
+    if (closed || !iterator.hasNext()) {
       throw new NoSuchElementException();
     }
     return iterator.next();
@@ -107,7 +197,7 @@ public class IteratorMongoCursor<E> implements MongoCursor<E> {
 
   @Override
   public boolean hasNext() {
-    return iterator.hasNext();
+    return !closed && iterator.hasNext();
   }
 
   @Override
@@ -117,9 +207,24 @@ public class IteratorMongoCursor<E> implements MongoCursor<E> {
 
   @Override
   public void close() {
-    iterator.forEachRemaining((e) -> {
-    });
+    if (closed) {
+      return;
+    }
     closed = true;
+    if (source instanceof AutoCloseable) {
+      close((AutoCloseable) source);
+    }
+    if (closeHandler != null) {
+      close(closeHandler);
+    }
+  }
+
+  private void close(AutoCloseable closeable) {
+    try {
+      closeable.close();
+    } catch (Exception ex) {
+      LOGGER.warn("Error while closing the source of cursor " + id, ex);
+    }
   }
 
   @Override
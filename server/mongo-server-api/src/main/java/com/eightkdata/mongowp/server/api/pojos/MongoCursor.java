@@ -58,8 +58,18 @@ public interface MongoCursor<E> extends Iterator<E> {
 
   public long getId();
 
+  /**
+   * Sets the batch size requested by the client.
+   *
+   * @param newBatchSize the maximum number of elements of the next batches or 0 to use the
+   *                     default limits of the cursor
+   */
   public void setMaxBatchSize(int newBatchSize);
 
+  /**
+   * Returns the batch size requested by the client or 0 if none was requested, in which case the
+   * cursor uses its default limits.
+   */
   public int getMaxBatchSize();
 
   public boolean isTailable();
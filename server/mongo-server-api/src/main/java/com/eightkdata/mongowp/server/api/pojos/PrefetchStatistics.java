@@ -0,0 +1,112 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.server.api.pojos;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the batches fetched by {@link PrefetchingMongoCursor prefetching cursors}.
+ *
+ * <p>The latency hidden by the prefetch is the time spent fetching a batch in background minus
+ * the time the consumer had to wait for it, so it is the time a getMore would have taken
+ * without prefetching that has been overlapped with the previous reply.
+ */
+public class PrefetchStatistics {
+
+  private final LongAdder prefetchedBatches = new LongAdder();
+  private final LongAdder directBatches = new LongAdder();
+  private final LongAdder discardedBatches = new LongAdder();
+  private final LongAdder fetchNanos = new LongAdder();
+  private final LongAdder waitNanos = new LongAdder();
+  private final LongAdder hiddenNanos = new LongAdder();
+
+  /**
+   * Records that a batch has been fetched by the consumer thread because there was no
+   * prefetched batch.
+   *
+   * @param nanos the time spent fetching the batch
+   */
+  public void onDirectFetch(long nanos) {
+    directBatches.increment();
+    fetchNanos.add(nanos);
+  }
+
+  /**
+   * Records that a batch fetched in background has been consumed.
+   *
+   * @param nanos     the time spent fetching the batch in background
+   * @param waitNanos the time the consumer waited for the batch to be fetched
+   */
+  public void onPrefetchedBatch(long nanos, long waitNanos) {
+    prefetchedBatches.increment();
+    fetchNanos.add(nanos);
+    this.waitNanos.add(waitNanos);
+    if (nanos > waitNanos) {
+      hiddenNanos.add(nanos - waitNanos);
+    }
+  }
+
+  /**
+   * Records that a batch fetched in background has been discarded because its cursor was
+   * closed before the batch was consumed.
+   */
+  public void onDiscardedBatch() {
+    discardedBatches.increment();
+  }
+
+  public long getPrefetchedBatches() {
+    return prefetchedBatches.sum();
+  }
+
+  public long getDirectBatches() {
+    return directBatches.sum();
+  }
+
+  public long getDiscardedBatches() {
+    return discardedBatches.sum();
+  }
+
+  /**
+   * Returns the time spent fetching batches, in background or not.
+   */
+  public long getFetchNanos() {
+    return fetchNanos.sum();
+  }
+
+  /**
+   * Returns the time consumers spent waiting for batches that were being prefetched.
+   */
+  public long getWaitNanos() {
+    return waitNanos.sum();
+  }
+
+  public long getHiddenLatencyNanos() {
+    return hiddenNanos.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "PrefetchStatistics{prefetched=" + getPrefetchedBatches()
+        + ", direct=" + getDirectBatches()
+        + ", discarded=" + getDiscardedBatches()
+        + ", fetchNanos=" + getFetchNanos()
+        + ", waitNanos=" + getWaitNanos()
+        + ", hiddenNanos=" + getHiddenLatencyNanos() + '}';
+  }
+}
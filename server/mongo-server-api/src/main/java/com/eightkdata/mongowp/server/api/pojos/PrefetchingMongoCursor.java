@@ -0,0 +1,331 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.server.api.pojos;
+
+import com.eightkdata.mongowp.exceptions.MongoException;
+import com.eightkdata.mongowp.server.api.MongoRuntimeException;
+import com.google.common.base.Preconditions;
+import com.google.common.net.HostAndPort;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nullable;
+
+/**
+ * A cursor that fetches the next batches of another cursor on an executor while the current
+ * one is being sent to the client, so the next getMore does not have to wait for the backend.
+ *
+ * <p>At most {@code maxPrefetchedBatches} batches are fetched in advance, so the memory used by
+ * a cursor is bounded by that number times the size of its batches. The inner cursor is only
+ * accessed by one thread at a time, as batches are fetched one after the other. Like other
+ * cursors, instances of this class must be used by one thread at a time.
+ *
+ * <p>When the cursor is closed, the batches that have not been fetched yet are not fetched, the
+ * prefetched ones are discarded and the inner cursor is closed once the batch that was being
+ * fetched, if any, is done.
+ *
+ * <p>The prefetches are queued before the batch being fetched says whether the inner cursor is
+ * exhausted, so some of them may find it exhausted. These placeholders are skipped and they are
+ * not recorded on the statistics.
+ */
+public class PrefetchingMongoCursor<E> implements MongoCursor<E> {
+
+  private static final Logger LOGGER = LogManager.getLogger(PrefetchingMongoCursor.class);
+
+  private final MongoCursor<E> innerCursor;
+  private final Executor executor;
+  private final int maxPrefetchedBatches;
+  private final PrefetchStatistics statistics;
+  private final ArrayDeque<CompletableFuture<PrefetchedBatch<E>>> prefetched = new ArrayDeque<>();
+  private CompletableFuture<?> lastPrefetch = CompletableFuture.completedFuture(null);
+  @Nullable
+  private Batch<E> currentBatch;
+  private volatile int maxBatchSize;
+  private volatile boolean exhausted;
+  private volatile boolean closed;
+
+  private PrefetchingMongoCursor(MongoCursor<E> innerCursor, Executor executor,
+      int maxPrefetchedBatches, PrefetchStatistics statistics) {
+    this.innerCursor = innerCursor;
+    this.executor = executor;
+    this.maxPrefetchedBatches = maxPrefetchedBatches;
+    this.statistics = statistics;
+    this.maxBatchSize = innerCursor.getMaxBatchSize();
+  }
+
+  /**
+   * Decorates the given cursor to prefetch its batches.
+   *
+   * <p>Tailable cursors are returned as they are, as fetching their batches in advance would
+   * block a thread of the executor until new data is inserted.
+   *
+   * @param innerCursor          the cursor whose batches will be prefetched
+   * @param executor             the executor where batches are fetched
+   * @param maxPrefetchedBatches the maximum number of batches that are fetched in advance
+   * @param statistics           where the fetched batches are recorded
+   */
+  public static <E> MongoCursor<E> create(MongoCursor<E> innerCursor, Executor executor,
+      int maxPrefetchedBatches, PrefetchStatistics statistics) {
+    Preconditions.checkArgument(maxPrefetchedBatches > 0,
+        "At least one batch must be prefetched");
+    if (innerCursor.isTailable()) {
+      return innerCursor;
+    }
+    return new PrefetchingMongoCursor<>(innerCursor, executor, maxPrefetchedBatches,
+        statistics);
+  }
+
+  @Override
+  public String getDatabase() {
+    return innerCursor.getDatabase();
+  }
+
+  @Override
+  public String getCollection() {
+    return innerCursor.getCollection();
+  }
+
+  @Override
+  public Batch<E> fetchBatch() throws MongoException, DeadCursorException {
+    if (closed) {
+      throw new DeadCursorException();
+    }
+    Batch<E> result = currentBatch;
+    currentBatch = null;
+    if (result == null || !result.hasNext()) {
+      result = nextBatch();
+    }
+    prefetch();
+    return result;
+  }
+
+  private Batch<E> nextBatch() throws MongoException {
+    CompletableFuture<PrefetchedBatch<E>> next = prefetched.poll();
+    while (next != null) {
+      PrefetchedBatch<E> prefetchedBatch = awaitPrefetched(next);
+      if (!prefetchedBatch.isPlaceholder()) {
+        return prefetchedBatch.batch;
+      }
+      prefetchedBatch.batch.close();
+      next = prefetched.poll();
+    }
+    if (exhausted) {
+      return new CollectionBatch<>(Collections.<E>emptyList(), System.currentTimeMillis());
+    }
+    PrefetchedBatch<E> fetched = fetchInner();
+    statistics.onDirectFetch(fetched.fetchNanos);
+    return fetched.batch;
+  }
+
+  @Override
+  public Batch<E> tryFetchBatch() throws MongoException, DeadCursorException {
+    if (!hasNext()) {
+      return null;
+    }
+    return fetchBatch();
+  }
+
+  @Override
+  public long getId() {
+    return innerCursor.getId();
+  }
+
+  /**
+   * Changes the size of the batches that have not been prefetched yet.
+   */
+  @Override
+  public void setMaxBatchSize(int newBatchSize) {
+    maxBatchSize = newBatchSize;
+  }
+
+  @Override
+  public int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+  @Override
+  public boolean isTailable() {
+    return false;
+  }
+
+  @Override
+  public E next() {
+    Batch<E> batch = getLiveBatch();
+    if (batch == null) {
+      throw new NoSuchElementException();
+    }
+    return batch.next();
+  }
+
+  @Override
+  public E tryNext() {
+    Batch<E> batch = getLiveBatch();
+    if (batch == null) {
+      return null;
+    }
+    return batch.next();
+  }
+
+  @Override
+  public boolean hasNext() {
+    return getLiveBatch() != null;
+  }
+
+  @Override
+  public HostAndPort getServerAddress() {
+    return innerCursor.getServerAddress();
+  }
+
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (currentBatch != null) {
+      currentBatch.close();
+      currentBatch = null;
+    }
+    List<CompletableFuture<PrefetchedBatch<E>>> discarded = new ArrayList<>(prefetched);
+    prefetched.clear();
+    lastPrefetch.whenComplete((ignored, throwable) -> {
+      try {
+        for (CompletableFuture<PrefetchedBatch<E>> future : discarded) {
+          if (!future.isCompletedExceptionally()) {
+            PrefetchedBatch<E> prefetchedBatch = future.join();
+            if (!prefetchedBatch.isPlaceholder()) {
+              statistics.onDiscardedBatch();
+            }
+            prefetchedBatch.batch.close();
+          }
+        }
+        innerCursor.close();
+      } catch (RuntimeException ex) {
+        LOGGER.warn("Error while closing the prefetched cursor " + innerCursor.getId(), ex);
+      }
+    });
+  }
+
+  @Override
+  public boolean isClosed() {
+    return closed;
+  }
+
+  @Nullable
+  private Batch<E> getLiveBatch() {
+    if (currentBatch != null && currentBatch.hasNext()) {
+      return currentBatch;
+    }
+    if (closed || exhausted && prefetched.isEmpty()) {
+      return null;
+    }
+    try {
+      currentBatch = fetchBatch();
+    } catch (MongoException ex) {
+      throw new MongoRuntimeException(ex);
+    }
+    return currentBatch.hasNext() ? currentBatch : null;
+  }
+
+  private void prefetch() {
+    while (!exhausted && prefetched.size() < maxPrefetchedBatches) {
+      CompletableFuture<PrefetchedBatch<E>> future = lastPrefetch.thenApplyAsync(
+          ignored -> prefetchInner(), executor);
+      lastPrefetch = future;
+      prefetched.add(future);
+    }
+  }
+
+  private PrefetchedBatch<E> awaitPrefetched(CompletableFuture<PrefetchedBatch<E>> future)
+      throws MongoException {
+    long start = System.nanoTime();
+    PrefetchedBatch<E> prefetchedBatch;
+    try {
+      prefetchedBatch = future.join();
+    } catch (CompletionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof MongoException) {
+        throw (MongoException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new MongoRuntimeException(cause);
+    }
+    if (!prefetchedBatch.isPlaceholder()) {
+      statistics.onPrefetchedBatch(prefetchedBatch.fetchNanos, System.nanoTime() - start);
+    }
+    return prefetchedBatch;
+  }
+
+  private PrefetchedBatch<E> prefetchInner() {
+    if (exhausted || closed) {
+      return new PrefetchedBatch<>(new CollectionBatch<>(Collections.<E>emptyList(),
+          System.currentTimeMillis()), -1);
+    }
+    try {
+      return fetchInner();
+    } catch (MongoException ex) {
+      throw new CompletionException(ex);
+    }
+  }
+
+  private PrefetchedBatch<E> fetchInner() throws MongoException {
+    long start = System.nanoTime();
+    int batchSize = maxBatchSize;
+    if (innerCursor.getMaxBatchSize() != batchSize) {
+      innerCursor.setMaxBatchSize(batchSize);
+    }
+    Batch<E> batch = innerCursor.fetchBatch();
+    exhausted = !innerCursor.hasNext();
+    return new PrefetchedBatch<>(batch, System.nanoTime() - start);
+  }
+
+  private static class PrefetchedBatch<E> {
+
+    private final Batch<E> batch;
+    /**
+     * The time spent fetching the batch or a negative value if the batch has not been fetched
+     * because the cursor was exhausted or closed.
+     */
+    private final long fetchNanos;
+
+    private PrefetchedBatch(Batch<E> batch, long fetchNanos) {
+      this.batch = batch;
+      this.fetchNanos = fetchNanos;
+    }
+
+    private boolean isPlaceholder() {
+      return fetchNanos < 0;
+    }
+  }
+
+}
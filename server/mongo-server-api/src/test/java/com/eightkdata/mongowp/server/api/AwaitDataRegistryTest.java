@@ -0,0 +1,96 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.server.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ */
+public class AwaitDataRegistryTest {
+
+  private final ManualTimer timer = new ManualTimer();
+  private final AwaitDataRegistry registry = new AwaitDataRegistry(timer);
+  private final AtomicInteger fired = new AtomicInteger();
+
+  private AwaitDataRegistry.Waiter await(String collection) {
+    return registry.await("db", collection, registry.getVersion("db", collection), 1000,
+        fired::incrementAndGet);
+  }
+
+  @Test
+  public void signalTest() {
+    await("c1");
+    await("c1");
+    await("c2");
+    assertEquals(3, registry.getWaiting());
+
+    registry.signal("db", "c1");
+    assertEquals(2, fired.get());
+    assertEquals(1, registry.getWaiting());
+    assertEquals(1, registry.getWaitedNamespaces());
+    assertEquals(1, timer.getPending());
+
+    registry.signal("db", "c1");
+    assertEquals(2, fired.get());
+  }
+
+  @Test
+  public void timeoutTest() throws Exception {
+    await("c1");
+    timer.expireAll();
+    assertEquals(1, fired.get());
+    assertEquals(0, registry.getWaiting());
+    assertEquals(0, registry.getWaitedNamespaces());
+
+    registry.signal("db", "c1");
+    assertEquals(1, fired.get());
+  }
+
+  @Test
+  public void signalBeforeAwaitIsNotLostTest() {
+    long version = registry.getVersion("db", "c1");
+    registry.signal("db", "c1");
+    registry.await("db", "c1", version, 1000, fired::incrementAndGet);
+
+    assertEquals(1, fired.get());
+    assertEquals(0, registry.getWaiting());
+    assertEquals(0, registry.getWaitedNamespaces());
+    assertEquals(0, timer.getPending());
+  }
+
+  @Test
+  public void cancelTest() throws Exception {
+    AwaitDataRegistry.Waiter waiter = await("c1");
+    assertTrue(waiter.cancel());
+    assertFalse(waiter.cancel());
+    assertEquals(0, registry.getWaiting());
+    assertEquals(0, registry.getWaitedNamespaces());
+
+    registry.signal("db", "c1");
+    timer.expireAll();
+    assertEquals(0, fired.get());
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.server.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.eightkdata.mongowp.exceptions.CursorInUseException;
+import com.eightkdata.mongowp.exceptions.CursorNotFoundException;
+import com.eightkdata.mongowp.server.api.pojos.IteratorMongoCursor;
+import com.eightkdata.mongowp.server.api.pojos.MongoCursor;
+import com.google.common.net.HostAndPort;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ *
+ */
+public class CursorManagerTest {
+
+  private static final int IDLE_TIMEOUT_MILLIS = 1;
+
+  private final ManualTimer timer = new ManualTimer();
+  private final CursorManager manager = new CursorManager(timer, IDLE_TIMEOUT_MILLIS);
+
+  private MongoCursor<Object> register(int connectionId, boolean noCursorTimeout) {
+    return manager.register(id -> new IteratorMongoCursor<>("db", "collection", id,
+        HostAndPort.fromParts("localhost", 27017), Collections.emptyIterator()), connectionId,
+        noCursorTimeout);
+  }
+
+  private static void waitIdleTimeout() throws InterruptedException {
+    Thread.sleep(IDLE_TIMEOUT_MILLIS * 5);
+  }
+
+  @Test
+  public void idsAreUniqueTest() {
+    Set<Long> ids = new HashSet<>();
+    for (int i = 0; i < 1000; i++) {
+      long id = register(1, false).getId();
+      assertTrue(id > 0);
+      ids.add(id);
+    }
+    assertEquals(1000, ids.size());
+    assertEquals(1000, manager.getOpenCursors());
+  }
+
+  @Test
+  public void pinTest() throws Exception {
+    MongoCursor<Object> cursor = register(1, false);
+    try (CursorManager.Lease lease = manager.pin(cursor.getId())) {
+      assertSame(cursor, lease.getCursor());
+      assertEquals(1, manager.getPinnedCursors());
+      try {
+        manager.pin(cursor.getId());
+        throw new AssertionError("A pinned cursor has been pinned again");
+      } catch (CursorInUseException expected) {
+      }
+    }
+    assertEquals(0, manager.getPinnedCursors());
+    manager.pin(cursor.getId()).close();
+  }
+
+  @Test(expected = CursorNotFoundException.class)
+  public void pinUnknownCursorTest() throws Exception {
+    manager.pin(42);
+  }
+
+  @Test
+  public void killTest() throws Exception {
+    MongoCursor<Object> cursor = register(1, false);
+    assertTrue(manager.kill(cursor.getId()));
+    assertTrue(cursor.isClosed());
+    assertEquals(0, manager.getOpenCursors());
+    assertEquals(0, timer.getPending());
+    assertFalse(manager.kill(cursor.getId()));
+  }
+
+  @Test
+  public void killWhilePinnedTest() throws Exception {
+    MongoCursor<Object> cursor = register(1, false);
+    CursorManager.Lease lease = manager.pin(cursor.getId());
+    assertTrue(manager.kill(cursor.getId()));
+    assertFalse(cursor.isClosed());
+    assertEquals(1, manager.getOpenCursors());
+
+    lease.close();
+    assertTrue(cursor.isClosed());
+    assertEquals(0, manager.getOpenCursors());
+    try {
+      manager.pin(cursor.getId());
+      throw new AssertionError("A killed cursor has been pinned");
+    } catch (CursorNotFoundException expected) {
+    }
+  }
+
+  @Test
+  public void idleTimeoutTest() throws Exception {
+    MongoCursor<Object> cursor = register(1, false);
+    waitIdleTimeout();
+    timer.expireAll();
+    assertTrue(cursor.isClosed());
+    assertEquals(0, manager.getOpenCursors());
+    assertEquals(1, manager.getTimedOutCursors());
+  }
+
+  @Test
+  public void pinnedCursorsDoNotTimeOutTest() throws Exception {
+    MongoCursor<Object> cursor = register(1, false);
+    try (CursorManager.Lease lease = manager.pin(cursor.getId())) {
+      assertSame(cursor, lease.getCursor());
+      waitIdleTimeout();
+      timer.expireAll();
+      assertFalse(cursor.isClosed());
+      assertEquals(1, timer.getPending());
+    }
+    assertEquals(0, manager.getTimedOutCursors());
+  }
+
+  @Test
+  public void noCursorTimeoutTest() throws Exception {
+    MongoCursor<Object> cursor = register(1, true);
+    assertEquals(0, timer.getPending());
+    waitIdleTimeout();
+    timer.expireAll();
+    assertFalse(cursor.isClosed());
+    assertEquals(1, manager.getOpenCursors());
+  }
+
+  @Test
+  public void killConnectionCursorsTest() {
+    MongoCursor<Object> cursor1 = register(1, false);
+    MongoCursor<Object> cursor2 = register(1, true);
+    MongoCursor<Object> otherCursor = register(2, false);
+
+    assertEquals(2, manager.killConnectionCursors(1));
+    assertTrue(cursor1.isClosed());
+    assertTrue(cursor2.isClosed());
+    assertFalse(otherCursor.isClosed());
+    assertEquals(1, manager.getOpenCursors());
+    assertEquals(0, manager.killConnectionCursors(1));
+  }
+
+  @Test
+  public void closeWhilePinnedTest() throws Exception {
+    MongoCursor<Object> idleCursor = register(1, false);
+    MongoCursor<Object> pinnedCursor = register(1, false);
+    CursorManager.Lease lease = manager.pin(pinnedCursor.getId());
+
+    manager.close();
+    assertTrue(timer.isStopped());
+    assertTrue(idleCursor.isClosed());
+    assertFalse(pinnedCursor.isClosed());
+
+    lease.close();
+    assertTrue(pinnedCursor.isClosed());
+    assertEquals(0, manager.getOpenCursors());
+    assertEquals(0, manager.getPinnedCursors());
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.server.api;
+
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Timer} whose timeouts only expire when the test says so.
+ */
+class ManualTimer implements Timer {
+
+  private final List<ManualTimeout> timeouts = new ArrayList<>();
+  private boolean stopped;
+
+  @Override
+  public synchronized Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+    if (stopped) {
+      throw new IllegalStateException("The timer has been stopped");
+    }
+    ManualTimeout timeout = new ManualTimeout(task);
+    timeouts.add(timeout);
+    return timeout;
+  }
+
+  @Override
+  public synchronized Set<Timeout> stop() {
+    stopped = true;
+    return Collections.emptySet();
+  }
+
+  synchronized boolean isStopped() {
+    return stopped;
+  }
+
+  /**
+   * Returns the number of timeouts that have not expired and have not been cancelled.
+   */
+  synchronized int getPending() {
+    int pending = 0;
+    for (ManualTimeout timeout : timeouts) {
+      if (!timeout.isExpired() && !timeout.isCancelled()) {
+        pending++;
+      }
+    }
+    return pending;
+  }
+
+  /**
+   * Expires all the pending timeouts, executing their tasks on the caller thread.
+   */
+  void expireAll() throws Exception {
+    List<ManualTimeout> toExpire;
+    synchronized (this) {
+      toExpire = new ArrayList<>(timeouts);
+      timeouts.clear();
+    }
+    for (ManualTimeout timeout : toExpire) {
+      timeout.expire();
+    }
+  }
+
+  private class ManualTimeout implements Timeout {
+
+    private final TimerTask task;
+    private volatile boolean expired;
+    private volatile boolean cancelled;
+
+    private ManualTimeout(TimerTask task) {
+      this.task = task;
+    }
+
+    private void expire() throws Exception {
+      if (!cancelled && !expired) {
+        expired = true;
+        task.run(this);
+      }
+    }
+
+    @Override
+    public Timer timer() {
+      return ManualTimer.this;
+    }
+
+    @Override
+    public TimerTask task() {
+      return task;
+    }
+
+    @Override
+    public boolean isExpired() {
+      return expired;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    @Override
+    public boolean cancel() {
+      if (expired || cancelled) {
+        return false;
+      }
+      cancelled = true;
+      return true;
+    }
+  }
+}
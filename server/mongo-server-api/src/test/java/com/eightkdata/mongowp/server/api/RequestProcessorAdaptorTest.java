@@ -0,0 +1,272 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.server.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.eightkdata.mongowp.Status;
+import com.eightkdata.mongowp.bson.BsonDocument;
+import com.eightkdata.mongowp.bson.utils.DefaultBsonValues;
+import com.eightkdata.mongowp.exceptions.MongoException;
+import com.eightkdata.mongowp.messages.request.DeleteMessage;
+import com.eightkdata.mongowp.messages.request.EmptyBsonContext;
+import com.eightkdata.mongowp.messages.request.GetMoreMessage;
+import com.eightkdata.mongowp.messages.request.InsertMessage;
+import com.eightkdata.mongowp.messages.request.KillCursorsMessage;
+import com.eightkdata.mongowp.messages.request.QueryMessage;
+import com.eightkdata.mongowp.messages.request.QueryMessage.QueryOption;
+import com.eightkdata.mongowp.messages.request.QueryMessage.QueryOptions;
+import com.eightkdata.mongowp.messages.request.RequestBaseMessage;
+import com.eightkdata.mongowp.messages.request.UpdateMessage;
+import com.eightkdata.mongowp.messages.response.MsgReplyMessage;
+import com.eightkdata.mongowp.messages.response.ReplyMessage;
+import com.eightkdata.mongowp.server.api.pojos.QueryRequest;
+import com.eightkdata.mongowp.server.callback.MessageReplier;
+import io.netty.util.AttributeMap;
+import io.netty.util.DefaultAttributeMap;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ *
+ */
+public class RequestProcessorAdaptorTest {
+
+  private static final long CURSOR_ID = 5;
+
+  private final ManualTimer timer = new ManualTimer();
+  private final AwaitDataRegistry registry = new AwaitDataRegistry(timer);
+  private final TestSafeRequestProcessor processor = new TestSafeRequestProcessor();
+  private final ManualTimer cursorTimer = new ManualTimer();
+  private final RequestProcessorAdaptor<TestConnection> adaptor = new RequestProcessorAdaptor<>(
+      processor, new TestErrorHandler(), () -> 27017, registry,
+      new CursorManager(cursorTimer, 1000));
+  private final TestMessageReplier replier = new TestMessageReplier();
+
+  @Before
+  public void setUp() throws Exception {
+    adaptor.onChannelActive(replier.attributeMap);
+    QueryMessage query = new QueryMessage.Builder(new RequestBaseMessage(null, 0, 1),
+        EmptyBsonContext.getInstance(), "db", "collection",
+        new QueryOptions(EnumSet.of(QueryOption.TAILABLE_CURSOR, QueryOption.AWAIT_DATA)))
+        .setQuery(DefaultBsonValues.EMPTY_DOC)
+        .build();
+    adaptor.queryMessage(query, replier);
+    assertEquals(1, replier.replies.size());
+    replier.replies.clear();
+  }
+
+  private void getMore() {
+    adaptor.getMore(new GetMoreMessage(new RequestBaseMessage(null, 0, 2), "db", "collection", 0,
+        CURSOR_ID), replier);
+  }
+
+  @Test
+  public void awaitDataSignalTest() {
+    getMore();
+    assertEquals(1, processor.getMores);
+    assertTrue(replier.replies.isEmpty());
+    assertEquals(1, registry.getWaiting());
+
+    processor.newDocuments = 1;
+    registry.signal("db", "collection");
+    assertEquals(2, processor.getMores);
+    assertEquals(1, replier.replies.size());
+    assertEquals(0, registry.getWaiting());
+  }
+
+  @Test
+  public void awaitDataSignalWhileReadingTest() {
+    //the data arrives after the cursor has been read but before the request waits for it
+    processor.onGetMore = () -> {
+      processor.onGetMore = null;
+      processor.newDocuments = 1;
+      registry.signal("db", "collection");
+    };
+    getMore();
+    assertEquals(2, processor.getMores);
+    assertEquals(1, replier.replies.size());
+    assertEquals(0, registry.getWaiting());
+  }
+
+  @Test
+  public void awaitDataTimeoutTest() throws Exception {
+    getMore();
+    assertEquals(1, registry.getWaiting());
+
+    //the await time has not been consumed yet, so the request waits again
+    timer.expireAll();
+    assertEquals(2, processor.getMores);
+    assertTrue(replier.replies.isEmpty());
+    assertEquals(1, registry.getWaiting());
+  }
+
+  @Test
+  public void awaitDataConnectionClosedTest() {
+    getMore();
+    assertEquals(1, registry.getWaiting());
+
+    adaptor.onChannelInactive(replier.attributeMap);
+    assertEquals(0, registry.getWaiting());
+    assertEquals(0, timer.getPending());
+
+    registry.signal("db", "collection");
+    assertEquals(1, processor.getMores);
+    assertTrue(replier.replies.isEmpty());
+  }
+
+  @Test
+  public void serverShutDownStopsTheTimersTest() {
+    adaptor.onServerShutDown();
+    assertTrue(timer.isStopped());
+    assertTrue(cursorTimer.isStopped());
+  }
+
+  private static class TestConnection implements Connection {
+
+    @Override
+    public int getConnectionId() {
+      return 1;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /**
+   * Returns a tailable cursor whose getMores return {@link #newDocuments} documents once.
+   */
+  private static class TestSafeRequestProcessor implements SafeRequestProcessor<TestConnection> {
+
+    private int getMores;
+    private int newDocuments;
+    private Runnable onGetMore;
+
+    @Override
+    public TestConnection openConnection() {
+      return new TestConnection();
+    }
+
+    @Override
+    public CommandsLibrary getCommandsLibrary() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <A, R> Status<R> execute(Request request, Command<? super A, ? super R> command, A arg,
+        TestConnection context) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ReplyMessage query(TestConnection connection, Request req, int requestId,
+        QueryRequest queryRequest) {
+      return newReply(requestId, 0);
+    }
+
+    @Override
+    public ReplyMessage getMore(TestConnection connection, Request req, int requestId,
+        GetMoreMessage moreMessage) {
+      getMores++;
+      int documents = newDocuments;
+      newDocuments = 0;
+      if (onGetMore != null) {
+        onGetMore.run();
+      }
+      return newReply(requestId, documents);
+    }
+
+    private ReplyMessage newReply(int requestId, int documents) {
+      List<BsonDocument> batch = new ArrayList<>();
+      for (int i = 0; i < documents; i++) {
+        batch.add(DefaultBsonValues.EMPTY_DOC);
+      }
+      return new ReplyMessage.Builder(EmptyBsonContext.getInstance(), requestId, CURSOR_ID, 0,
+          batch).build();
+    }
+
+    @Override
+    public void killCursors(TestConnection connection, Request req,
+        KillCursorsMessage killCursorsMessage) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void insert(TestConnection connection, Request req, InsertMessage insertMessage) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void update(TestConnection connection, Request req, UpdateMessage updateMessage) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void delete(TestConnection connection, Request req, DeleteMessage deleteMessage) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static class TestErrorHandler implements ErrorHandler {
+
+    @Override
+    public ReplyMessage handleUnexpectedError(Connection connection, int requestId,
+        boolean canReply, Throwable error) {
+      throw new AssertionError("Unexpected error", error);
+    }
+
+    @Override
+    public ReplyMessage handleMongodbException(Connection connection, int requestId,
+        boolean canReply, MongoException exception) {
+      throw new AssertionError("Unexpected error", exception);
+    }
+  }
+
+  private static class TestMessageReplier extends MessageReplier {
+
+    private final AttributeMap attributeMap = new DefaultAttributeMap();
+    private final List<Object> replies = new ArrayList<>();
+
+    @Override
+    public int getRequestId() {
+      return 1;
+    }
+
+    @Override
+    public AttributeMap getAttributeMap() {
+      return attributeMap;
+    }
+
+    @Override
+    public void replyMessage(ReplyMessage replyMessage) {
+      replies.add(replyMessage);
+    }
+
+    @Override
+    public void replyMessage(MsgReplyMessage replyMessage) {
+      replies.add(replyMessage);
+    }
+  }
+}
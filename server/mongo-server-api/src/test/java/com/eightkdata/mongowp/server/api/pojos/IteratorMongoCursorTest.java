@@ -0,0 +1,197 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.server.api.pojos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.eightkdata.mongowp.server.api.pojos.MongoCursor.DeadCursorException;
+import com.google.common.net.HostAndPort;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ *
+ */
+public class IteratorMongoCursorTest {
+
+  /**
+   * Creates a cursor whose elements are their own encoded size.
+   */
+  private static IteratorMongoCursor<Integer> newCursor(BatchSizeLimits limits,
+      Integer... sizes) {
+    return new IteratorMongoCursor<>("db", "collection", 1,
+        HostAndPort.fromParts("localhost", 27017), Arrays.asList(sizes).iterator(), limits,
+        Integer::intValue);
+  }
+
+  private static List<List<Integer>> fetchAll(MongoCursor<Integer> cursor) throws Exception {
+    List<List<Integer>> batches = new ArrayList<>();
+    while (cursor.hasNext()) {
+      batches.add(cursor.fetchBatch().asList());
+    }
+    return batches;
+  }
+
+  @Test
+  public void firstBatchMaxDocsTest() throws Exception {
+    IteratorMongoCursor<Integer> cursor = newCursor(new BatchSizeLimits(3, 100, 100),
+        1, 1, 1, 1, 1, 1, 1);
+    assertEquals(Arrays.asList(Arrays.asList(1, 1, 1), Arrays.asList(1, 1, 1, 1)),
+        fetchAll(cursor));
+  }
+
+  @Test
+  public void byteBudgetTest() throws Exception {
+    IteratorMongoCursor<Integer> cursor = newCursor(new BatchSizeLimits(101, 10, 25),
+        4, 4, 4, 4, 30, 4, 21, 4);
+    assertEquals(Arrays.asList(
+        Arrays.asList(4, 4),
+        Arrays.asList(4, 4),
+        Arrays.asList(30), //bigger than the limit, so it is returned alone
+        Arrays.asList(4, 21),
+        Arrays.asList(4)
+    ), fetchAll(cursor));
+  }
+
+  @Test
+  public void requestedBatchSizeTest() throws Exception {
+    IteratorMongoCursor<Integer> cursor = newCursor(new BatchSizeLimits(3, 100, 100),
+        1, 1, 1, 1, 1, 1, 1);
+    assertEquals(0, cursor.getMaxBatchSize());
+
+    cursor.setMaxBatchSize(2);
+    assertEquals(2, cursor.getMaxBatchSize());
+    assertEquals(Arrays.asList(1, 1), cursor.fetchBatch().asList());
+    assertEquals(Arrays.asList(1, 1), cursor.fetchBatch().asList());
+    assertEquals(2, cursor.getMaxBatchSize());
+
+    //0 means that the default limits are used
+    cursor.setMaxBatchSize(0);
+    assertEquals(0, cursor.getMaxBatchSize());
+    assertEquals(Arrays.asList(1, 1, 1), cursor.fetchBatch().asList());
+  }
+
+  @Test
+  public void requestedBatchSizeLimitsBytesTest() throws Exception {
+    IteratorMongoCursor<Integer> cursor = newCursor(new BatchSizeLimits(101, 10, 10),
+        4, 4, 4, 4, 4);
+    cursor.setMaxBatchSize(3);
+    assertEquals(Arrays.asList(Arrays.asList(4, 4), Arrays.asList(4, 4), Arrays.asList(4)),
+        fetchAll(cursor));
+  }
+
+  @Test
+  public void prefetchingKeepsTheDefaultLimitsTest() throws Exception {
+    IteratorMongoCursor<Integer> inner = newCursor(new BatchSizeLimits(2, 100, 100),
+        1, 1, 1, 1, 1, 1);
+    MongoCursor<Integer> cursor = PrefetchingMongoCursor.create(inner, Runnable::run, 1,
+        new PrefetchStatistics());
+    assertEquals(Arrays.asList(Arrays.asList(1, 1), Arrays.asList(1, 1, 1, 1)),
+        fetchAll(cursor));
+    assertEquals(0, inner.getMaxBatchSize());
+  }
+
+  @Test
+  public void noLimitsTest() throws Exception {
+    IteratorMongoCursor<Integer> cursor = new IteratorMongoCursor<>("db", "collection", 1,
+        HostAndPort.fromParts("localhost", 27017), Collections.nCopies(1500, 1).iterator());
+    assertEquals(1000, cursor.fetchBatch().asList().size());
+    cursor.setMaxBatchSize(200);
+    assertEquals(200, cursor.fetchBatch().asList().size());
+  }
+
+  @Test
+  public void closeTest() throws Exception {
+    List<String> events = new ArrayList<>();
+    CloseableCounter source = new CloseableCounter(events);
+    IteratorMongoCursor<Integer> cursor = new IteratorMongoCursor<>("db", "collection", 1,
+        HostAndPort.fromParts("localhost", 27017), source, null, null,
+        () -> events.add("handler"));
+    cursor.setMaxBatchSize(2);
+    assertEquals(Arrays.asList(0, 1), cursor.fetchBatch().asList());
+
+    cursor.close();
+    //the remaining elements are not consumed
+    assertEquals(2, source.next);
+    assertEquals(Arrays.asList("source", "handler"), events);
+    assertTrue(cursor.isClosed());
+    assertFalse(cursor.hasNext());
+
+    cursor.close();
+    assertEquals(Arrays.asList("source", "handler"), events);
+    try {
+      cursor.fetchBatch();
+      fail("A closed cursor cannot fetch batches");
+    } catch (DeadCursorException expected) {
+    }
+  }
+
+  @Test
+  public void closeHandlerIsCalledWhenTheSourceFailsTest() throws Exception {
+    List<String> events = new ArrayList<>();
+    CloseableCounter source = new CloseableCounter(events) {
+      @Override
+      public void close() {
+        super.close();
+        throw new IllegalStateException("expected error");
+      }
+    };
+    IteratorMongoCursor<Integer> cursor = new IteratorMongoCursor<>("db", "collection", 1,
+        HostAndPort.fromParts("localhost", 27017), source, null, null,
+        () -> events.add("handler"));
+    cursor.close();
+    assertEquals(Arrays.asList("source", "handler"), events);
+  }
+
+  /**
+   * An endless iterator of consecutive integers that records when it is closed.
+   */
+  private static class CloseableCounter implements Iterator<Integer>, AutoCloseable {
+
+    private final List<String> events;
+    private int next = 0;
+
+    private CloseableCounter(List<String> events) {
+      this.events = events;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return true;
+    }
+
+    @Override
+    public Integer next() {
+      return next++;
+    }
+
+    @Override
+    public void close() {
+      events.add("source");
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.server.api.pojos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.eightkdata.mongowp.server.api.pojos.MongoCursor.Batch;
+import com.google.common.collect.ContiguousSet;
+import com.google.common.collect.DiscreteDomain;
+import com.google.common.collect.Range;
+import com.google.common.net.HostAndPort;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class PrefetchingMongoCursorTest {
+
+  private final PrefetchStatistics statistics = new PrefetchStatistics();
+  private final ManualExecutor manualExecutor = new ManualExecutor();
+
+  private static IteratorMongoCursor<Integer> newInnerCursor(int elements, int batchSize) {
+    IteratorMongoCursor<Integer> cursor = new IteratorMongoCursor<>("db", "collection", 1,
+        HostAndPort.fromParts("localhost", 27017),
+        ContiguousSet.create(Range.closedOpen(0, elements), DiscreteDomain.integers()).iterator());
+    cursor.setMaxBatchSize(batchSize);
+    return cursor;
+  }
+
+  @Test
+  public void elementsAreReturnedInOrderTest() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      MongoCursor<Integer> cursor = PrefetchingMongoCursor.create(newInnerCursor(7, 2), executor,
+          2, statistics);
+      List<Integer> result = new ArrayList<>();
+      while (cursor.hasNext()) {
+        result.add(cursor.next());
+      }
+      cursor.close();
+
+      assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6), result);
+      assertEquals(1, statistics.getDirectBatches());
+      assertEquals(3, statistics.getPrefetchedBatches());
+      assertEquals(0, statistics.getDiscardedBatches());
+    } finally {
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void placeholderBatchesAreSkippedTest() throws Exception {
+    MongoCursor<Integer> cursor = PrefetchingMongoCursor.create(newInnerCursor(3, 2),
+        manualExecutor, 2, statistics);
+
+    assertEquals(Arrays.asList(0, 1), cursor.fetchBatch().asList());
+    //the second prefetch is queued before the first one finds the cursor exhausted
+    assertEquals(2, manualExecutor.runAll());
+
+    assertEquals(Arrays.asList(2), cursor.fetchBatch().asList());
+    Batch<Integer> last = cursor.fetchBatch();
+    assertFalse(last.hasNext());
+    assertFalse(cursor.hasNext());
+    assertEquals(1, statistics.getDirectBatches());
+    assertEquals(1, statistics.getPrefetchedBatches());
+    cursor.close();
+  }
+
+  @Test
+  public void closeDiscardsPrefetchedBatchesTest() throws Exception {
+    IteratorMongoCursor<Integer> inner = newInnerCursor(5, 2);
+    MongoCursor<Integer> cursor = PrefetchingMongoCursor.create(inner, manualExecutor, 2,
+        statistics);
+
+    assertEquals(Arrays.asList(0, 1), cursor.fetchBatch().asList());
+    manualExecutor.runAll();
+    cursor.close();
+
+    assertTrue(inner.isClosed());
+    assertEquals(2, statistics.getDiscardedBatches());
+  }
+
+  @Test
+  public void closeWhileFetchingTest() throws Exception {
+    IteratorMongoCursor<Integer> inner = newInnerCursor(5, 2);
+    MongoCursor<Integer> cursor = PrefetchingMongoCursor.create(inner, manualExecutor, 2,
+        statistics);
+
+    cursor.fetchBatch();
+    cursor.close();
+    assertFalse(inner.isClosed());
+
+    //the queued prefetches find the cursor closed
+    manualExecutor.runAll();
+    assertTrue(inner.isClosed());
+    assertEquals(0, statistics.getPrefetchedBatches());
+    assertEquals(0, statistics.getDiscardedBatches());
+  }
+
+  /**
+   * An executor whose tasks are executed when the test says so.
+   */
+  private static class ManualExecutor implements Executor {
+
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+    @Override
+    public void execute(Runnable command) {
+      tasks.add(command);
+    }
+
+    /**
+     * Executes the queued tasks, including the ones they queue.
+     *
+     * @return the number of executed tasks
+     */
+    int runAll() {
+      int executed = 0;
+      Runnable task = tasks.poll();
+      while (task != null) {
+        task.run();
+        executed++;
+        task = tasks.poll();
+      }
+      return executed;
+    }
+  }
+}
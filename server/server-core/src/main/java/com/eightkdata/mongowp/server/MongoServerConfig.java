@@ -18,7 +18,146 @@
 
 package com.eightkdata.mongowp.server;
 
+import com.eightkdata.mongowp.MongoConstants;
+import com.eightkdata.mongowp.messages.compression.MessageCompressor;
+
+import java.util.Collections;
+import java.util.List;
+
 public interface MongoServerConfig {
 
   public int getPort();
+
+  /**
+   * The transport the server should use to accept and serve connections.
+   *
+   * @return the configured transport mode, {@link TransportMode#AUTO} by default
+   */
+  public default TransportMode getTransportMode() {
+    return TransportMode.AUTO;
+  }
+
+  /**
+   * Where requests are executed once they have been decoded.
+   *
+   * @return the configured execution mode, {@link ExecutionMode#EVENT_LOOP} by default
+   */
+  public default ExecutionMode getExecutionMode() {
+    return ExecutionMode.EVENT_LOOP;
+  }
+
+  /**
+   * The number of threads used to execute requests when the execution mode is
+   * {@link ExecutionMode#THREAD_POOL}.
+   */
+  public default int getExecutionThreads() {
+    return Runtime.getRuntime().availableProcessors() * 2;
+  }
+
+  /**
+   * The maximum number of requests of a connection that can be waiting to be executed when the
+   * execution mode is not {@link ExecutionMode#EVENT_LOOP}. Once it is reached, the server stops
+   * reading from the connection until half of them have been executed.
+   */
+  public default int getMaxQueuedRequests() {
+    return 64;
+  }
+
+  /**
+   * The maximum number of reply bytes that can be written on a connection before they are
+   * flushed. Replies are usually flushed when the connection has no more requests to read, but
+   * they are flushed before if they reach this limit. A value lower or equal than zero disables
+   * the flush coalescing, so each reply is flushed as it is written.
+   */
+  public default int getMaxPendingFlushBytes() {
+    return 64 * 1024;
+  }
+
+  /**
+   * The compressors clients can negotiate to send and receive OP_COMPRESSED messages, in the
+   * server preference order. Compressors that are not {@link MessageCompressor#isAvailable()
+   * available} are ignored.
+   *
+   * @return the enabled compressors. By default the list is empty, so messages are never
+   *         compressed
+   */
+  public default List<MessageCompressor> getCompressors() {
+    return Collections.emptyList();
+  }
+
+  /**
+   * The minimum size of the body of a reply to be compressed. Smaller replies are sent
+   * uncompressed even if the request was compressed, as compressing them costs more than the
+   * bandwidth it saves.
+   */
+  public default int getMinCompressionBytes() {
+    return 512;
+  }
+
+  /**
+   * The time a cursor can be unused before the server closes it. Cursors opened with the
+   * {@code noCursorTimeout} option are never closed because of this timeout.
+   */
+  public default long getCursorIdleTimeoutMillis() {
+    return 10 * 60 * 1000;
+  }
+
+  /**
+   * The maximum number of documents returned on the first batch of a query that does not specify
+   * a batch size.
+   */
+  public default int getFirstBatchMaxDocs() {
+    return 101;
+  }
+
+  /**
+   * The maximum number of document bytes returned on the first batch of a query. A batch
+   * always contains at least one document, even if it is bigger than this limit.
+   */
+  public default int getFirstBatchMaxBytes() {
+    return 1024 * 1024;
+  }
+
+  /**
+   * The maximum number of document bytes returned on each batch after the first one. A batch
+   * always contains at least one document, even if it is bigger than this limit.
+   */
+  public default int getBatchMaxBytes() {
+    return MongoConstants.MAX_BSON_OBJECT_SIZE_BYTES;
+  }
+
+  public static enum TransportMode {
+    /**
+     * Use the native epoll transport if it is available on this platform, otherwise use NIO.
+     */
+    AUTO,
+    /**
+     * Use the native epoll transport and fail to start if it is not available.
+     */
+    EPOLL,
+    /**
+     * Use the JDK NIO transport.
+     */
+    NIO
+  }
+
+  /**
+   * Requests of the same connection are always executed in the order they were received, whatever
+   * the execution mode is.
+   */
+  public static enum ExecutionMode {
+    /**
+     * Execute requests on the Netty event loop that decoded them.
+     */
+    EVENT_LOOP,
+    /**
+     * Execute requests on a fixed size thread pool shared by all connections.
+     */
+    THREAD_POOL,
+    /**
+     * Execute requests on virtual threads. If the running JVM does not support them,
+     * {@link #THREAD_POOL} is used instead.
+     */
+    VIRTUAL_THREADS
+  }
 }
@@ -21,6 +21,7 @@ package com.eightkdata.mongowp.server.callback;
 import com.eightkdata.mongowp.bson.BsonDocument;
 import com.eightkdata.mongowp.messages.request.BsonContext;
 import com.eightkdata.mongowp.messages.request.EmptyBsonContext;
+import com.eightkdata.mongowp.messages.response.MsgReplyMessage;
 import com.eightkdata.mongowp.messages.response.ReplyMessage;
 import com.eightkdata.mongowp.messages.utils.IterableDocumentProvider;
 import io.netty.util.AttributeMap;
@@ -37,6 +38,8 @@ public abstract class MessageReplier {
 
   public abstract void replyMessage(ReplyMessage replyMessage);
 
+  public abstract void replyMessage(MsgReplyMessage replyMessage);
+
   public void replyMessage(long cursorId, int startingFrom, @Nonnull BsonDocument document) {
     replyMessageNoFlags(EmptyBsonContext.getInstance(), startingFrom, startingFrom,
         IterableDocumentProvider.of(Collections.singleton(document)));
@@ -70,4 +73,23 @@ public abstract class MessageReplier {
         0,
         IterableDocumentProvider.of(documents));
   }
+
+  /**
+   * Replies an OP_MSG whose only section is the given body.
+   */
+  public void replyMsgMessage(@Nonnull BsonDocument body) {
+    replyMessage(new MsgReplyMessage.Builder(EmptyBsonContext.getInstance(), getRequestId(), body)
+        .build());
+  }
+
+  /**
+   * Executes a task that continues the request of this replier, for instance to reply it once
+   * some data is available.
+   *
+   * <p>The task is executed as the requests of the connection are, so it keeps their ordering and
+   * threading guarantees. This implementation executes it on the caller thread.
+   */
+  public void executeOnConnection(Runnable task) {
+    task.run();
+  }
 }
@@ -18,6 +18,7 @@
 
 package com.eightkdata.mongowp.server.callback;
 
+import com.eightkdata.mongowp.messages.response.MsgReplyMessage;
 import com.eightkdata.mongowp.messages.response.ReplyMessage;
 import io.netty.util.AttributeMap;
 
@@ -29,6 +30,7 @@ public class PojoMessageReplier extends MessageReplier {
   private final int requestId;
   private final AttributeMap attributeMap;
   private ReplyMessage reply;
+  private MsgReplyMessage msgReply;
 
   public PojoMessageReplier(int requestId, AttributeMap attributeMap) {
     this.requestId = requestId;
@@ -39,11 +41,20 @@ public class PojoMessageReplier extends MessageReplier {
     return reply;
   }
 
+  public MsgReplyMessage getMsgReply() {
+    return msgReply;
+  }
+
   @Override
   public void replyMessage(ReplyMessage replyMessage) {
     reply = replyMessage;
   }
 
+  @Override
+  public void replyMessage(MsgReplyMessage replyMessage) {
+    msgReply = replyMessage;
+  }
+
   @Override
   public int getRequestId() {
     return requestId;
@@ -22,6 +22,7 @@ import com.eightkdata.mongowp.messages.request.DeleteMessage;
 import com.eightkdata.mongowp.messages.request.GetMoreMessage;
 import com.eightkdata.mongowp.messages.request.InsertMessage;
 import com.eightkdata.mongowp.messages.request.KillCursorsMessage;
+import com.eightkdata.mongowp.messages.request.MsgMessage;
 import com.eightkdata.mongowp.messages.request.QueryMessage;
 import com.eightkdata.mongowp.messages.request.RequestOpCode;
 import com.eightkdata.mongowp.messages.request.UpdateMessage;
@@ -35,6 +36,13 @@ public interface RequestProcessor {
 
   public void onChannelInactive(@Nonnull AttributeMap attributeMap);
 
+  /**
+   * Called when the server that executes the requests is shut down, once it has stopped
+   * accepting requests.
+   */
+  public default void onServerShutDown() {
+  }
+
   public void queryMessage(@Nonnull QueryMessage queryMessage,
       @Nonnull MessageReplier messageReplier) throws Exception;
 
@@ -53,6 +61,9 @@ public interface RequestProcessor {
   public void delete(@Nonnull DeleteMessage deleteMessage, @Nonnull MessageReplier messageReplier)
       throws Exception;
 
+  public void msg(@Nonnull MsgMessage msgMessage, @Nonnull MessageReplier messageReplier)
+      throws Exception;
+
   public boolean handleError(@Nonnull RequestOpCode requestOpCode,
       @Nonnull MessageReplier messageReplier, @Nonnull Throwable throwable) throws Exception;
 }
@@ -43,6 +43,7 @@ public class MessageDecoderLocator {
       GetMoreMessageDecoder getMoreDecoder,
       InsertMessageDecoder insertDecoder,
       KillCursorsMessageDecoder killCursorsDecoder,
+      MsgMessageDecoder msgDecoder,
       QueryMessageDecoder queryDecoder,
       UpdateMessageDecoder updateDecoder
   ) {
@@ -52,6 +53,7 @@ public class MessageDecoderLocator {
     decoderMap.put(RequestOpCode.OP_GET_MORE, getMoreDecoder);
     decoderMap.put(RequestOpCode.OP_INSERT, insertDecoder);
     decoderMap.put(RequestOpCode.OP_KILL_CURSORS, killCursorsDecoder);
+    decoderMap.put(RequestOpCode.OP_COMMAND_MSG, msgDecoder);
     decoderMap.put(RequestOpCode.OP_QUERY, queryDecoder);
     decoderMap.put(RequestOpCode.OP_UPDATE, updateDecoder);
 
@@ -63,7 +65,8 @@ public class MessageDecoderLocator {
   }
 
   private static void checkDecoderMap(Map<RequestOpCode, MessageDecoder<?>> decoderMap) {
-    Set<RequestOpCode> opsWithoutDecoder = EnumSet.of(RequestOpCode.OP_MSG, RequestOpCode.RESERVED);
+    Set<RequestOpCode> opsWithoutDecoder = EnumSet.of(RequestOpCode.OP_MSG,
+        RequestOpCode.RESERVED, RequestOpCode.OP_COMPRESSED);
     for (RequestOpCode value : RequestOpCode.values()) {
       if (opsWithoutDecoder.contains(value)) {
         continue;
@@ -0,0 +1,193 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.server.decoder;
+
+import static com.eightkdata.mongowp.bson.utils.BsonDocumentReader.AllocationType.HEAP;
+import static com.eightkdata.mongowp.bson.utils.BsonDocumentReader.AllocationType.OFFHEAP_VALUES;
+
+import com.eightkdata.mongowp.MongoConstants;
+import com.eightkdata.mongowp.bson.BsonDocument;
+import com.eightkdata.mongowp.bson.netty.NettyBsonDocumentReader;
+import com.eightkdata.mongowp.bson.netty.NettyBsonReaderException;
+import com.eightkdata.mongowp.bson.netty.NettyStringReader;
+import com.eightkdata.mongowp.exceptions.BadValueException;
+import com.eightkdata.mongowp.exceptions.InvalidBsonException;
+import com.eightkdata.mongowp.exceptions.MongoException;
+import com.eightkdata.mongowp.messages.request.MsgMessage;
+import com.eightkdata.mongowp.messages.request.RequestBaseMessage;
+import com.eightkdata.mongowp.messages.utils.DocumentSequence;
+import com.eightkdata.mongowp.server.util.ByteBufIterableDocumentProvider;
+import com.eightkdata.mongowp.server.util.Crc32cUtil;
+import com.eightkdata.mongowp.server.util.EnumBitFlags;
+import com.eightkdata.mongowp.server.util.EnumInt32FlagsUtil;
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnegative;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Decodes OP_MSG messages.
+ *
+ * <p>Document sequences are not parsed: they are exposed as {@link ByteBufIterableDocumentProvider
+ * providers} over the received buffer, so their documents are read when they are iterated.
+ *
+ * <p>The body of messages with the {@code exhaustAllowed} flag is read on the heap, as it is
+ * reused to request the next batches once the message buffer has been released.
+ */
+@Singleton
+public class MsgMessageDecoder extends AbstractMessageDecoder<MsgMessage> {
+
+  static final byte BODY_SECTION = 0;
+  static final byte DOCUMENT_SEQUENCE_SECTION = 1;
+  /**
+   * Bits 0-15 are required: the message must be rejected if an unknown one is set.
+   */
+  private static final int REQUIRED_FLAGS_MASK = 0xFFFF;
+  private static final int CHECKSUM_BYTES = 4;
+
+  private final NettyStringReader stringReader;
+  private final NettyBsonDocumentReader docReader;
+
+  @Inject
+  public MsgMessageDecoder(NettyStringReader stringReader, NettyBsonDocumentReader docReader) {
+    this.stringReader = stringReader;
+    this.docReader = docReader;
+  }
+
+  @Override
+  public MsgMessage decode(ByteBuf buffer, RequestBaseMessage requestBaseMessage) throws
+      MongoException {
+    try {
+      MyBsonContext context = new MyBsonContext(buffer);
+      try {
+        return decode(buffer, requestBaseMessage, context);
+      } catch (MongoException | NettyBsonReaderException | RuntimeException ex) {
+        context.close();
+        throw ex;
+      }
+    } catch (NettyBsonReaderException ex) {
+      throw new InvalidBsonException(ex);
+    }
+  }
+
+  private MsgMessage decode(ByteBuf buffer, RequestBaseMessage requestBaseMessage,
+      MyBsonContext context) throws MongoException, NettyBsonReaderException {
+    int messageStart = buffer.readerIndex()
+        - MongoConstants.MESSAGE_HEADER_WITHOUT_LENGTH_FIELD_BYTES;
+    int flags = buffer.readInt();
+
+    int unknownRequiredFlags = flags & REQUIRED_FLAGS_MASK
+        & ~EnumInt32FlagsUtil.getInt32AllFlagsMask(Flag.class);
+    if (unknownRequiredFlags != 0) {
+      throw new BadValueException("Unsupported OP_MSG required flags: 0x"
+          + Integer.toHexString(unknownRequiredFlags));
+    }
+    boolean checksumPresent = EnumInt32FlagsUtil.isActive(Flag.CHECKSUM_PRESENT, flags);
+    boolean exhaustAllowed = EnumInt32FlagsUtil.isActive(Flag.EXHAUST_ALLOWED, flags);
+
+    int sectionsEnd = buffer.writerIndex();
+    if (checksumPresent) {
+      sectionsEnd -= CHECKSUM_BYTES;
+      int expected = buffer.getInt(sectionsEnd);
+      int actual = Crc32cUtil.checksum(
+          buffer.writerIndex() - messageStart + MongoConstants.MESSAGE_LENGTH_FIELD_BYTES,
+          buffer, messageStart, sectionsEnd - messageStart);
+      if (expected != actual) {
+        throw new BadValueException("OP_MSG checksum mismatch");
+      }
+    }
+
+    BsonDocument body = null;
+    List<DocumentSequence> sequences = new ArrayList<>();
+    while (buffer.readerIndex() < sectionsEnd) {
+      byte kind = buffer.readByte();
+      switch (kind) {
+        case BODY_SECTION:
+          if (body != null) {
+            throw new InvalidBsonException("OP_MSG messages must contain a single body section");
+          }
+          body = docReader.readDocument(exhaustAllowed ? HEAP : OFFHEAP_VALUES, buffer);
+          break;
+        case DOCUMENT_SEQUENCE_SECTION:
+          sequences.add(readDocumentSequence(buffer));
+          break;
+        default:
+          throw new InvalidBsonException("Unsupported OP_MSG section kind " + kind);
+      }
+    }
+    if (buffer.readerIndex() != sectionsEnd) {
+      throw new InvalidBsonException("OP_MSG sections exceed the message length");
+    }
+    if (body == null) {
+      throw new InvalidBsonException("OP_MSG messages must contain a body section");
+    }
+    buffer.readerIndex(buffer.writerIndex());
+
+    return new MsgMessage(
+        requestBaseMessage,
+        context,
+        checksumPresent,
+        EnumInt32FlagsUtil.isActive(Flag.MORE_TO_COME, flags),
+        exhaustAllowed,
+        body,
+        sequences
+    );
+  }
+
+  private DocumentSequence readDocumentSequence(ByteBuf buffer) throws NettyBsonReaderException,
+      InvalidBsonException {
+    int sectionStart = buffer.readerIndex();
+    int sectionEnd = sectionStart + buffer.readInt();
+    if (sectionEnd > buffer.writerIndex()) {
+      throw new InvalidBsonException("OP_MSG document sequence exceeds the message length");
+    }
+    String identifier = stringReader.readCString(buffer, true);
+    if (buffer.readerIndex() > sectionEnd) {
+      throw new InvalidBsonException("Invalid OP_MSG document sequence size");
+    }
+
+    ByteBuf docBuf = buffer.slice(buffer.readerIndex(), sectionEnd - buffer.readerIndex());
+    buffer.readerIndex(sectionEnd);
+
+    return new DocumentSequence(identifier, new ByteBufIterableDocumentProvider(docBuf,
+        docReader));
+  }
+
+  private enum Flag implements EnumBitFlags {
+    CHECKSUM_PRESENT(0),
+    MORE_TO_COME(1),
+    EXHAUST_ALLOWED(16);
+
+    @Nonnegative
+    private final int flagBitPosition;
+
+    private Flag(@Nonnegative int flagBitPosition) {
+      this.flagBitPosition = flagBitPosition;
+    }
+
+    @Override
+    public int getFlagBitPosition() {
+      return flagBitPosition;
+    }
+  }
+}
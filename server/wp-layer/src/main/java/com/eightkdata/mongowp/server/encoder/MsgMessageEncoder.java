@@ -0,0 +1,125 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.server.encoder;
+
+import com.eightkdata.mongowp.bson.netty.NettyBsonDocumentWriter;
+import com.eightkdata.mongowp.bson.utils.BsonDocumentReader.AllocationType;
+import com.eightkdata.mongowp.messages.response.MsgReplyMessage;
+import com.eightkdata.mongowp.messages.response.ResponseOpCode;
+import com.eightkdata.mongowp.messages.utils.DocumentSequence;
+import com.eightkdata.mongowp.server.util.Crc32cUtil;
+import com.eightkdata.mongowp.server.util.EnumBitFlags;
+import com.eightkdata.mongowp.server.util.EnumInt32FlagsUtil;
+import com.google.common.base.Charsets;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import io.netty.buffer.ByteBuf;
+
+import java.util.Collections;
+import java.util.EnumSet;
+
+import javax.annotation.Nonnegative;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Encodes OP_MSG messages.
+ */
+@SuppressFBWarnings(
+    value = "RV_RETURN_VALUE_IGNORED_NO_SIDE_EFFECT",
+    justification = "It seems FindBugs considers ByteBuf methods are not side effect")
+@Singleton
+public class MsgMessageEncoder {
+
+  private static final byte BODY_SECTION = 0;
+  private static final byte DOCUMENT_SEQUENCE_SECTION = 1;
+
+  private final NettyBsonDocumentWriter writer;
+
+  @Inject
+  public MsgMessageEncoder(NettyBsonDocumentWriter writer) {
+    this.writer = writer;
+  }
+
+  /**
+   * Writes the whole message, from its length to its checksum (if it has one).
+   */
+  public void encode(ByteBuf buffer, MsgReplyMessage message, int requestId) {
+    final int messageStart = buffer.writerIndex();
+    buffer.writeInt(0); // reserve space for the message length
+    buffer.writeInt(requestId);
+    buffer.writeInt(message.getResponseTo());
+    buffer.writeInt(ResponseOpCode.OP_COMMAND_MSG.getOpCode());
+    buffer.writeInt(EnumInt32FlagsUtil.getInt32Flags(extractFlags(message)));
+
+    buffer.writeByte(BODY_SECTION);
+    writer.writeAllInto(buffer, Collections.singleton(message.getBody()));
+
+    for (DocumentSequence sequence : message.getDocumentSequences()) {
+      encodeDocumentSequence(buffer, sequence);
+    }
+
+    if (message.isChecksumPresent()) {
+      int checksumStart = buffer.writerIndex();
+      buffer.setInt(messageStart, checksumStart + 4 - messageStart);
+      buffer.writeInt(Crc32cUtil.checksum(buffer, messageStart, checksumStart - messageStart));
+    } else {
+      buffer.setInt(messageStart, buffer.writerIndex() - messageStart);
+    }
+  }
+
+  private void encodeDocumentSequence(ByteBuf buffer, DocumentSequence sequence) {
+    buffer.writeByte(DOCUMENT_SEQUENCE_SECTION);
+    final int sectionStart = buffer.writerIndex();
+    buffer.writeInt(0); // reserve space for the section size
+    buffer.writeBytes(sequence.getIdentifier().getBytes(Charsets.UTF_8));
+    buffer.writeByte(0x00);
+
+    writer.writeAllInto(buffer, sequence.getDocuments().getIterable(AllocationType.OFFHEAP));
+
+    buffer.setInt(sectionStart, buffer.writerIndex() - sectionStart);
+  }
+
+  private EnumSet<Flag> extractFlags(MsgReplyMessage message) {
+    EnumSet<Flag> flags = EnumSet.noneOf(Flag.class);
+    if (message.isChecksumPresent()) {
+      flags.add(Flag.CHECKSUM_PRESENT);
+    }
+    if (message.isMoreToCome()) {
+      flags.add(Flag.MORE_TO_COME);
+    }
+    return flags;
+  }
+
+  private enum Flag implements EnumBitFlags {
+    CHECKSUM_PRESENT(0),
+    MORE_TO_COME(1);
+
+    @Nonnegative
+    private final int flagBitPosition;
+
+    private Flag(@Nonnegative int flagBitPosition) {
+      this.flagBitPosition = flagBitPosition;
+    }
+
+    @Override
+    public int getFlagBitPosition() {
+      return flagBitPosition;
+    }
+  }
+}
@@ -57,18 +57,26 @@ public class ReplyMessageEncoder {
     buffer.writeInt(ResponseOpCode.OP_REPLY.getOpCode());
   }
 
+  /**
+   * Writes the body of the given reply.
+   *
+   * <p>Documents are iterated only once. They are requested {@linkplain AllocationType#OFFHEAP
+   * off heap}, so the ones read from a buffer are written without being materialized, and the
+   * number of returned documents is written once all of them have been written. The buffer is
+   * grown once for all the documents that are copied.
+   */
   public void encodeMessageBody(ByteBuf buffer, ReplyMessage message) {
-    FluentIterable<? extends BsonDocument> docs = message.getDocuments().getIterable(
-        AllocationType.HEAP);
-
     buffer.writeInt(EnumInt32FlagsUtil.getInt32Flags(extractFlags(message)));
     buffer.writeLong(message.getCursorId());
     buffer.writeInt(message.getStartingFrom());
-    buffer.writeInt(docs.size());
+    final int numberReturnedIndex = buffer.writerIndex();
+    buffer.writeInt(0); // reserve space for numberReturned
 
-    for (BsonDocument document : docs) {
-      writer.writeInto(buffer, document);
-    }
+    FluentIterable<? extends BsonDocument> docs = message.getDocuments().getIterable(
+        AllocationType.OFFHEAP);
+    int numberReturned = writer.writeAllInto(buffer, docs);
+
+    buffer.setInt(numberReturnedIndex, numberReturned);
   }
 
   private EnumSet<Flag> extractFlags(ReplyMessage message) {
@@ -58,6 +58,11 @@ public final class ByteBufIterableDocumentProvider extends IterableDocumentProvi
     return new MyIterable(algorithm, reader, byteBuf);
   }
 
+  @Override
+  public boolean isEmpty() {
+    return byteBuf.readableBytes() == 0;
+  }
+
   private static final class MyIterable extends FluentIterable<BsonDocument> {
 
     private final AllocationType allocationType;
@@ -18,24 +18,42 @@
 
 package com.eightkdata.mongowp.server.util;
 
-import com.eightkdata.mongowp.messages.response.ReplyMessage;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToByteEncoder;
 
 import java.nio.ByteOrder;
 
 /**
+ * An encoder that writes messages in little endian.
  *
+ * <p>Messages are encoded on composite buffers, so the documents that are backed by other buffers
+ * can be added to the message without copying them.
+ *
+ * @param <M> the type of the encoded messages
  */
-public abstract class ChannelLittleEndianEncoder extends MessageToByteEncoder<ReplyMessage> {
+public abstract class ChannelLittleEndianEncoder<M> extends MessageToByteEncoder<M> {
+
+  private static final int MAX_COMPONENTS = 1024;
 
   @Override
-  protected void encode(ChannelHandlerContext ctx, ReplyMessage msg, ByteBuf out) throws Exception {
+  protected void encode(ChannelHandlerContext ctx, M msg, ByteBuf out) throws Exception {
     encodeLittleEndian(ctx, msg, out.order(ByteOrder.LITTLE_ENDIAN));
   }
 
-  protected abstract void encodeLittleEndian(ChannelHandlerContext ctx, ReplyMessage msg,
+  protected abstract void encodeLittleEndian(ChannelHandlerContext ctx, M msg,
       ByteBuf out)
       throws Exception;
+
+  @Override
+  protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, M msg, boolean preferDirect)
+      throws Exception {
+    ByteBufAllocator alloc = ctx.alloc();
+    if (preferDirect) {
+      return alloc.compositeDirectBuffer(MAX_COMPONENTS);
+    } else {
+      return alloc.compositeHeapBuffer(MAX_COMPONENTS);
+    }
+  }
 }
@@ -0,0 +1,82 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.server.util;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Ints;
+import io.netty.buffer.ByteBuf;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Computes the CRC-32C checksums used by OP_MSG.
+ */
+public class Crc32cUtil {
+
+  private static final int COPY_CHUNK_SIZE = 8 * 1024;
+
+  private Crc32cUtil() {
+  }
+
+  /**
+   * Calculates the checksum of a message whose length field is not stored on the given buffer.
+   *
+   * @param messageLength the value of the message length field
+   * @param byteBuf       the buffer that contains the rest of the message
+   * @param index         the index of the first byte of the message after the length field
+   * @param length        the number of bytes of the message after the length field that must be
+   *                      included, the checksum itself excluded
+   */
+  public static int checksum(int messageLength, ByteBuf byteBuf, int index, int length) {
+    Hasher hasher = Hashing.crc32c().newHasher();
+    hasher.putBytes(Ints.toByteArray(Integer.reverseBytes(messageLength)));
+    putBytes(hasher, byteBuf, index, length);
+    return hasher.hash().asInt();
+  }
+
+  /**
+   * Calculates the checksum of the given bytes.
+   */
+  public static int checksum(ByteBuf byteBuf, int index, int length) {
+    Hasher hasher = Hashing.crc32c().newHasher();
+    putBytes(hasher, byteBuf, index, length);
+    return hasher.hash().asInt();
+  }
+
+  private static void putBytes(Hasher hasher, ByteBuf byteBuf, int index, int length) {
+    byte[] chunk = null;
+    for (ByteBuffer nioBuffer : byteBuf.nioBuffers(index, length)) {
+      if (nioBuffer.hasArray()) {
+        hasher.putBytes(nioBuffer.array(), nioBuffer.arrayOffset() + nioBuffer.position(),
+            nioBuffer.remaining());
+      } else {
+        if (chunk == null) {
+          chunk = new byte[Math.min(COPY_CHUNK_SIZE, length)];
+        }
+        ByteBuffer source = nioBuffer.duplicate();
+        while (source.hasRemaining()) {
+          int toCopy = Math.min(chunk.length, source.remaining());
+          source.get(chunk, 0, toCopy);
+          hasher.putBytes(chunk, 0, toCopy);
+        }
+      }
+    }
+  }
+}
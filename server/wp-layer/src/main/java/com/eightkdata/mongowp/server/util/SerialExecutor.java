@@ -0,0 +1,141 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.server.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * An executor that runs its tasks one after the other, in submission order, on a delegated
+ * executor.
+ *
+ * <p>Tasks are never run concurrently, but they may be run on different threads. To be fair with
+ * other users of the delegated executor, a drain cycle runs at most {@link #MAX_TASKS_PER_RUN}
+ * tasks before it is rescheduled.
+ *
+ * <p>If the delegated executor rejects a drain cycle, the tasks that were waiting on this executor
+ * are discarded: they are given to the discarded task handler and the rejection is thrown to the
+ * caller that submitted the task.
+ */
+public class SerialExecutor implements Executor {
+
+  private static final Logger LOGGER = LogManager.getLogger(SerialExecutor.class);
+  private static final int MAX_TASKS_PER_RUN = 16;
+
+  private final Executor delegate;
+  private final Consumer<Runnable> discardedTaskHandler;
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  /**
+   * The number of tasks that have been submitted but not finished yet. The thread that moves it
+   * from 0 to 1 is the one that schedules the drain.
+   */
+  private final AtomicInteger pending = new AtomicInteger();
+  private final Runnable drainTask = this::drain;
+
+  public SerialExecutor(Executor delegate) {
+    this(delegate, task -> LOGGER.warn("Discarding task {}, as it has been rejected", task));
+  }
+
+  /**
+   * @param delegate             the executor that runs the tasks
+   * @param discardedTaskHandler called with each task that is discarded because the delegate has
+   *                             rejected it
+   */
+  public SerialExecutor(Executor delegate, Consumer<Runnable> discardedTaskHandler) {
+    this.delegate = delegate;
+    this.discardedTaskHandler = discardedTaskHandler;
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    tasks.add(command);
+    if (pending.getAndIncrement() == 0) {
+      schedule();
+    }
+  }
+
+  /**
+   * Returns the number of tasks that have been submitted and are not finished yet.
+   */
+  public int getPendingTasks() {
+    return pending.get();
+  }
+
+  /**
+   * Schedules a drain cycle. It must only be called by the thread that owns the drain, which is
+   * the one that moved {@link #pending} from 0 to 1 or the one that is running the drain.
+   */
+  private void schedule() {
+    try {
+      delegate.execute(drainTask);
+    } catch (RejectedExecutionException ex) {
+      discardPending();
+      throw ex;
+    }
+  }
+
+  /**
+   * Discards the pending tasks until there are no more. Tasks submitted concurrently are counted
+   * before they are discarded, so none of them is lost. Once {@link #pending} is 0, the next
+   * submitter owns the drain again.
+   */
+  private void discardPending() {
+    int remaining = pending.get();
+    while (remaining != 0) {
+      Runnable task = tasks.poll();
+      assert task != null;
+      try {
+        discardedTaskHandler.accept(task);
+      } catch (RuntimeException ex) {
+        LOGGER.error("Uncaught exception while discarding a serial task", ex);
+      }
+      remaining = pending.decrementAndGet();
+    }
+  }
+
+  private void drain() {
+    boolean finished = false;
+    try {
+      for (int executed = 0; executed < MAX_TASKS_PER_RUN && !finished; executed++) {
+        Runnable task = tasks.poll();
+        assert task != null;
+        try {
+          task.run();
+        } catch (RuntimeException ex) {
+          LOGGER.error("Uncaught exception on a serial task", ex);
+        } finally {
+          finished = pending.decrementAndGet() == 0;
+        }
+      }
+    } finally {
+      //errors are propagated to the delegate, but the remaining tasks must still be executed
+      if (!finished) {
+        schedule();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,258 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.server.wp;
+
+import com.eightkdata.mongowp.MongoConstants;
+import com.eightkdata.mongowp.messages.compression.CompressionStatistics;
+import com.eightkdata.mongowp.messages.compression.MessageCompressor;
+import com.eightkdata.mongowp.messages.request.RequestOpCode;
+import com.eightkdata.mongowp.messages.response.ResponseOpCode;
+import com.google.common.primitives.Ints;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+
+import java.nio.ByteOrder;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+
+/**
+ * A handler that decompresses OP_COMPRESSED requests and compresses their replies.
+ *
+ * <p>Inbound, it receives frames without their message length and, if they are OP_COMPRESSED
+ * messages, it replaces them with the frame of the wrapped message. Outbound, it receives encoded
+ * messages and compresses the replies to compressed requests with the compressor used by the
+ * request, as clients expect. Replies whose body is smaller than {@code minCompressionBytes} and
+ * replies to uncompressed requests, like the {@code hello} command that negotiates the
+ * compressors, are sent uncompressed.
+ *
+ * <p>An instance of this class must be used by a single channel.
+ */
+class CompressionHandler extends ChannelDuplexHandler {
+
+  /**
+   * The bytes of the OP_COMPRESSED body that are written before the compressed message: the
+   * original opCode, the uncompressed size and the compressor id.
+   */
+  private static final int COMPRESSED_HEADER_BYTES = Ints.BYTES + Ints.BYTES + 1;
+  private static final int OP_CODE_INDEX = Ints.BYTES + Ints.BYTES;
+  private static final int OP_MSG_MORE_TO_COME_FLAG = 1 << 1;
+
+  private final Set<MessageCompressor> compressors;
+  private final int minCompressionBytes;
+  private final CompressionStatistics statistics;
+  /**
+   * The compressor used by each compressed request whose reply has not been sent yet, by request
+   * id. It is only accessed from the channel event loop.
+   */
+  private final Map<Integer, MessageCompressor> pendingReplies = new HashMap<>();
+
+  /**
+   * @param compressors         the compressors clients can use. {@link MessageCompressor#NOOP}
+   *                            is always accepted
+   * @param minCompressionBytes the minimum body length of the replies that are compressed
+   */
+  CompressionHandler(Iterable<MessageCompressor> compressors, int minCompressionBytes,
+      CompressionStatistics statistics) {
+    this.compressors = EnumSet.of(MessageCompressor.NOOP);
+    for (MessageCompressor compressor : compressors) {
+      this.compressors.add(compressor);
+    }
+    this.minCompressionBytes = minCompressionBytes;
+    this.statistics = statistics;
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (msg instanceof ByteBuf) {
+      ByteBuf frame = ((ByteBuf) msg).order(ByteOrder.LITTLE_ENDIAN);
+      if (frame.readableBytes() >= MongoConstants.MESSAGE_HEADER_WITHOUT_LENGTH_FIELD_BYTES
+          && frame.getInt(frame.readerIndex() + OP_CODE_INDEX)
+          == RequestOpCode.OP_COMPRESSED.getOpCode()) {
+        ByteBuf decompressed;
+        try {
+          decompressed = decompress(ctx, frame);
+        } finally {
+          frame.release();
+        }
+        ctx.fireChannelRead(decompressed);
+        return;
+      }
+    }
+    ctx.fireChannelRead(msg);
+  }
+
+  private ByteBuf decompress(ChannelHandlerContext ctx, ByteBuf frame) throws DataFormatException {
+    int headerLength = MongoConstants.MESSAGE_HEADER_WITHOUT_LENGTH_FIELD_BYTES;
+    if (frame.readableBytes() < headerLength + COMPRESSED_HEADER_BYTES) {
+      throw new DataFormatException("OP_COMPRESSED message is too short");
+    }
+    int index = frame.readerIndex();
+    int requestId = frame.getInt(index);
+    int responseTo = frame.getInt(index + Ints.BYTES);
+    int originalOpCode = frame.getInt(index + headerLength);
+    int uncompressedSize = frame.getInt(index + headerLength + Ints.BYTES);
+    byte compressorId = frame.getByte(index + headerLength + Ints.BYTES + Ints.BYTES);
+
+    MessageCompressor compressor = MessageCompressor.getById(compressorId);
+    if (compressor == null || !compressors.contains(compressor)) {
+      throw new DataFormatException("Compressor with id " + compressorId + " is not supported");
+    }
+    if (originalOpCode == RequestOpCode.OP_COMPRESSED.getOpCode()) {
+      throw new DataFormatException("OP_COMPRESSED messages cannot wrap other OP_COMPRESSED "
+          + "messages");
+    }
+    if (uncompressedSize < 0 || uncompressedSize > MongoConstants.MAX_MESSAGE_SIZE_BYTES
+        - MongoConstants.MESSAGE_HEADER_BYTES) {
+      throw new DataFormatException("Invalid uncompressed size " + uncompressedSize);
+    }
+
+    int compressedIndex = index + headerLength + COMPRESSED_HEADER_BYTES;
+    int compressedLength = frame.writerIndex() - compressedIndex;
+
+    ByteBuf result = ctx.alloc().heapBuffer(headerLength + uncompressedSize)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    try {
+      result.writeInt(requestId);
+      result.writeInt(responseTo);
+      result.writeInt(originalOpCode);
+
+      long start = System.nanoTime();
+      if (frame.hasArray()) {
+        compressor.decompress(frame.array(), frame.arrayOffset() + compressedIndex,
+            compressedLength, result.array(), result.arrayOffset() + result.writerIndex(),
+            uncompressedSize);
+      } else {
+        byte[] compressed = new byte[compressedLength];
+        frame.getBytes(compressedIndex, compressed);
+        compressor.decompress(compressed, 0, compressedLength, result.array(),
+            result.arrayOffset() + result.writerIndex(), uncompressedSize);
+      }
+      statistics.onDecompression(compressor, compressedLength, uncompressedSize,
+          System.nanoTime() - start);
+      result.writerIndex(result.writerIndex() + uncompressedSize);
+
+      if (isReplyExpected(originalOpCode, result)) {
+        pendingReplies.put(requestId, compressor);
+      }
+      return result;
+    } catch (DataFormatException | RuntimeException ex) {
+      result.release();
+      throw ex;
+    }
+  }
+
+  private boolean isReplyExpected(int originalOpCode, ByteBuf message) {
+    RequestOpCode opCode = RequestOpCode.getByOpcode(originalOpCode);
+    if (opCode == null || !opCode.canReply()) {
+      return false;
+    }
+    if (opCode == RequestOpCode.OP_COMMAND_MSG) {
+      int flagsIndex = message.readerIndex()
+          + MongoConstants.MESSAGE_HEADER_WITHOUT_LENGTH_FIELD_BYTES;
+      return message.writerIndex() < flagsIndex + Ints.BYTES
+          || (message.getInt(flagsIndex) & OP_MSG_MORE_TO_COME_FLAG) == 0;
+    }
+    return true;
+  }
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws
+      Exception {
+    if (msg instanceof ByteBuf && !pendingReplies.isEmpty()) {
+      ByteBuf message = ((ByteBuf) msg).order(ByteOrder.LITTLE_ENDIAN);
+      if (message.readableBytes() >= MongoConstants.MESSAGE_HEADER_BYTES) {
+        int responseTo = message.getInt(message.readerIndex()
+            + MongoConstants.MESSAGE_LENGTH_FIELD_BYTES + Ints.BYTES);
+        MessageCompressor compressor = pendingReplies.remove(responseTo);
+        if (compressor != null) {
+          if (message.readableBytes() - MongoConstants.MESSAGE_HEADER_BYTES
+              < minCompressionBytes) {
+            statistics.onSmallMessage();
+          } else {
+            ByteBuf compressed;
+            try {
+              compressed = compress(ctx, message, compressor);
+            } finally {
+              ReferenceCountUtil.release(msg);
+            }
+            ctx.write(compressed, promise);
+            return;
+          }
+        }
+      }
+    }
+    ctx.write(msg, promise);
+  }
+
+  private ByteBuf compress(ChannelHandlerContext ctx, ByteBuf message,
+      MessageCompressor compressor) {
+    int index = message.readerIndex();
+    int bodyIndex = index + MongoConstants.MESSAGE_HEADER_BYTES;
+    int bodyLength = message.writerIndex() - bodyIndex;
+
+    ByteBuf result = ctx.alloc().heapBuffer(MongoConstants.MESSAGE_HEADER_BYTES
+        + COMPRESSED_HEADER_BYTES + compressor.maxCompressedLength(bodyLength))
+        .order(ByteOrder.LITTLE_ENDIAN);
+    try {
+      result.writeInt(0); // reserve space for the message length
+      result.writeInt(message.getInt(index + MongoConstants.MESSAGE_LENGTH_FIELD_BYTES));
+      result.writeInt(message.getInt(index + MongoConstants.MESSAGE_LENGTH_FIELD_BYTES
+          + Ints.BYTES));
+      result.writeInt(ResponseOpCode.OP_COMPRESSED.getOpCode());
+      result.writeInt(message.getInt(index + MongoConstants.MESSAGE_LENGTH_FIELD_BYTES
+          + OP_CODE_INDEX));
+      result.writeInt(bodyLength);
+      result.writeByte(compressor.getId());
+
+      long start = System.nanoTime();
+      int compressedLength;
+      if (message.hasArray()) {
+        compressedLength = compressor.compress(message.array(),
+            message.arrayOffset() + bodyIndex, bodyLength,
+            result.array(), result.arrayOffset() + result.writerIndex());
+      } else {
+        byte[] body = new byte[bodyLength];
+        message.getBytes(bodyIndex, body);
+        compressedLength = compressor.compress(body, 0, bodyLength,
+            result.array(), result.arrayOffset() + result.writerIndex());
+      }
+      statistics.onCompression(compressor, bodyLength, compressedLength,
+          System.nanoTime() - start);
+      result.writerIndex(result.writerIndex() + compressedLength);
+
+      result.setInt(0, result.writerIndex());
+      return result;
+    } catch (RuntimeException ex) {
+      result.release();
+      throw ex;
+    }
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    pendingReplies.clear();
+    ctx.fireChannelInactive();
+  }
+}
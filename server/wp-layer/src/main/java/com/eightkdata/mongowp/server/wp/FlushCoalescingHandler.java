@@ -0,0 +1,124 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.server.wp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * A handler that coalesces the flushes requested by {@link NettyMessageReplier}.
+ *
+ * <p>Each reply is written and flushed, but flushes requested while the channel is reading are
+ * delayed until {@link #channelReadComplete(ChannelHandlerContext) the read cycle ends}. Flushes
+ * requested outside a read cycle (for instance, by replies produced on another executor) are
+ * delayed until the tasks already queued on the event loop are executed. In both cases the
+ * pending replies are flushed as soon as they reach {@code maxPendingBytes}, so Netty can send
+ * them with a single gathering write.
+ *
+ * <p>This handler must be the first of the pipeline, so it sees the encoded bytes.
+ */
+class FlushCoalescingHandler extends ChannelDuplexHandler {
+
+  private final int maxPendingBytes;
+  private final FlushStatistics statistics;
+  private final Runnable flushTask;
+  private ChannelHandlerContext ctx;
+  private boolean readInProgress;
+  private boolean flushScheduled;
+  private int pendingFlushes;
+  private long pendingBytes;
+
+  /**
+   * @param maxPendingBytes if the written and not flushed bytes reach this value, they are
+   *                        flushed immediately. If it is zero or negative, each flush is
+   *                        forwarded as it is requested
+   */
+  FlushCoalescingHandler(int maxPendingBytes, FlushStatistics statistics) {
+    this.maxPendingBytes = maxPendingBytes;
+    this.statistics = statistics;
+    this.flushTask = () -> {
+      flushScheduled = false;
+      if (!readInProgress) {
+        flushPending(ctx);
+      }
+    };
+  }
+
+  @Override
+  public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+    this.ctx = ctx;
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    readInProgress = true;
+    ctx.fireChannelRead(msg);
+  }
+
+  @Override
+  public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+    readInProgress = false;
+    flushPending(ctx);
+    ctx.fireChannelReadComplete();
+  }
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws
+      Exception {
+    if (msg instanceof ByteBuf) {
+      pendingBytes += ((ByteBuf) msg).readableBytes();
+    }
+    ctx.write(msg, promise);
+  }
+
+  @Override
+  public void flush(ChannelHandlerContext ctx) throws Exception {
+    pendingFlushes++;
+    if (pendingBytes >= maxPendingBytes) {
+      flushPending(ctx);
+    } else if (!readInProgress && !flushScheduled) {
+      flushScheduled = true;
+      ctx.executor().execute(flushTask);
+    }
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    flushPending(ctx);
+    ctx.fireChannelInactive();
+  }
+
+  @Override
+  public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+    flushPending(ctx);
+    ctx.close(promise);
+  }
+
+  private void flushPending(ChannelHandlerContext ctx) {
+    if (pendingFlushes == 0) {
+      return;
+    }
+    statistics.onFlush(pendingFlushes, pendingBytes);
+    pendingFlushes = 0;
+    pendingBytes = 0;
+    ctx.flush();
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.server.wp;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters that describe how well replies are coalesced by {@link FlushCoalescingHandler}.
+ *
+ * <p>An instance is shared by all the connections of a server.
+ */
+public class FlushStatistics {
+
+  /**
+   * Buckets of the replies per flush histogram. Bucket {@code i} counts the flushes that sent
+   * between 2<sup>i</sup> and 2<sup>i+1</sup>-1 replies, the last one counts all bigger flushes.
+   */
+  private static final int BUCKETS = 8;
+
+  private final LongAdder flushes = new LongAdder();
+  private final LongAdder replies = new LongAdder();
+  private final LongAdder flushedBytes = new LongAdder();
+  private final LongAdder[] histogram = new LongAdder[BUCKETS];
+
+  public FlushStatistics() {
+    for (int i = 0; i < BUCKETS; i++) {
+      histogram[i] = new LongAdder();
+    }
+  }
+
+  void onFlush(int flushedReplies, long bytes) {
+    assert flushedReplies > 0;
+    flushes.increment();
+    replies.add(flushedReplies);
+    flushedBytes.add(bytes);
+    int bucket = Math.min(31 - Integer.numberOfLeadingZeros(flushedReplies), BUCKETS - 1);
+    histogram[bucket].increment();
+  }
+
+  /**
+   * Returns the number of flushes that have been sent to the network.
+   */
+  public long getFlushes() {
+    return flushes.sum();
+  }
+
+  /**
+   * Returns the number of replies that have been flushed.
+   */
+  public long getReplies() {
+    return replies.sum();
+  }
+
+  /**
+   * Returns the number of bytes that have been flushed.
+   */
+  public long getFlushedBytes() {
+    return flushedBytes.sum();
+  }
+
+  /**
+   * Returns the average number of replies sent on each flush.
+   */
+  public double getRepliesPerFlush() {
+    long flushCount = flushes.sum();
+    if (flushCount == 0) {
+      return 0;
+    }
+    return (double) replies.sum() / flushCount;
+  }
+
+  /**
+   * Returns the replies per flush histogram. The element {@code i} is the number of flushes that
+   * sent between 2<sup>i</sup> and 2<sup>i+1</sup>-1 replies. The last element also counts the
+   * bigger flushes.
+   */
+  public long[] getRepliesPerFlushHistogram() {
+    long[] result = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      result[i] = histogram[i].sum();
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "FlushStatistics{flushes=" + getFlushes() + ", replies=" + getReplies()
+        + ", bytes=" + getFlushedBytes() + ", repliesPerFlush=" + getRepliesPerFlush() + '}';
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.server.wp;
+
+import com.eightkdata.mongowp.messages.response.MsgReplyMessage;
+import com.eightkdata.mongowp.server.encoder.MsgMessageEncoder;
+import com.eightkdata.mongowp.server.util.ChannelLittleEndianEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+import javax.inject.Inject;
+
+/**
+ * Encodes {@link MsgReplyMessage OP_MSG replies}, including their message length.
+ *
+ * <p>The requestId of each reply is stored on its promise when it is a {@link ReplyPromise}.
+ */
+public class MsgReplyMessageObjectHandler extends ChannelLittleEndianEncoder<MsgReplyMessage> {
+
+  private final RequestIdGenerator requestIdGenerator;
+
+  private final MsgMessageEncoder encoder;
+
+  /**
+   * The requestId of the reply that is being written.
+   */
+  private int nextRequestId;
+
+  @Inject
+  public MsgReplyMessageObjectHandler(RequestIdGenerator requestIdGenerator,
+      MsgMessageEncoder encoder) {
+    this.requestIdGenerator = requestIdGenerator;
+    this.encoder = encoder;
+  }
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise)
+      throws Exception {
+    if (acceptOutboundMessage(msg)) {
+      nextRequestId = requestIdGenerator.getNextRequestId();
+      if (promise instanceof ReplyPromise) {
+        ((ReplyPromise) promise).setRequestId(nextRequestId);
+      }
+    }
+    super.write(ctx, msg, promise);
+  }
+
+  @Override
+  protected void encodeLittleEndian(ChannelHandlerContext ctx, MsgReplyMessage message,
+      ByteBuf out) throws Exception {
+    encoder.encode(out, message, nextRequestId);
+  }
+}
@@ -18,8 +18,10 @@
 
 package com.eightkdata.mongowp.server.wp;
 
+import com.eightkdata.mongowp.messages.response.MsgReplyMessage;
 import com.eightkdata.mongowp.messages.response.ReplyMessage;
 import com.eightkdata.mongowp.server.callback.MessageReplier;
+import com.eightkdata.mongowp.server.util.SerialExecutor;
 import com.google.common.base.Preconditions;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.util.AttributeKey;
@@ -28,9 +30,16 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 /**
  * This message replier writes and flush the reply to the given netty channel.
+ *
+ * <p>The flush is not sent to the network immediately: {@link FlushCoalescingHandler} groups the
+ * flushes of the replies produced on the same read cycle.
+ *
+ * <p>Repliers created for requests that do not expect a reply (like OP_MSG messages with the
+ * {@code moreToCome} flag) discard all replies.
  */
 public class NettyMessageReplier extends MessageReplier {
 
@@ -41,16 +50,45 @@ public class NettyMessageReplier extends MessageReplier {
   public static final AttributeKey<Integer> REQUEST_ID = AttributeKey.valueOf("requestId");
 
   private final ChannelHandlerContext channelHandlerContext;
+  @Nullable
+  private final Integer requestId;
+  private final boolean replyExpected;
+  @Nullable
+  private ReplyPromise lastReplyFuture;
+  private long lastReplyCursorId;
+  private boolean lastReplyMoreToCome;
 
   public NettyMessageReplier(@Nonnull ChannelHandlerContext channelHandlerContext) {
+    this(channelHandlerContext, true);
+  }
+
+  public NettyMessageReplier(@Nonnull ChannelHandlerContext channelHandlerContext,
+      boolean replyExpected) {
+    this(channelHandlerContext, channelHandlerContext.attr(REQUEST_ID).get(), replyExpected);
+  }
+
+  /**
+   * Creates a replier for the request with the given requestId. Used when the request is not
+   * executed on the event loop, where the {@link #REQUEST_ID} attribute may already contain the
+   * requestId of a later request.
+   */
+  public NettyMessageReplier(@Nonnull ChannelHandlerContext channelHandlerContext,
+      @Nullable Integer requestId, boolean replyExpected) {
     Preconditions.checkNotNull(channelHandlerContext);
 
     this.channelHandlerContext = channelHandlerContext;
+    this.requestId = requestId;
+    this.replyExpected = replyExpected;
   }
 
+  /**
+   * Returns the requestId of the request this replier was created for, which is the given one or
+   * the value the {@link #REQUEST_ID} attribute had at that moment.
+   */
   @Override
   public int getRequestId() {
-    return channelHandlerContext.attr(REQUEST_ID).get();
+    Preconditions.checkState(requestId != null, "There is no request to reply to");
+    return requestId;
   }
 
   @Override
@@ -60,8 +98,85 @@ public class NettyMessageReplier extends MessageReplier {
 
   @Override
   public void replyMessage(ReplyMessage replyMessage) {
-    channelHandlerContext.writeAndFlush(replyMessage);
+    if (!replyExpected) {
+      discard(replyMessage);
+      return;
+    }
+    if (replyMessage.isCursorNotFound() || replyMessage.isQueryFailure()) {
+      lastReplyCursorId = 0;
+    } else {
+      lastReplyCursorId = replyMessage.getCursorId();
+    }
+    LOGGER.debug("Replying " + replyMessage);
+    lastReplyFuture = write(replyMessage);
+  }
+
+  @Override
+  public void replyMessage(MsgReplyMessage replyMessage) {
+    if (!replyExpected) {
+      discard(replyMessage);
+      return;
+    }
+    lastReplyMoreToCome = replyMessage.isMoreToCome();
     LOGGER.debug("Replying " + replyMessage);
+    lastReplyFuture = write(replyMessage);
+  }
+
+  private ReplyPromise write(Object replyMessage) {
+    ReplyPromise promise = new ReplyPromise(channelHandlerContext.channel());
+    channelHandlerContext.writeAndFlush(replyMessage, promise);
+    return promise;
+  }
+
+  /**
+   * Executes the task on the executor of the connection if requests are executed outside the
+   * event loop or on the channel event loop otherwise.
+   */
+  @Override
+  public void executeOnConnection(Runnable task) {
+    SerialExecutor connectionExecutor = channelHandlerContext.attr(
+        RequestMessageObjectHandler.CONNECTION_EXECUTOR).get();
+    if (connectionExecutor != null) {
+      connectionExecutor.execute(task);
+    } else {
+      channelHandlerContext.executor().execute(task);
+    }
+  }
+
+  /**
+   * Returns the future of the last {@link ReplyMessage} or {@link MsgReplyMessage} written by this
+   * replier or null if none has been written.
+   *
+   * <p>Once the reply has been encoded, the promise contains the requestId that was used.
+   */
+  @Nullable
+  ReplyPromise getLastReplyFuture() {
+    return lastReplyFuture;
+  }
+
+  /**
+   * Returns the id of the cursor returned by the last {@link ReplyMessage} written by this
+   * replier or 0 if the cursor is exhausted or the reply is an error.
+   */
+  long getLastReplyCursorId() {
+    return lastReplyCursorId;
+  }
+
+  /**
+   * Returns true if the last {@link MsgReplyMessage} written by this replier has the
+   * {@code moreToCome} flag.
+   */
+  boolean isLastReplyMoreToCome() {
+    return lastReplyMoreToCome;
+  }
+
+  private void discard(AutoCloseable replyMessage) {
+    LOGGER.debug("Discarding " + replyMessage + " as no reply is expected");
+    try {
+      replyMessage.close();
+    } catch (Exception ex) {
+      LOGGER.debug("Error while closing a discarded reply", ex);
+    }
   }
 
 }
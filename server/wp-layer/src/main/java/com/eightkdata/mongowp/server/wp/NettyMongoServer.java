@@ -20,8 +20,10 @@ package com.eightkdata.mongowp.server.wp;
 
 import com.eightkdata.mongowp.MongoConstants;
 import com.eightkdata.mongowp.annotations.MongoWp;
+import com.eightkdata.mongowp.messages.compression.CompressionStatistics;
+import com.eightkdata.mongowp.messages.compression.MessageCompressor;
 import com.eightkdata.mongowp.server.MongoServerConfig;
-import com.eightkdata.mongowp.server.util.LengthFieldPrependerLittleEndian;
+import com.eightkdata.mongowp.server.MongoServerConfig.TransportMode;
 import com.google.common.util.concurrent.AbstractIdleService;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.netty.bootstrap.ServerBootstrap;
@@ -31,14 +33,14 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ThreadFactory;
 
@@ -54,24 +56,43 @@ public class NettyMongoServer extends AbstractIdleService {
   private static final Logger LOGGER = LogManager.getLogger(NettyMongoServer.class);
 
   private final int port;
+  private final TransportMode transportMode;
+  private final int maxPendingFlushBytes;
+  private final FlushStatistics flushStatistics = new FlushStatistics();
+  private final List<MessageCompressor> compressors;
+  private final int minCompressionBytes;
+  private volatile CompressionStatistics compressionStatistics;
+  private NettyTransport transport;
   private EventLoopGroup connectionGroup;
   private EventLoopGroup workerGroup;
   private final RequestMessageObjectHandler requestMessageObjectHandler;
   private final Provider<RequestMessageByteHandler> requestMessageByteHandler;
   private final Provider<ReplyMessageObjectHandler> replyMessageObjectHandler;
-  private final LengthFieldPrependerLittleEndian lengthFieldPrependerLittleEndian;
+  private final Provider<MsgReplyMessageObjectHandler> msgReplyMessageObjectHandler;
   private final ThreadFactory threadFactory;
 
   @Inject
   public NettyMongoServer(@MongoWp ThreadFactory threadFactory, MongoServerConfig mongoServerConfig,
       Provider<RequestMessageByteHandler> requestMessageByteHandler,
       Provider<ReplyMessageObjectHandler> replyMessageObjectHandler,
+      Provider<MsgReplyMessageObjectHandler> msgReplyMessageObjectHandler,
       RequestMessageObjectHandler requestMessageObjectHandler) {
-    this.lengthFieldPrependerLittleEndian = new LengthFieldPrependerLittleEndian(
-        MongoConstants.MESSAGE_LENGTH_FIELD_BYTES, true);
     this.port = mongoServerConfig.getPort();
+    this.transportMode = mongoServerConfig.getTransportMode();
+    this.maxPendingFlushBytes = mongoServerConfig.getMaxPendingFlushBytes();
+    this.compressors = new ArrayList<>();
+    for (MessageCompressor compressor : mongoServerConfig.getCompressors()) {
+      if (compressor.isAvailable()) {
+        compressors.add(compressor);
+      } else {
+        LOGGER.warn("The library of the " + compressor.getName() + " compressor is not "
+            + "available, so it will not be used");
+      }
+    }
+    this.minCompressionBytes = mongoServerConfig.getMinCompressionBytes();
     this.requestMessageByteHandler = requestMessageByteHandler;
     this.replyMessageObjectHandler = replyMessageObjectHandler;
+    this.msgReplyMessageObjectHandler = msgReplyMessageObjectHandler;
     this.requestMessageObjectHandler = requestMessageObjectHandler;
     this.threadFactory = threadFactory;
   }
@@ -86,14 +107,19 @@ public class NettyMongoServer extends AbstractIdleService {
   }
 
   private void buildChildHandlerPipeline(ChannelPipeline pipeline) {
+    pipeline.addLast(new FlushCoalescingHandler(maxPendingFlushBytes, flushStatistics));
     pipeline.addLast(new LengthFieldBasedFrameDecoder(
         ByteOrder.LITTLE_ENDIAN, MongoConstants.MAX_MESSAGE_SIZE_BYTES, 0,
         MongoConstants.MESSAGE_LENGTH_FIELD_BYTES, -MongoConstants.MESSAGE_LENGTH_FIELD_BYTES,
         MongoConstants.MESSAGE_LENGTH_FIELD_BYTES, true
     ));
+    if (!compressors.isEmpty()) {
+      pipeline.addLast(new CompressionHandler(compressors, minCompressionBytes,
+          getCompressionStatistics()));
+    }
     pipeline.addLast(requestMessageByteHandler.get());
-    pipeline.addLast(lengthFieldPrependerLittleEndian);
     pipeline.addLast(replyMessageObjectHandler.get());
+    pipeline.addLast(msgReplyMessageObjectHandler.get());
     pipeline.addLast(requestMessageObjectHandler);
   }
 
@@ -101,22 +127,33 @@ public class NettyMongoServer extends AbstractIdleService {
   protected void startUp() throws Exception {
     LOGGER.info("Listening MongoDB requests on port " + port);
 
-    connectionGroup = new NioEventLoopGroup(0, new ThreadFactoryBuilder().setNameFormat(
+    transport = NettyTransport.select(transportMode);
+    if (transportMode == TransportMode.AUTO && transport != NettyTransport.EPOLL) {
+      LOGGER.info("Native epoll transport is not available, falling back to NIO");
+      LOGGER.debug("Native epoll transport unavailability cause",
+          NettyTransport.getEpollUnavailabilityCause());
+    }
+    LOGGER.info("Using " + transport + " transport (configured mode: " + transportMode + ")");
+    if (!compressors.isEmpty()) {
+      LOGGER.info("Accepting compressed messages with " + compressors);
+    }
+
+    connectionGroup = transport.createEventLoopGroup(new ThreadFactoryBuilder().setNameFormat(
         "netty-connection-%d").build());
-    workerGroup = new NioEventLoopGroup(0, new ThreadFactoryBuilder().setNameFormat(
+    workerGroup = transport.createEventLoopGroup(new ThreadFactoryBuilder().setNameFormat(
         "netty-worker-%d").build());
 
     ServerBootstrap bootstrap = new ServerBootstrap();
     bootstrap.group(connectionGroup, workerGroup)
-        .channel(NioServerSocketChannel.class)
+        .channel(transport.getServerChannelClass())
         .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
         .childHandler(new ChannelInitializer<SocketChannel>() {
           @Override
           protected void initChannel(SocketChannel socketChannel) throws Exception {
             buildChildHandlerPipeline(socketChannel.pipeline());
           }
-        }) // TODO: set TCP channel options?
-        ;
+        });
+    transport.configure(bootstrap);
 
     ChannelFuture channelFuture = bootstrap.bind(port).awaitUninterruptibly();
     if (!channelFuture.isSuccess()) {
@@ -134,10 +171,45 @@ public class NettyMongoServer extends AbstractIdleService {
     if (connectionGroup != null) {
       connectionGroup.shutdownGracefully().syncUninterruptibly();
     }
+    requestMessageObjectHandler.shutDown();
   }
 
   public int getPort() {
     return port;
   }
 
+  /**
+   * Returns the statistics of the replies flushed by this server.
+   */
+  public FlushStatistics getFlushStatistics() {
+    return flushStatistics;
+  }
+
+  /**
+   * Returns the statistics of the messages compressed and decompressed by this server.
+   *
+   * <p>They are created on the first call, so servers that do not use compression do not need
+   * to load the compressors.
+   */
+  public CompressionStatistics getCompressionStatistics() {
+    CompressionStatistics result = compressionStatistics;
+    if (result == null) {
+      synchronized (this) {
+        result = compressionStatistics;
+        if (result == null) {
+          result = new CompressionStatistics();
+          compressionStatistics = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the name of the transport used by this server or null if it has not been started.
+   */
+  public String getTransportName() {
+    return transport == null ? null : transport.toString();
+  }
+
 }
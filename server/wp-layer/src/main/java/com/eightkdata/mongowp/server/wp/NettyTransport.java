@@ -0,0 +1,121 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.server.wp;
+
+import com.eightkdata.mongowp.server.MongoServerConfig.TransportMode;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The Netty transports supported by {@link NettyMongoServer}.
+ *
+ * <p>Epoll classes are only touched by {@link #EPOLL}, so this class can be loaded even if the
+ * native transport is not on the classpath.
+ */
+enum NettyTransport {
+  NIO {
+    @Override
+    EventLoopGroup createEventLoopGroup(ThreadFactory threadFactory) {
+      return new NioEventLoopGroup(0, threadFactory);
+    }
+
+    @Override
+    Class<? extends ServerChannel> getServerChannelClass() {
+      return NioServerSocketChannel.class;
+    }
+
+    @Override
+    void configure(ServerBootstrap bootstrap) {
+      bootstrap.childOption(ChannelOption.TCP_NODELAY, true);
+    }
+  },
+  EPOLL {
+    @Override
+    EventLoopGroup createEventLoopGroup(ThreadFactory threadFactory) {
+      return new EpollEventLoopGroup(0, threadFactory);
+    }
+
+    @Override
+    Class<? extends ServerChannel> getServerChannelClass() {
+      return EpollServerSocketChannel.class;
+    }
+
+    @Override
+    void configure(ServerBootstrap bootstrap) {
+      bootstrap.option(EpollChannelOption.SO_REUSEPORT, true)
+          .childOption(ChannelOption.TCP_NODELAY, true)
+          .childOption(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED);
+    }
+  };
+
+  abstract EventLoopGroup createEventLoopGroup(ThreadFactory threadFactory);
+
+  abstract Class<? extends ServerChannel> getServerChannelClass();
+
+  abstract void configure(ServerBootstrap bootstrap);
+
+  /**
+   * Returns the transport that must be used for the given mode.
+   *
+   * @throws IllegalStateException if {@link TransportMode#EPOLL} is requested but the native
+   *                               transport is not available
+   */
+  static NettyTransport select(TransportMode mode) {
+    switch (mode) {
+      case NIO:
+        return NIO;
+      case EPOLL:
+        Throwable cause = getEpollUnavailabilityCause();
+        if (cause != null) {
+          throw new IllegalStateException("Epoll transport was requested but it is not "
+              + "available", cause);
+        }
+        return EPOLL;
+      case AUTO:
+        return getEpollUnavailabilityCause() == null ? EPOLL : NIO;
+      default:
+        throw new AssertionError("Unexpected transport mode " + mode);
+    }
+  }
+
+  /**
+   * Returns why the epoll transport cannot be used or null if it can be used.
+   */
+  static Throwable getEpollUnavailabilityCause() {
+    try {
+      if (Epoll.isAvailable()) {
+        return null;
+      }
+      return Epoll.unavailabilityCause();
+    } catch (LinkageError ex) {
+      return ex;
+    }
+  }
+}
@@ -23,18 +23,26 @@ import com.eightkdata.mongowp.server.encoder.ReplyMessageEncoder;
 import com.eightkdata.mongowp.server.util.ChannelLittleEndianEncoder;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
 
 import javax.inject.Inject;
 
 /**
+ * Encodes {@link ReplyMessage reply messages}, including their message length.
  *
+ * <p>The requestId of each reply is stored on its promise when it is a {@link ReplyPromise}.
  */
-public class ReplyMessageObjectHandler extends ChannelLittleEndianEncoder {
+public class ReplyMessageObjectHandler extends ChannelLittleEndianEncoder<ReplyMessage> {
 
   private final RequestIdGenerator requestIdGenerator;
 
   private final ReplyMessageEncoder encoder;
 
+  /**
+   * The requestId of the reply that is being written.
+   */
+  private int nextRequestId;
+
   @Inject
   public ReplyMessageObjectHandler(RequestIdGenerator requestIdGenerator,
       ReplyMessageEncoder encoder) {
@@ -42,10 +50,27 @@ public class ReplyMessageObjectHandler extends ChannelLittleEndianEncoder {
     this.encoder = encoder;
   }
 
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise)
+      throws Exception {
+    if (acceptOutboundMessage(msg)) {
+      nextRequestId = requestIdGenerator.getNextRequestId();
+      if (promise instanceof ReplyPromise) {
+        ((ReplyPromise) promise).setRequestId(nextRequestId);
+      }
+    }
+    super.write(ctx, msg, promise);
+  }
+
   @Override
   protected void encodeLittleEndian(ChannelHandlerContext ctx, ReplyMessage message, ByteBuf out)
       throws Exception {
-    encoder.encodeMessageHeader(out, message, requestIdGenerator.getNextRequestId());
+    final int messageStart = out.writerIndex();
+    out.writeInt(0); // reserve space for the message length
+
+    encoder.encodeMessageHeader(out, message, nextRequestId);
     encoder.encodeMessageBody(out, message);
+
+    out.setInt(messageStart, out.writerIndex() - messageStart);
   }
 }
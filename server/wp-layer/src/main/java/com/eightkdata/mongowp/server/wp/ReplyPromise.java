@@ -0,0 +1,49 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.server.wp;
+
+import io.netty.channel.Channel;
+import io.netty.channel.DefaultChannelPromise;
+
+/**
+ * The promise of a reply written by a {@link NettyMessageReplier}.
+ *
+ * <p>The encoder that writes the reply stores on it the requestId it generated, so the code that
+ * waits for the reply knows which requestId was used even if other replies have been written on
+ * the same channel in the meantime.
+ */
+class ReplyPromise extends DefaultChannelPromise {
+
+  private volatile int requestId;
+
+  ReplyPromise(Channel channel) {
+    super(channel);
+  }
+
+  /**
+   * Returns the requestId of the reply or 0 if it has not been encoded yet.
+   */
+  int getRequestId() {
+    return requestId;
+  }
+
+  void setRequestId(int requestId) {
+    this.requestId = requestId;
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.server.wp;
+
+import com.eightkdata.mongowp.server.MongoServerConfig.ExecutionMode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.annotation.Nullable;
+
+/**
+ * Creates the executors used to run requests outside the Netty event loops.
+ */
+final class RequestExecutors {
+
+  private static final Logger LOGGER = LogManager.getLogger(RequestExecutors.class);
+
+  private RequestExecutors() {
+  }
+
+  /**
+   * Creates the executor that corresponds to the given mode.
+   *
+   * @return the executor or null if requests must be executed on the event loop
+   */
+  @Nullable
+  static ExecutorService create(ExecutionMode mode, int threads, ThreadFactory threadFactory) {
+    switch (mode) {
+      case EVENT_LOOP:
+        return null;
+      case VIRTUAL_THREADS:
+        ExecutorService virtualExecutor = createVirtualThreadExecutor();
+        if (virtualExecutor != null) {
+          LOGGER.info("Executing requests on virtual threads");
+          return virtualExecutor;
+        }
+        LOGGER.warn("Virtual threads are not supported by this JVM, a thread pool will be used "
+            + "to execute requests");
+        return createThreadPool(threads, threadFactory);
+      case THREAD_POOL:
+        return createThreadPool(threads, threadFactory);
+      default:
+        throw new AssertionError("Unexpected execution mode " + mode);
+    }
+  }
+
+  private static ExecutorService createThreadPool(int threads, ThreadFactory threadFactory) {
+    LOGGER.info("Executing requests on a pool of " + threads + " threads");
+    return Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+        .setThreadFactory(threadFactory)
+        .setNameFormat("mongowp-request-%d")
+        .build());
+  }
+
+  /**
+   * Virtual threads are looked up by reflection, as this code is compiled for older JVMs.
+   */
+  @Nullable
+  private static ExecutorService createVirtualThreadExecutor() {
+    try {
+      Method factoryMethod = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factoryMethod.invoke(null);
+    } catch (NoSuchMethodException | IllegalAccessException ex) {
+      return null;
+    } catch (InvocationTargetException ex) {
+      LOGGER.debug("Virtual threads could not be created", ex.getCause());
+      return null;
+    }
+  }
+}
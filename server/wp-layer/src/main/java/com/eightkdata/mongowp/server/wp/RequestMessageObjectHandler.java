@@ -18,6 +18,7 @@
 
 package com.eightkdata.mongowp.server.wp;
 
+import static com.eightkdata.mongowp.messages.request.RequestOpCode.OP_COMMAND_MSG;
 import static com.eightkdata.mongowp.messages.request.RequestOpCode.OP_DELETE;
 import static com.eightkdata.mongowp.messages.request.RequestOpCode.OP_GET_MORE;
 import static com.eightkdata.mongowp.messages.request.RequestOpCode.OP_INSERT;
@@ -25,16 +26,25 @@ import static com.eightkdata.mongowp.messages.request.RequestOpCode.OP_KILL_CURS
 import static com.eightkdata.mongowp.messages.request.RequestOpCode.OP_QUERY;
 import static com.eightkdata.mongowp.messages.request.RequestOpCode.OP_UPDATE;
 
+import com.eightkdata.mongowp.annotations.MongoWp;
+import com.eightkdata.mongowp.bson.BsonDocument;
 import com.eightkdata.mongowp.messages.request.DeleteMessage;
+import com.eightkdata.mongowp.messages.request.EmptyBsonContext;
 import com.eightkdata.mongowp.messages.request.GetMoreMessage;
 import com.eightkdata.mongowp.messages.request.InsertMessage;
 import com.eightkdata.mongowp.messages.request.KillCursorsMessage;
+import com.eightkdata.mongowp.messages.request.MsgMessage;
 import com.eightkdata.mongowp.messages.request.QueryMessage;
+import com.eightkdata.mongowp.messages.request.RequestBaseMessage;
 import com.eightkdata.mongowp.messages.request.RequestMessage;
 import com.eightkdata.mongowp.messages.request.RequestOpCode;
 import com.eightkdata.mongowp.messages.request.UpdateMessage;
+import com.eightkdata.mongowp.server.MongoServerConfig;
+import com.eightkdata.mongowp.server.MongoServerConfig.ExecutionMode;
 import com.eightkdata.mongowp.server.callback.MessageReplier;
 import com.eightkdata.mongowp.server.callback.RequestProcessor;
+import com.eightkdata.mongowp.server.util.SerialExecutor;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
@@ -42,10 +52,33 @@ import io.netty.util.AttributeKey;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 
 /**
+ * Executes the received requests on the {@link RequestProcessor}.
+ *
+ * <p>Depending on the configured {@link ExecutionMode}, requests are executed on the event loop
+ * or on an executor. In the later case, each connection has its own {@link SerialExecutor}, so
+ * requests of the same connection are still executed in order. Replies are always written by
+ * the channel event loop, as Netty moves writes issued from other threads to it, so requests
+ * executed on an executor are closed by the event loop after their replies have been encoded.
+ * When a connection has {@link MongoServerConfig#getMaxQueuedRequests()} requests waiting to be
+ * executed, the channel stops reading until half of them have been executed.
  *
+ * <p>Queries with the {@code exhaust} option and OP_MSG messages with the {@code exhaustAllowed}
+ * flag are streamed: once a reply has been written, the next request (a getMore of the returned
+ * cursor or the same OP_MSG message) is executed as if the client had sent it, using the requestId
+ * of that reply, so each reply answers the previous one. The stream stops when the cursor is
+ * exhausted or fails (or when an OP_MSG reply does not have the {@code moreToCome} flag), and it
+ * pauses while the channel is not writable.
  */
 @ChannelHandler.Sharable
 public class RequestMessageObjectHandler extends ChannelInboundHandlerAdapter {
@@ -55,56 +88,238 @@ public class RequestMessageObjectHandler extends ChannelInboundHandlerAdapter {
   public static final AttributeKey<RequestOpCode> REQUEST_OP_CODE = AttributeKey.valueOf(
       "requestOpCode");
 
+  static final AttributeKey<SerialExecutor> CONNECTION_EXECUTOR = AttributeKey.valueOf(
+      "connectionExecutor");
+
+  /**
+   * The number of requests submitted to the connection executor that have not been executed yet.
+   */
+  private static final AttributeKey<AtomicInteger> QUEUED_REQUESTS = AttributeKey.valueOf(
+      "queuedRequests");
+
+  /**
+   * The next batch of an exhaust query that is waiting for the channel to be writable.
+   */
+  private static final AttributeKey<Runnable> PENDING_EXHAUST_BATCH = AttributeKey.valueOf(
+      "pendingExhaustBatch");
+
   private final RequestProcessor requestProcessor;
+  @Nullable
+  private final ExecutorService requestExecutor;
+  private final int maxQueuedRequests;
 
-  @Inject
   public RequestMessageObjectHandler(RequestProcessor requestProcessor) {
     this.requestProcessor = requestProcessor;
+    this.requestExecutor = null;
+    this.maxQueuedRequests = Integer.MAX_VALUE;
+  }
+
+  @Inject
+  public RequestMessageObjectHandler(RequestProcessor requestProcessor,
+      MongoServerConfig mongoServerConfig, @MongoWp ThreadFactory threadFactory) {
+    this.requestProcessor = requestProcessor;
+    this.requestExecutor = RequestExecutors.create(mongoServerConfig.getExecutionMode(),
+        mongoServerConfig.getExecutionThreads(), threadFactory);
+    this.maxQueuedRequests = Math.max(1, mongoServerConfig.getMaxQueuedRequests());
   }
 
   @Override
   public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-    try (RequestMessage requestMessage = (RequestMessage) msg) {
-      ctx.attr(NettyMessageReplier.REQUEST_ID).set(requestMessage.getBaseMessage().getRequestId());
-      LOGGER
-          .debug("Received message type: {}, data: {}", requestMessage.getOpCode(), requestMessage);
-
-      MessageReplier messageReplier = new NettyMessageReplier(ctx);
-      ctx.attr(REQUEST_OP_CODE).set(requestMessage.getOpCode());
-      switch (requestMessage.getOpCode()) {
-        case OP_QUERY:
-          assert requestMessage instanceof QueryMessage;
-          requestProcessor.queryMessage((QueryMessage) requestMessage, messageReplier);
-          break;
-        case OP_GET_MORE:
-          assert requestMessage instanceof GetMoreMessage;
-          requestProcessor.getMore((GetMoreMessage) requestMessage, messageReplier);
-          break;
-        case OP_KILL_CURSORS:
-          assert requestMessage instanceof KillCursorsMessage;
-          requestProcessor.killCursors((KillCursorsMessage) requestMessage, messageReplier);
-          break;
-        case OP_INSERT:
-          assert requestMessage instanceof InsertMessage;
-          requestProcessor.insert((InsertMessage) requestMessage, messageReplier);
-          break;
-        case OP_UPDATE:
-          assert requestMessage instanceof UpdateMessage;
-          requestProcessor.update((UpdateMessage) requestMessage, messageReplier);
-          break;
-        case OP_DELETE:
-          assert requestMessage instanceof DeleteMessage;
-          requestProcessor.delete((DeleteMessage) requestMessage, messageReplier);
-          break;
-        default:
-          throw new UnsupportedOperationException(
-              "Message replier not implemented for "
-              + requestMessage.getOpCode() + " opCode"
-          );
+    RequestMessage requestMessage = (RequestMessage) msg;
+    submit(ctx, requestMessage, ExhaustRequest.of(requestMessage));
+  }
+
+  /**
+   * Executes the given request. Must be called on the event loop, where the attributes read by
+   * {@link #exceptionCaught(ChannelHandlerContext, Throwable)} are set.
+   */
+  private void submit(ChannelHandlerContext ctx, RequestMessage msg,
+      @Nullable ExhaustRequest exhaustRequest) throws Exception {
+    ctx.attr(NettyMessageReplier.REQUEST_ID).set(msg.getBaseMessage().getRequestId());
+    ctx.attr(REQUEST_OP_CODE).set(msg.getOpCode());
+    SerialExecutor connectionExecutor = ctx.attr(CONNECTION_EXECUTOR).get();
+    if (connectionExecutor == null) {
+      processRequest(ctx, msg, exhaustRequest);
+      return;
+    }
+    AtomicInteger queuedRequests = ctx.attr(QUEUED_REQUESTS).get();
+    int queued = queuedRequests.incrementAndGet();
+    try {
+      connectionExecutor.execute(new RequestTask(ctx, msg, exhaustRequest));
+    } catch (RejectedExecutionException ex) {
+      //the task has been discarded, which closes the request
+      LOGGER.warn("Request rejected by the executor, closing the connection");
+      ctx.close();
+      return;
+    }
+    if (queued >= maxQueuedRequests && ctx.channel().config().isAutoRead()) {
+      LOGGER.debug("Too many queued requests on {}, pausing reads", ctx.channel());
+      ctx.channel().config().setAutoRead(false);
+    }
+  }
+
+  /**
+   * Called when a request executed by the connection executor has finished.
+   */
+  private void onQueuedRequestFinished(ChannelHandlerContext ctx) {
+    AtomicInteger queuedRequests = ctx.attr(QUEUED_REQUESTS).get();
+    if (queuedRequests.decrementAndGet() == maxQueuedRequests / 2) {
+      //the decision is taken on the event loop, where reads are paused, so it cannot be lost
+      ctx.channel().eventLoop().execute(() -> {
+        if (queuedRequests.get() <= maxQueuedRequests / 2 && !ctx.channel().config()
+            .isAutoRead()) {
+          LOGGER.debug("Resuming reads on {}", ctx.channel());
+          ctx.channel().config().setAutoRead(true);
+        }
+      });
+    }
+  }
+
+  private void processRequest(ChannelHandlerContext ctx, RequestMessage msg,
+      @Nullable ExhaustRequest exhaustRequest) throws Exception {
+    if (ctx.executor().inEventLoop()) {
+      try (RequestMessage requestMessage = msg) {
+        execute(ctx, requestMessage, exhaustRequest);
+      }
+    } else {
+      try {
+        execute(ctx, msg, exhaustRequest);
+      } finally {
+        closeOnEventLoop(ctx, msg);
       }
     }
   }
 
+  private void execute(ChannelHandlerContext ctx, RequestMessage requestMessage,
+      @Nullable ExhaustRequest exhaustRequest) throws Exception {
+    LOGGER.debug("Received message type: {}, data: {}", requestMessage.getOpCode(), requestMessage);
+
+    //the attribute may already belong to a later request of the connection
+    NettyMessageReplier messageReplier = new NettyMessageReplier(ctx,
+        requestMessage.getBaseMessage().getRequestId(), isReplyExpected(requestMessage));
+    try {
+      dispatch(requestMessage, messageReplier);
+    } catch (Exception ex) {
+      logCaughtException(ex);
+      requestProcessor.handleError(requestMessage.getOpCode(), messageReplier, ex);
+      return;
+    }
+    if (exhaustRequest != null) {
+      continueExhaustQuery(ctx, messageReplier, exhaustRequest);
+    }
+  }
+
+  /**
+   * Closes a request executed outside the event loop.
+   *
+   * <p>Replies written outside the event loop are encoded by tasks queued on it, and they may
+   * contain values backed by the request buffer, so the request is closed by a task queued after
+   * them.
+   */
+  private static void closeOnEventLoop(ChannelHandlerContext ctx, RequestMessage msg)
+      throws Exception {
+    try {
+      ctx.executor().execute(() -> {
+        try {
+          msg.close();
+        } catch (Exception ex) {
+          LOGGER.warn("Error while closing a request", ex);
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      //the event loop has been shut down, so no reply will be encoded
+      msg.close();
+    }
+  }
+
+  private void continueExhaustQuery(ChannelHandlerContext ctx, NettyMessageReplier replier,
+      ExhaustRequest exhaustRequest) {
+    ReplyPromise lastReplyFuture = replier.getLastReplyFuture();
+    if (lastReplyFuture == null || !exhaustRequest.hasNext(replier)) {
+      return;
+    }
+    long cursorId = replier.getLastReplyCursorId();
+    lastReplyFuture.addListener((ChannelFuture future) -> {
+      if (!future.isSuccess()) {
+        return;
+      }
+      //the reply of this stream, not the last one written on the channel
+      int lastReplyRequestId = lastReplyFuture.getRequestId();
+      Runnable nextBatch = () -> requestNextExhaustBatch(ctx, exhaustRequest,
+          lastReplyRequestId, cursorId);
+      if (ctx.channel().isWritable()) {
+        nextBatch.run();
+      } else {
+        ctx.attr(PENDING_EXHAUST_BATCH).set(nextBatch);
+      }
+    });
+  }
+
+  private void requestNextExhaustBatch(ChannelHandlerContext ctx, ExhaustRequest exhaustRequest,
+      int lastReplyRequestId, long cursorId) {
+    RequestMessage nextRequest = exhaustRequest.next(lastReplyRequestId, cursorId);
+    try {
+      submit(ctx, nextRequest, exhaustRequest);
+    } catch (Exception ex) {
+      LOGGER.error("Error while requesting the next batch of an exhaust query", ex);
+      ctx.close();
+    }
+  }
+
+  @Override
+  public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+    if (ctx.channel().isWritable()) {
+      Runnable pendingBatch = ctx.attr(PENDING_EXHAUST_BATCH).getAndRemove();
+      if (pendingBatch != null) {
+        pendingBatch.run();
+      }
+    }
+    super.channelWritabilityChanged(ctx);
+  }
+
+  private boolean isReplyExpected(RequestMessage requestMessage) {
+    return !(requestMessage instanceof MsgMessage) || !((MsgMessage) requestMessage).isMoreToCome();
+  }
+
+  private void dispatch(RequestMessage requestMessage, MessageReplier messageReplier) throws
+      Exception {
+    switch (requestMessage.getOpCode()) {
+      case OP_QUERY:
+        assert requestMessage instanceof QueryMessage;
+        requestProcessor.queryMessage((QueryMessage) requestMessage, messageReplier);
+        break;
+      case OP_GET_MORE:
+        assert requestMessage instanceof GetMoreMessage;
+        requestProcessor.getMore((GetMoreMessage) requestMessage, messageReplier);
+        break;
+      case OP_KILL_CURSORS:
+        assert requestMessage instanceof KillCursorsMessage;
+        requestProcessor.killCursors((KillCursorsMessage) requestMessage, messageReplier);
+        break;
+      case OP_INSERT:
+        assert requestMessage instanceof InsertMessage;
+        requestProcessor.insert((InsertMessage) requestMessage, messageReplier);
+        break;
+      case OP_UPDATE:
+        assert requestMessage instanceof UpdateMessage;
+        requestProcessor.update((UpdateMessage) requestMessage, messageReplier);
+        break;
+      case OP_DELETE:
+        assert requestMessage instanceof DeleteMessage;
+        requestProcessor.delete((DeleteMessage) requestMessage, messageReplier);
+        break;
+      case OP_COMMAND_MSG:
+        assert requestMessage instanceof MsgMessage;
+        requestProcessor.msg((MsgMessage) requestMessage, messageReplier);
+        break;
+      default:
+        throw new UnsupportedOperationException(
+            "Message replier not implemented for "
+            + requestMessage.getOpCode() + " opCode"
+        );
+    }
+  }
+
   @Override
   public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
     logCaughtException(cause);
@@ -130,6 +345,11 @@ public class RequestMessageObjectHandler extends ChannelInboundHandlerAdapter {
       LOGGER.debug("Exception raised while logging connection", e);
     }
 
+    if (requestExecutor != null) {
+      ctx.attr(QUEUED_REQUESTS).set(new AtomicInteger());
+      ctx.attr(CONNECTION_EXECUTOR).set(new SerialExecutor(requestExecutor,
+          RequestMessageObjectHandler::discard));
+    }
     requestProcessor.onChannelActive(ctx);
 
     super.channelActive(ctx);
@@ -145,6 +365,189 @@ public class RequestMessageObjectHandler extends ChannelInboundHandlerAdapter {
 
     super.channelInactive(ctx);
 
-    requestProcessor.onChannelInactive(ctx);
+    SerialExecutor connectionExecutor = ctx.attr(CONNECTION_EXECUTOR).get();
+    if (connectionExecutor == null) {
+      requestProcessor.onChannelInactive(ctx);
+    } else {
+      //the connection is notified once its pending requests have been executed
+      connectionExecutor.execute(() -> requestProcessor.onChannelInactive(ctx));
+    }
+  }
+
+  private static void discard(Runnable task) {
+    if (task instanceof RequestTask) {
+      ((RequestTask) task).discard();
+    } else {
+      LOGGER.warn("Discarding task {}, as it has been rejected", task);
+    }
+  }
+
+  /**
+   * Stops the executor used to execute requests, if any, and notifies the request processor that
+   * the server has been shut down.
+   */
+  void shutDown() {
+    if (requestExecutor != null) {
+      requestExecutor.shutdown();
+    }
+    requestProcessor.onServerShutDown();
+  }
+
+  /**
+   * A request executed by the connection executor.
+   */
+  private class RequestTask implements Runnable {
+
+    private final ChannelHandlerContext ctx;
+    private final RequestMessage msg;
+    @Nullable
+    private final ExhaustRequest exhaustRequest;
+
+    private RequestTask(ChannelHandlerContext ctx, RequestMessage msg,
+        @Nullable ExhaustRequest exhaustRequest) {
+      this.ctx = ctx;
+      this.msg = msg;
+      this.exhaustRequest = exhaustRequest;
+    }
+
+    @Override
+    public void run() {
+      try {
+        processRequest(ctx, msg, exhaustRequest);
+      } catch (Throwable ex) {
+        LOGGER.error("Error while handling a request error", ex);
+        ctx.close();
+      } finally {
+        onQueuedRequestFinished(ctx);
+      }
+    }
+
+    /**
+     * Releases the request without executing it.
+     */
+    private void discard() {
+      LOGGER.debug("Discarding request {}", msg);
+      try {
+        msg.close();
+      } catch (Exception ex) {
+        LOGGER.debug("Error while closing a discarded request", ex);
+      } finally {
+        onQueuedRequestFinished(ctx);
+      }
+      ctx.close();
+    }
+  }
+
+  /**
+   * A streamed request, which knows how to request the next batch once a reply has been written.
+   */
+  private abstract static class ExhaustRequest {
+
+    @Nullable
+    final InetAddress clientAddress;
+    final int clientPort;
+
+    ExhaustRequest(RequestMessage request) {
+      this.clientAddress = request.getBaseMessage().getClientAddress();
+      this.clientPort = request.getBaseMessage().getClientPort();
+    }
+
+    /**
+     * Returns true if the stream continues after the last reply written by the given replier.
+     */
+    abstract boolean hasNext(NettyMessageReplier replier);
+
+    /**
+     * Returns the request that produces the next batch.
+     *
+     * @param responseTo the requestId of the last reply, used as the id of the new request
+     * @param cursorId   the id of the cursor returned by the last OP_REPLY reply
+     */
+    abstract RequestMessage next(int responseTo, long cursorId);
+
+    @Nullable
+    static ExhaustRequest of(RequestMessage requestMessage) {
+      if (requestMessage instanceof QueryMessage) {
+        QueryMessage query = (QueryMessage) requestMessage;
+        if (query.getQueryOptions().isExhaust()) {
+          return new ExhaustQuery(query);
+        }
+      } else if (requestMessage instanceof MsgMessage) {
+        MsgMessage msg = (MsgMessage) requestMessage;
+        if (msg.isExhaustAllowed() && msg.getDocumentSequences().isEmpty()) {
+          return new ExhaustMsg(msg);
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * A query with the {@code exhaust} option, whose next batches are requested with getMore
+   * messages.
+   */
+  private static class ExhaustQuery extends ExhaustRequest {
+
+    private final String database;
+    private final String collection;
+    private final int numberToReturn;
+
+    private ExhaustQuery(QueryMessage query) {
+      super(query);
+      this.database = query.getDatabase();
+      this.collection = query.getCollection();
+      this.numberToReturn = query.getNumberToReturn();
+    }
+
+    @Override
+    boolean hasNext(NettyMessageReplier replier) {
+      return replier.getLastReplyCursorId() != 0;
+    }
+
+    @Override
+    RequestMessage next(int responseTo, long cursorId) {
+      return new GetMoreMessage(
+          new RequestBaseMessage(clientAddress, clientPort, responseTo),
+          database,
+          collection,
+          numberToReturn,
+          cursorId
+      );
+    }
+  }
+
+  /**
+   * An OP_MSG message with the {@code exhaustAllowed} flag, whose next batches are requested by
+   * executing the same message again. Its body has been read on the heap by the decoder, so it can
+   * be used once the original message has been closed.
+   */
+  private static class ExhaustMsg extends ExhaustRequest {
+
+    private final boolean checksumPresent;
+    private final BsonDocument body;
+
+    private ExhaustMsg(MsgMessage msg) {
+      super(msg);
+      this.checksumPresent = msg.isChecksumPresent();
+      this.body = msg.getBody();
+    }
+
+    @Override
+    boolean hasNext(NettyMessageReplier replier) {
+      return replier.isLastReplyMoreToCome();
+    }
+
+    @Override
+    RequestMessage next(int responseTo, long cursorId) {
+      return new MsgMessage(
+          new RequestBaseMessage(clientAddress, clientPort, responseTo),
+          EmptyBsonContext.getInstance(),
+          checksumPresent,
+          false,
+          true,
+          body,
+          Collections.emptyList()
+      );
+    }
   }
 }
@@ -0,0 +1,140 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.mongoserver.decoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.eightkdata.mongowp.MongoConstants;
+import com.eightkdata.mongowp.bson.BsonDocument;
+import com.eightkdata.mongowp.bson.netty.DefaultNettyBsonLowLevelReader;
+import com.eightkdata.mongowp.bson.netty.NettyBsonDocumentReader;
+import com.eightkdata.mongowp.bson.netty.NettyBsonDocumentWriter;
+import com.eightkdata.mongowp.bson.netty.NettyStringReader;
+import com.eightkdata.mongowp.bson.netty.OffHeapNettyBsonLowLevelReader;
+import com.eightkdata.mongowp.bson.netty.OffHeapValuesNettyBsonLowLevelReader;
+import com.eightkdata.mongowp.bson.netty.PooledNettyStringReader;
+import com.eightkdata.mongowp.bson.netty.pool.AlwaysFalseStringPool;
+import com.eightkdata.mongowp.bson.utils.BsonDocumentReader.AllocationType;
+import com.eightkdata.mongowp.bson.utils.DefaultBsonValues;
+import com.eightkdata.mongowp.exceptions.BadValueException;
+import com.eightkdata.mongowp.messages.request.EmptyBsonContext;
+import com.eightkdata.mongowp.messages.request.MsgMessage;
+import com.eightkdata.mongowp.messages.request.RequestBaseMessage;
+import com.eightkdata.mongowp.messages.response.MsgReplyMessage;
+import com.eightkdata.mongowp.messages.utils.DocumentSequence;
+import com.eightkdata.mongowp.messages.utils.IterableDocumentProvider;
+import com.eightkdata.mongowp.server.decoder.MsgMessageDecoder;
+import com.eightkdata.mongowp.server.encoder.MsgMessageEncoder;
+import com.eightkdata.mongowp.server.util.Crc32cUtil;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.nio.ByteOrder;
+import java.util.List;
+
+/**
+ *
+ */
+public class MsgMessageDecoderTest {
+
+  private static final NettyStringReader STRING_READER =
+      new PooledNettyStringReader(AlwaysFalseStringPool.getInstance());
+  private final NettyBsonDocumentReader reader =
+      new NettyBsonDocumentReader(new DefaultNettyBsonLowLevelReader(STRING_READER),
+          new OffHeapNettyBsonLowLevelReader(STRING_READER),
+          new OffHeapValuesNettyBsonLowLevelReader(STRING_READER));
+  private final MsgMessageEncoder encoder = new MsgMessageEncoder(new NettyBsonDocumentWriter());
+  private final MsgMessageDecoder decoder = new MsgMessageDecoder(STRING_READER, reader);
+
+  private final BsonDocument body = DefaultBsonValues.newDocument("insert",
+      DefaultBsonValues.newString("coll"));
+  private final List<BsonDocument> docs = Lists.newArrayList(
+      DefaultBsonValues.newDocument("_id", DefaultBsonValues.newInt(1)),
+      DefaultBsonValues.newDocument("_id", DefaultBsonValues.newInt(2))
+  );
+
+  @Test
+  public void crc32cTest() {
+    ByteBuf buf = Unpooled.wrappedBuffer("123456789".getBytes(Charsets.US_ASCII));
+    assertEquals(0xE3069283, Crc32cUtil.checksum(buf, 0, buf.readableBytes()));
+  }
+
+  @Test
+  public void roundTripTest() throws Exception {
+    testRoundTrip(false);
+  }
+
+  @Test
+  public void roundTripWithChecksumTest() throws Exception {
+    testRoundTrip(true);
+  }
+
+  @Test(expected = BadValueException.class)
+  public void checksumMismatchTest() throws Exception {
+    ByteBuf frame = encode(true);
+    int lastIndex = frame.writerIndex() - 1;
+    frame.setByte(lastIndex, frame.getByte(lastIndex) + 1);
+    decode(frame);
+  }
+
+  private void testRoundTrip(boolean checksum) throws Exception {
+    MsgMessage message = decode(encode(checksum));
+    try {
+      assertEquals(checksum, message.isChecksumPresent());
+      assertFalse(message.isMoreToCome());
+      assertEquals(body, message.getBody());
+      assertEquals(1, message.getDocumentSequences().size());
+      DocumentSequence sequence = message.getDocumentSequences().get(0);
+      assertEquals("documents", sequence.getIdentifier());
+      assertEquals(docs, Lists.newArrayList(
+          sequence.getDocuments().getIterable(AllocationType.HEAP)));
+      assertTrue(sequence.asBsonArray(AllocationType.OFFHEAP).size() == docs.size());
+    } finally {
+      message.close();
+    }
+  }
+
+  /**
+   * Returns the encoded message, without its length field, positioned after its header.
+   */
+  private ByteBuf encode(boolean checksum) {
+    MsgReplyMessage reply = new MsgReplyMessage.Builder(EmptyBsonContext.getInstance(), 1, body)
+        .setChecksumPresent(checksum)
+        .addDocumentSequence(new DocumentSequence("documents", IterableDocumentProvider.of(docs)))
+        .build();
+    ByteBuf buf = Unpooled.buffer().order(ByteOrder.LITTLE_ENDIAN);
+    encoder.encode(buf, reply, 42);
+    assertEquals(buf.readableBytes(), buf.getInt(0));
+
+    ByteBuf frame = buf.slice(MongoConstants.MESSAGE_LENGTH_FIELD_BYTES,
+        buf.readableBytes() - MongoConstants.MESSAGE_LENGTH_FIELD_BYTES)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    frame.readerIndex(MongoConstants.MESSAGE_HEADER_WITHOUT_LENGTH_FIELD_BYTES);
+    return frame;
+  }
+
+  private MsgMessage decode(ByteBuf frame) throws Exception {
+    return decoder.decode(frame, new RequestBaseMessage(null, 0, 42));
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.mongoserver.encoder;
+
+import static org.junit.Assert.assertEquals;
+
+import com.eightkdata.mongowp.bson.BsonDocument;
+import com.eightkdata.mongowp.bson.netty.DefaultNettyBsonLowLevelReader;
+import com.eightkdata.mongowp.bson.netty.NettyBsonDocumentReader;
+import com.eightkdata.mongowp.bson.netty.NettyBsonDocumentWriter;
+import com.eightkdata.mongowp.bson.netty.NettyStringReader;
+import com.eightkdata.mongowp.bson.netty.OffHeapNettyBsonLowLevelReader;
+import com.eightkdata.mongowp.bson.netty.OffHeapValuesNettyBsonLowLevelReader;
+import com.eightkdata.mongowp.bson.netty.PooledNettyStringReader;
+import com.eightkdata.mongowp.bson.netty.pool.AlwaysFalseStringPool;
+import com.eightkdata.mongowp.bson.utils.BsonDocumentReader.AllocationType;
+import com.eightkdata.mongowp.bson.utils.DefaultBsonValues;
+import com.eightkdata.mongowp.messages.request.EmptyBsonContext;
+import com.eightkdata.mongowp.messages.response.ReplyMessage;
+import com.eightkdata.mongowp.messages.utils.IterableDocumentProvider;
+import com.eightkdata.mongowp.server.encoder.ReplyMessageEncoder;
+import com.eightkdata.mongowp.server.util.ByteBufIterableDocumentProvider;
+import com.eightkdata.mongowp.server.wp.DefaultRequestIdGenerator;
+import com.eightkdata.mongowp.server.wp.ReplyMessageObjectHandler;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class ReplyMessageEncoderTest {
+
+  private static final int NUMBER_RETURNED_INDEX = 32;
+  private static final int DOCUMENTS_INDEX = 36;
+
+  private static final NettyStringReader STRING_READER =
+      new PooledNettyStringReader(AlwaysFalseStringPool.getInstance());
+  private final NettyBsonDocumentReader reader =
+      new NettyBsonDocumentReader(new DefaultNettyBsonLowLevelReader(STRING_READER),
+          new OffHeapNettyBsonLowLevelReader(STRING_READER),
+          new OffHeapValuesNettyBsonLowLevelReader(STRING_READER));
+  private final NettyBsonDocumentWriter writer = new NettyBsonDocumentWriter();
+  private final EmbeddedChannel channel = new EmbeddedChannel(new ReplyMessageObjectHandler(
+      new DefaultRequestIdGenerator(), new ReplyMessageEncoder(writer)));
+
+  private final List<BsonDocument> docs = Lists.newArrayList(
+      DefaultBsonValues.newDocument("_id", DefaultBsonValues.newInt(1)),
+      //big enough to be added to the reply without copying it when it is read off heap
+      DefaultBsonValues.newDocument("big", DefaultBsonValues.newString(Strings.repeat("x", 1024))),
+      DefaultBsonValues.newDocument("_id", DefaultBsonValues.newInt(3))
+  );
+
+  @After
+  public void tearDown() {
+    channel.finish();
+  }
+
+  @Test
+  public void emptyReplyTest() throws Exception {
+    checkReply(IterableDocumentProvider.of(), Collections.emptyList());
+  }
+
+  @Test
+  public void copiedReplyTest() throws Exception {
+    checkReply(IterableDocumentProvider.of(docs), docs);
+  }
+
+  @Test
+  public void offHeapReplyTest() throws Exception {
+    ByteBuf docsBuf = Unpooled.buffer().order(ByteOrder.LITTLE_ENDIAN);
+    for (BsonDocument doc : docs) {
+      writer.writeInto(docsBuf, doc);
+    }
+    checkReply(new ByteBufIterableDocumentProvider(docsBuf, reader), docs);
+    docsBuf.release();
+  }
+
+  private void checkReply(IterableDocumentProvider<? extends BsonDocument> provider,
+      List<BsonDocument> expectedDocs) throws Exception {
+    channel.writeOutbound(new ReplyMessage.Builder(EmptyBsonContext.getInstance(), 7, 42, 0,
+        provider).build());
+    ByteBuf reply = ((ByteBuf) channel.readOutbound()).order(ByteOrder.LITTLE_ENDIAN);
+
+    assertEquals(reply.readableBytes(), reply.getInt(reply.readerIndex()));
+    assertEquals(expectedDocs.size(), reply.getInt(reply.readerIndex() + NUMBER_RETURNED_INDEX));
+    reply.skipBytes(DOCUMENTS_INDEX);
+    List<BsonDocument> readDocs = new ArrayList<>();
+    while (reply.isReadable()) {
+      readDocs.add(reader.readDocument(AllocationType.HEAP, reply));
+    }
+    assertEquals(expectedDocs, readDocs);
+    reply.release();
+  }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.mongoserver.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.eightkdata.mongowp.messages.compression.CompressionStatistics;
+import com.eightkdata.mongowp.messages.compression.MessageCompressor;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+/**
+ *
+ */
+public class MessageCompressorTest {
+
+  private static byte[] sampleMessage() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      sb.append("{\"_id\": ").append(i).append(", \"name\": \"document\"}");
+    }
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void roundTripTest() throws DataFormatException {
+    byte[] message = sampleMessage();
+    for (MessageCompressor compressor : MessageCompressor.values()) {
+      assertTrue(compressor + " should be available", compressor.isAvailable());
+
+      int offset = 3;
+      byte[] compressed = new byte[offset + compressor.maxCompressedLength(message.length)];
+      int compressedLength = compressor.compress(message, 0, message.length, compressed, offset);
+      if (compressor != MessageCompressor.NOOP) {
+        assertTrue(compressor + " did not compress the message",
+            compressedLength < message.length);
+      }
+
+      byte[] decompressed = new byte[message.length + 1];
+      compressor.decompress(compressed, offset, compressedLength, decompressed, 1,
+          message.length);
+      assertArrayEquals(compressor.toString(), message,
+          Arrays.copyOfRange(decompressed, 1, decompressed.length));
+    }
+  }
+
+  @Test
+  public void wrongUncompressedLengthTest() {
+    byte[] message = sampleMessage();
+    for (MessageCompressor compressor : MessageCompressor.values()) {
+      byte[] compressed = new byte[compressor.maxCompressedLength(message.length)];
+      int compressedLength = compressor.compress(message, 0, message.length, compressed, 0);
+
+      byte[] decompressed = new byte[message.length * 2];
+      try {
+        compressor.decompress(compressed, 0, compressedLength, decompressed, 0,
+            message.length - 1);
+        throw new AssertionError(compressor + " accepted a wrong uncompressed length");
+      } catch (DataFormatException expected) {
+      }
+    }
+  }
+
+  @Test
+  public void negotiateTest() {
+    List<MessageCompressor> result = MessageCompressor.negotiate(
+        Arrays.asList("zstd", "unknown", "SNAPPY", "zlib", "zstd"),
+        EnumSet.of(MessageCompressor.SNAPPY, MessageCompressor.ZSTD));
+    assertEquals(Arrays.asList(MessageCompressor.ZSTD, MessageCompressor.SNAPPY), result);
+  }
+
+  @Test
+  public void withoutZstdTest() throws Exception {
+    ClassLoader loader = new WithoutZstdClassLoader(getClass().getClassLoader());
+    Class<?> compressorClass = loader.loadClass(MessageCompressor.class.getName());
+    Method isAvailable = compressorClass.getMethod("isAvailable");
+    Method maxCompressedLength = compressorClass.getMethod("maxCompressedLength", int.class);
+
+    for (Object compressor : compressorClass.getEnumConstants()) {
+      boolean zstd = compressor.toString().equals(MessageCompressor.ZSTD.name());
+      assertEquals(compressor.toString(), !zstd, isAvailable.invoke(compressor));
+      if (zstd) {
+        try {
+          maxCompressedLength.invoke(compressor, 10);
+          throw new AssertionError("An unavailable compressor has been used");
+        } catch (InvocationTargetException expected) {
+          assertTrue(expected.getCause() instanceof IllegalStateException);
+        }
+      }
+    }
+    //the servers create their statistics with all the compressors, even unavailable ones
+    Object statistics = loader.loadClass(CompressionStatistics.class.getName()).newInstance();
+    assertFalse(statistics.toString().isEmpty());
+  }
+
+  /**
+   * Loads the compression classes by itself and hides the zstd-jni ones, as if the library was
+   * not on the classpath.
+   */
+  private static class WithoutZstdClassLoader extends ClassLoader {
+
+    private static final String COMPRESSION_PACKAGE =
+        MessageCompressor.class.getPackage().getName() + '.';
+
+    WithoutZstdClassLoader(ClassLoader parent) {
+      super(parent);
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+      synchronized (getClassLoadingLock(name)) {
+        if (name.startsWith("com.github.luben.")) {
+          throw new ClassNotFoundException(name);
+        }
+        if (!name.startsWith(COMPRESSION_PACKAGE)) {
+          return super.loadClass(name, resolve);
+        }
+        Class<?> result = findLoadedClass(name);
+        if (result == null) {
+          result = defineCompressionClass(name);
+        }
+        if (resolve) {
+          resolveClass(result);
+        }
+        return result;
+      }
+    }
+
+    private Class<?> defineCompressionClass(String name) throws ClassNotFoundException {
+      String resource = name.replace('.', '/') + ".class";
+      try (InputStream is = getParent().getResourceAsStream(resource)) {
+        if (is == null) {
+          throw new ClassNotFoundException(name);
+        }
+        byte[] bytes = ByteStreams.toByteArray(is);
+        return defineClass(name, bytes, 0, bytes.length);
+      } catch (IOException ex) {
+        throw new ClassNotFoundException(name, ex);
+      }
+    }
+  }
+}
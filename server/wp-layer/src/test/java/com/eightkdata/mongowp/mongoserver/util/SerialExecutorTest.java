@@ -0,0 +1,113 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.mongoserver.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.eightkdata.mongowp.server.util.SerialExecutor;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ */
+public class SerialExecutorTest {
+
+  @Test
+  public void tasksAreExecutedInOrderAndNotConcurrently() throws InterruptedException {
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      SerialExecutor executor = new SerialExecutor(pool);
+      int tasks = 1000;
+      List<Integer> executed = new ArrayList<>(tasks);
+      AtomicInteger running = new AtomicInteger();
+      CountDownLatch finished = new CountDownLatch(tasks);
+
+      for (int i = 0; i < tasks; i++) {
+        int taskId = i;
+        executor.execute(() -> {
+          assertEquals(1, running.incrementAndGet());
+          executed.add(taskId);
+          running.decrementAndGet();
+          finished.countDown();
+        });
+      }
+
+      assertTrue(finished.await(10, TimeUnit.SECONDS));
+      for (int i = 0; i < tasks; i++) {
+        assertEquals(i, (int) executed.get(i));
+      }
+      //the last task counts down the latch before it is removed from the pending ones
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (executor.getPendingTasks() != 0 && System.nanoTime() < deadline) {
+        Thread.yield();
+      }
+      assertEquals(0, executor.getPendingTasks());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void errorsDoNotStopTheExecutor() throws InterruptedException {
+    ExecutorService pool = Executors.newSingleThreadExecutor();
+    try {
+      SerialExecutor executor = new SerialExecutor(pool);
+      CountDownLatch executed = new CountDownLatch(1);
+      executor.execute(() -> {
+        throw new AssertionError("expected error");
+      });
+      executor.execute(executed::countDown);
+
+      assertTrue(executed.await(10, TimeUnit.SECONDS));
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void rejectedTasksAreDiscarded() {
+    ExecutorService pool = Executors.newSingleThreadExecutor();
+    pool.shutdown();
+    List<Runnable> discarded = new ArrayList<>();
+    SerialExecutor executor = new SerialExecutor(pool, discarded::add);
+    Runnable task = () -> {
+    };
+
+    try {
+      executor.execute(task);
+      fail("The task should be rejected");
+    } catch (RejectedExecutionException ex) {
+      //expected
+    }
+    assertEquals(Collections.singletonList(task), discarded);
+    assertEquals(0, executor.getPendingTasks());
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.server.wp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class FlushCoalescingHandlerTest {
+
+  private final FlushStatistics statistics = new FlushStatistics();
+  private final EmbeddedChannel channel = new EmbeddedChannel(
+      new FlushCoalescingHandler(100, statistics));
+
+  @After
+  public void tearDown() {
+    channel.finish();
+    releaseOutbound();
+  }
+
+  private static ByteBuf reply(int bytes) {
+    return Unpooled.buffer(bytes).writeZero(bytes);
+  }
+
+  private int releaseOutbound() {
+    int messages = 0;
+    ByteBuf msg;
+    while ((msg = (ByteBuf) channel.readOutbound()) != null) {
+      msg.release();
+      messages++;
+    }
+    return messages;
+  }
+
+  @Test
+  public void flushesAreDeferredToReadComplete() {
+    channel.pipeline().fireChannelRead("request");
+    channel.writeAndFlush(reply(10));
+    channel.pipeline().fireChannelRead("request");
+    channel.writeAndFlush(reply(10));
+    channel.runPendingTasks();
+
+    assertNull(channel.readOutbound());
+    assertEquals(0, statistics.getFlushes());
+
+    channel.pipeline().fireChannelReadComplete();
+
+    assertEquals(2, releaseOutbound());
+    assertEquals(1, statistics.getFlushes());
+    assertEquals(2, statistics.getReplies());
+    assertEquals(20, statistics.getFlushedBytes());
+    assertArrayEquals(new long[] {0, 1, 0, 0, 0, 0, 0, 0},
+        statistics.getRepliesPerFlushHistogram());
+  }
+
+  @Test
+  public void flushesAreForcedWhenMaxPendingBytesIsReached() {
+    channel.pipeline().fireChannelRead("request");
+    channel.writeAndFlush(reply(60));
+    assertNull(channel.readOutbound());
+
+    channel.writeAndFlush(reply(60));
+    assertEquals(2, releaseOutbound());
+    assertEquals(1, statistics.getFlushes());
+    assertEquals(120, statistics.getFlushedBytes());
+
+    channel.writeAndFlush(reply(10));
+    channel.pipeline().fireChannelReadComplete();
+    assertEquals(1, releaseOutbound());
+    assertEquals(2, statistics.getFlushes());
+    assertEquals(3, statistics.getReplies());
+  }
+
+  @Test
+  public void flushesOutsideReadCyclesAreDeferredToTheEventLoop() {
+    channel.writeAndFlush(reply(10));
+    channel.writeAndFlush(reply(10));
+    assertNull(channel.readOutbound());
+
+    channel.runPendingTasks();
+    assertEquals(2, releaseOutbound());
+    assertEquals(1, statistics.getFlushes());
+  }
+
+  @Test
+  public void everyFlushIsForwardedWithoutLimit() {
+    EmbeddedChannel uncoalesced = new EmbeddedChannel(new FlushCoalescingHandler(0, statistics));
+    uncoalesced.pipeline().fireChannelRead("request");
+    uncoalesced.writeAndFlush(reply(10));
+    ByteBuf written = (ByteBuf) uncoalesced.readOutbound();
+    assertEquals(10, written.readableBytes());
+    written.release();
+    uncoalesced.finish();
+    assertEquals(1, statistics.getRepliesPerFlush(), 0);
+  }
+}
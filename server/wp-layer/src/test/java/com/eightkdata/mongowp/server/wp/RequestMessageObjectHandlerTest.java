@@ -0,0 +1,394 @@
+/*
+ * MongoWP
+ * Copyright © 2014 8Kdata Technology (www.8kdata.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eightkdata.mongowp.server.wp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.eightkdata.mongowp.bson.BsonDocument;
+import com.eightkdata.mongowp.bson.netty.DefaultNettyBsonLowLevelReader;
+import com.eightkdata.mongowp.bson.netty.NettyBsonDocumentReader;
+import com.eightkdata.mongowp.bson.netty.NettyBsonDocumentWriter;
+import com.eightkdata.mongowp.bson.netty.NettyStringReader;
+import com.eightkdata.mongowp.bson.netty.OffHeapNettyBsonLowLevelReader;
+import com.eightkdata.mongowp.bson.netty.OffHeapValuesNettyBsonLowLevelReader;
+import com.eightkdata.mongowp.bson.netty.PooledNettyStringReader;
+import com.eightkdata.mongowp.bson.netty.pool.AlwaysFalseStringPool;
+import com.eightkdata.mongowp.bson.utils.BsonDocumentReader.AllocationType;
+import com.eightkdata.mongowp.bson.utils.DefaultBsonValues;
+import com.eightkdata.mongowp.messages.request.DeleteMessage;
+import com.eightkdata.mongowp.messages.request.EmptyBsonContext;
+import com.eightkdata.mongowp.messages.request.GetMoreMessage;
+import com.eightkdata.mongowp.messages.request.InsertMessage;
+import com.eightkdata.mongowp.messages.request.KillCursorsMessage;
+import com.eightkdata.mongowp.messages.request.MsgMessage;
+import com.eightkdata.mongowp.messages.request.QueryMessage;
+import com.eightkdata.mongowp.messages.request.QueryMessage.QueryOption;
+import com.eightkdata.mongowp.messages.request.QueryMessage.QueryOptions;
+import com.eightkdata.mongowp.messages.request.RequestBaseMessage;
+import com.eightkdata.mongowp.messages.request.RequestOpCode;
+import com.eightkdata.mongowp.messages.request.UpdateMessage;
+import com.eightkdata.mongowp.messages.response.MsgReplyMessage;
+import com.eightkdata.mongowp.messages.response.ReplyMessage;
+import com.eightkdata.mongowp.server.MongoServerConfig;
+import com.eightkdata.mongowp.server.MongoServerConfig.ExecutionMode;
+import com.eightkdata.mongowp.server.callback.MessageReplier;
+import com.eightkdata.mongowp.server.callback.RequestProcessor;
+import com.eightkdata.mongowp.server.encoder.MsgMessageEncoder;
+import com.eightkdata.mongowp.server.decoder.MyBsonContext;
+import com.eightkdata.mongowp.server.encoder.ReplyMessageEncoder;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.Uninterruptibles;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalEventLoopGroup;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.util.AttributeMap;
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class RequestMessageObjectHandlerTest {
+
+  private static final int REQUEST_ID_INDEX = 4;
+  private static final int RESPONSE_TO_INDEX = 8;
+  private static final int OP_MSG_FLAGS_INDEX = 16;
+  private static final int OP_MSG_BODY_INDEX = 21;
+  private static final int MORE_TO_COME_FLAG = 1 << 1;
+  private static final NettyStringReader STRING_READER =
+      new PooledNettyStringReader(AlwaysFalseStringPool.getInstance());
+  private static final NettyBsonDocumentReader READER =
+      new NettyBsonDocumentReader(new DefaultNettyBsonLowLevelReader(STRING_READER),
+          new OffHeapNettyBsonLowLevelReader(STRING_READER),
+          new OffHeapValuesNettyBsonLowLevelReader(STRING_READER));
+
+  private final TestRequestProcessor processor = new TestRequestProcessor();
+  private final EmbeddedChannel channel = createChannel(processor);
+
+  private static EmbeddedChannel createChannel(RequestProcessor processor) {
+    RequestIdGenerator requestIdGenerator = new DefaultRequestIdGenerator();
+    NettyBsonDocumentWriter writer = new NettyBsonDocumentWriter();
+    return new EmbeddedChannel(
+        new ReplyMessageObjectHandler(requestIdGenerator, new ReplyMessageEncoder(writer)),
+        new MsgReplyMessageObjectHandler(requestIdGenerator, new MsgMessageEncoder(writer)),
+        new RequestMessageObjectHandler(processor)
+    );
+  }
+
+  @After
+  public void tearDown() {
+    channel.finish();
+    readReplies();
+  }
+
+  private List<ByteBuf> readReplies() {
+    List<ByteBuf> replies = new ArrayList<>();
+    ByteBuf reply;
+    while ((reply = (ByteBuf) channel.readOutbound()) != null) {
+      replies.add(reply.order(ByteOrder.LITTLE_ENDIAN));
+    }
+    return replies;
+  }
+
+  private void setWritable(boolean writable) {
+    channel.unsafe().outboundBuffer().setUserDefinedWritability(1, writable);
+    channel.runPendingTasks();
+  }
+
+  private static QueryMessage newExhaustQuery(int requestId) {
+    return new QueryMessage.Builder(new RequestBaseMessage(null, 0, requestId),
+        EmptyBsonContext.getInstance(), "db", "collection",
+        new QueryOptions(EnumSet.of(QueryOption.EXHAUST)))
+        .setQuery(DefaultBsonValues.EMPTY_DOC)
+        .build();
+  }
+
+  private static int getInt(ByteBuf reply, int index) {
+    return reply.getInt(reply.readerIndex() + index);
+  }
+
+  /**
+   * Checks that each reply answers the request, or the previous reply in a stream, and that
+   * each request of the stream uses the requestId of the previous reply.
+   */
+  private void assertResponseToChain(int firstRequestId, List<ByteBuf> replies) {
+    assertEquals(replies.size(), processor.requestIds.size());
+    int expectedResponseTo = firstRequestId;
+    for (int i = 0; i < replies.size(); i++) {
+      ByteBuf reply = replies.get(i);
+      assertEquals((int) processor.requestIds.get(i), expectedResponseTo);
+      assertEquals(expectedResponseTo, getInt(reply, RESPONSE_TO_INDEX));
+      expectedResponseTo = getInt(reply, REQUEST_ID_INDEX);
+      reply.release();
+    }
+  }
+
+  @Test
+  public void exhaustAllowedMsgIsStreamedTest() {
+    processor.batches = 3;
+    BsonDocument body = DefaultBsonValues.newDocument("getMore", DefaultBsonValues.newLong(42));
+    channel.writeInbound(new MsgMessage(new RequestBaseMessage(null, 0, 7),
+        EmptyBsonContext.getInstance(), false, false, true, body, Collections.emptyList()));
+
+    List<ByteBuf> replies = readReplies();
+    assertEquals(3, replies.size());
+    for (int i = 0; i < replies.size(); i++) {
+      int expectedFlags = i < replies.size() - 1 ? MORE_TO_COME_FLAG : 0;
+      assertEquals(expectedFlags, getInt(replies.get(i), OP_MSG_FLAGS_INDEX));
+    }
+    assertResponseToChain(7, replies);
+    assertNull(channel.readOutbound());
+  }
+
+  @Test
+  public void exhaustQueryIsStreamedTest() {
+    processor.batches = 3;
+    channel.writeInbound(newExhaustQuery(7));
+
+    List<ByteBuf> replies = readReplies();
+    assertEquals(3, replies.size());
+    assertResponseToChain(7, replies);
+    assertNull(channel.readOutbound());
+  }
+
+  @Test
+  public void exhaustStreamPausesWhileNotWritableTest() {
+    processor.batches = 2;
+    setWritable(false);
+    channel.writeInbound(newExhaustQuery(7));
+
+    List<ByteBuf> replies = readReplies();
+    assertEquals(1, replies.size());
+    assertEquals(1, processor.requestIds.size());
+
+    //another reply is written on the channel while the stream is paused
+    channel.writeInbound(new MsgMessage(new RequestBaseMessage(null, 0, 8),
+        EmptyBsonContext.getInstance(), false, false, false, DefaultBsonValues.EMPTY_DOC,
+        Collections.emptyList()));
+    List<ByteBuf> otherReplies = readReplies();
+    assertEquals(1, otherReplies.size());
+    assertEquals(8, getInt(otherReplies.get(0), RESPONSE_TO_INDEX));
+    otherReplies.get(0).release();
+    assertEquals(1, processor.requestIds.size());
+
+    setWritable(true);
+    replies.addAll(readReplies());
+    assertEquals(2, replies.size());
+    assertResponseToChain(7, replies);
+    assertTrue(channel.isWritable());
+  }
+
+  @Test
+  public void threadPoolReplyIsEncodedBeforeClosingTheRequestTest() throws Exception {
+    MongoServerConfig config = new MongoServerConfig() {
+      @Override
+      public int getPort() {
+        return 0;
+      }
+
+      @Override
+      public ExecutionMode getExecutionMode() {
+        return ExecutionMode.THREAD_POOL;
+      }
+
+      @Override
+      public int getExecutionThreads() {
+        return 1;
+      }
+    };
+    RequestMessageObjectHandler handler = new RequestMessageObjectHandler(processor, config,
+        Executors.defaultThreadFactory());
+    RequestIdGenerator requestIdGenerator = new DefaultRequestIdGenerator();
+    NettyBsonDocumentWriter writer = new NettyBsonDocumentWriter();
+    BlockingQueue<Channel> serverChannels = new LinkedBlockingQueue<>();
+    BlockingQueue<ByteBuf> replies = new LinkedBlockingQueue<>();
+    LocalAddress address = new LocalAddress("RequestMessageObjectHandlerTest");
+    EventLoopGroup group = new LocalEventLoopGroup(2);
+    try {
+      new ServerBootstrap()
+          .group(group)
+          .channel(LocalServerChannel.class)
+          .childHandler(new ChannelInitializer<LocalChannel>() {
+            @Override
+            protected void initChannel(LocalChannel ch) {
+              ch.pipeline().addLast(
+                  new ReplyMessageObjectHandler(requestIdGenerator,
+                      new ReplyMessageEncoder(writer)),
+                  new MsgReplyMessageObjectHandler(requestIdGenerator,
+                      new MsgMessageEncoder(writer)),
+                  handler);
+              serverChannels.add(ch);
+            }
+          })
+          .bind(address).sync();
+      Channel client = new Bootstrap()
+          .group(group)
+          .channel(LocalChannel.class)
+          .handler(new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+              replies.add((ByteBuf) msg);
+            }
+          })
+          .connect(address).sync().channel();
+      Channel serverChannel = serverChannels.poll(10, TimeUnit.SECONDS);
+
+      //the request body is read off heap from a buffer that is released when it is closed
+      BsonDocument body = DefaultBsonValues.newDocument("echo", DefaultBsonValues.newString(
+          Strings.repeat("x", 100)));
+      ByteBuf requestBuf = Unpooled.buffer().order(ByteOrder.LITTLE_ENDIAN);
+      writer.writeInto(requestBuf, body);
+      MsgMessage request = new MsgMessage(new RequestBaseMessage(null, 0, 7),
+          new MyBsonContext(requestBuf), false, false, false,
+          READER.readDocument(AllocationType.OFFHEAP, requestBuf.slice()),
+          Collections.emptyList());
+      requestBuf.release();
+
+      //the event loop is busy until the worker has executed the request, so the reply can only
+      //be encoded after that
+      serverChannel.eventLoop().execute(() -> {
+        serverChannel.pipeline().fireChannelRead(request);
+        Uninterruptibles.awaitUninterruptibly(processor.replied, 10, TimeUnit.SECONDS);
+        Uninterruptibles.sleepUninterruptibly(100, TimeUnit.MILLISECONDS);
+      });
+
+      ByteBuf reply = replies.poll(10, TimeUnit.SECONDS);
+      assertNotNull("The reply has not been encoded", reply);
+      reply = reply.order(ByteOrder.LITTLE_ENDIAN);
+      assertEquals(reply.readableBytes(), getInt(reply, 0));
+      assertEquals(7, getInt(reply, RESPONSE_TO_INDEX));
+      assertEquals(body, READER.readDocument(AllocationType.HEAP,
+          reply.slice(reply.readerIndex() + OP_MSG_BODY_INDEX,
+              reply.readableBytes() - OP_MSG_BODY_INDEX)));
+      reply.release();
+
+      client.close().sync();
+      serverChannel.closeFuture().sync();
+      assertEquals(0, requestBuf.refCnt());
+    } finally {
+      group.shutdownGracefully().sync();
+      handler.shutDown();
+    }
+  }
+
+  /**
+   * Replies {@link #batches} batches to each streamed request and records their requestIds.
+   */
+  private static class TestRequestProcessor implements RequestProcessor {
+
+    private static final long CURSOR_ID = 42;
+
+    private final List<Integer> requestIds = new ArrayList<>();
+    private final CountDownLatch replied = new CountDownLatch(1);
+    private int batches;
+
+    @Override
+    public void onChannelActive(AttributeMap attributeMap) {
+    }
+
+    @Override
+    public void onChannelInactive(AttributeMap attributeMap) {
+    }
+
+    @Override
+    public void queryMessage(QueryMessage queryMessage, MessageReplier messageReplier) {
+      replyBatch(queryMessage.getBaseMessage().getRequestId(), messageReplier);
+    }
+
+    @Override
+    public void getMore(GetMoreMessage getMoreMessage, MessageReplier messageReplier) {
+      assertEquals(CURSOR_ID, getMoreMessage.getCursorId());
+      replyBatch(getMoreMessage.getBaseMessage().getRequestId(), messageReplier);
+    }
+
+    private void replyBatch(int requestId, MessageReplier messageReplier) {
+      requestIds.add(requestId);
+      long cursorId = requestIds.size() < batches ? CURSOR_ID : 0;
+      List<BsonDocument> documents = Collections.singletonList(DefaultBsonValues.EMPTY_DOC);
+      messageReplier.replyMessage(new ReplyMessage.Builder(EmptyBsonContext.getInstance(),
+          messageReplier.getRequestId(), cursorId, 0, documents).build());
+    }
+
+    @Override
+    public void killCursors(KillCursorsMessage killCursorsMessage,
+        MessageReplier messageReplier) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void insert(InsertMessage insertMessage, MessageReplier messageReplier) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void update(UpdateMessage updateMessage, MessageReplier messageReplier) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void delete(DeleteMessage deleteMessage, MessageReplier messageReplier) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void msg(MsgMessage msgMessage, MessageReplier messageReplier) {
+      boolean moreToCome = false;
+      if (msgMessage.isExhaustAllowed()) {
+        requestIds.add(msgMessage.getBaseMessage().getRequestId());
+        moreToCome = requestIds.size() < batches;
+      }
+      messageReplier.replyMessage(new MsgReplyMessage.Builder(EmptyBsonContext.getInstance(),
+          messageReplier.getRequestId(), msgMessage.getBody())
+          .setMoreToCome(moreToCome)
+          .build());
+      replied.countDown();
+    }
+
+    @Override
+    public boolean handleError(RequestOpCode requestOpCode, MessageReplier messageReplier,
+        Throwable throwable) {
+      throw new AssertionError("Unexpected error", throwable);
+    }
+  }
+}